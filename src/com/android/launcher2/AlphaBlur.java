@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A separable blur over 8-bit alpha planes. A gaussian is approximated with three successive
+ * box blurs in each direction, and pixels outside of the plane are treated as transparent, which
+ * matches what BlurMaskFilter does when applied through Bitmap.extractAlpha.
+ *
+ * Instances keep their scratch planes between calls and are not thread safe; callers are
+ * expected to synchronize on the instance.
+ */
+final class AlphaBlur {
+    private static final int PASSES = 3;
+
+    // Below this many pixels the cost of handing work to other threads outweighs the gain
+    private static final int PARALLEL_MIN_PIXELS = 128 * 128;
+    private static final int MAX_THREADS = 4;
+
+    private static ExecutorService sExecutor;
+    private static int sThreadCount;
+
+    private final boolean mParallel;
+    private final int[] mBoxRadii = new int[PASSES];
+    private byte[] mScratch1;
+    private byte[] mScratch2;
+
+    AlphaBlur(boolean parallel) {
+        mParallel = parallel && Runtime.getRuntime().availableProcessors() > 1;
+    }
+
+    /**
+     * Converts a BlurMaskFilter radius into the standard deviation Skia uses for it.
+     */
+    static float radiusToSigma(float radius) {
+        return radius > 0 ? 0.57735f * radius + 0.5f : 0f;
+    }
+
+    /**
+     * Blurs the w x h plane in src into dst using the given BlurMaskFilter radius. src and dst
+     * may not be the same array.
+     */
+    void blur(byte[] src, byte[] dst, int w, int h, float radius) {
+        final int size = w * h;
+        if (size == 0) {
+            return;
+        }
+        computeBoxRadii(radiusToSigma(radius), mBoxRadii);
+        if (mScratch1 == null || mScratch1.length < size) {
+            mScratch1 = new byte[size];
+            mScratch2 = new byte[size];
+        }
+        final byte[] s1 = mScratch1;
+        final byte[] s2 = mScratch2;
+        final int[] r = mBoxRadii;
+
+        if (mParallel && size >= PARALLEL_MIN_PIXELS) {
+            runParallel(src, s1, s2, dst, w, h);
+        } else {
+            // Horizontal: src -> s1 -> s2 -> s1, vertical: s1 -> s2 -> s1 -> dst
+            boxRows(src, s1, w, 0, h, r[0]);
+            boxRows(s1, s2, w, 0, h, r[1]);
+            boxRows(s2, s1, w, 0, h, r[2]);
+            boxColumns(s1, s2, w, h, 0, w, r[0]);
+            boxColumns(s2, s1, w, h, 0, w, r[1]);
+            boxColumns(s1, dst, w, h, 0, w, r[2]);
+        }
+    }
+
+    /**
+     * Drops the scratch planes; they are reallocated on the next call to blur.
+     */
+    void trim() {
+        mScratch1 = null;
+        mScratch2 = null;
+    }
+
+    int getScratchByteCount() {
+        return mScratch1 == null ? 0 : mScratch1.length * 2;
+    }
+
+    /**
+     * Computes the radii of the box blurs whose successive application best approximates a
+     * gaussian with the given standard deviation.
+     */
+    static void computeBoxRadii(float sigma, int[] outRadii) {
+        final int n = outRadii.length;
+        if (sigma <= 0) {
+            for (int i = 0; i < n; i++) {
+                outRadii[i] = 0;
+            }
+            return;
+        }
+        final float idealWidth = (float) Math.sqrt(12 * sigma * sigma / n + 1);
+        int lower = (int) idealWidth;
+        if (lower % 2 == 0) {
+            lower--;
+        }
+        final int upper = lower + 2;
+        final float idealCount = (12 * sigma * sigma - n * lower * lower - 4 * n * lower - 3 * n)
+                / (-4 * lower - 4);
+        final int m = Math.round(idealCount);
+        for (int i = 0; i < n; i++) {
+            outRadii[i] = ((i < m ? lower : upper) - 1) / 2;
+        }
+    }
+
+    private static void boxRows(byte[] src, byte[] dst, int w, int startRow, int endRow, int r) {
+        for (int y = startRow; y < endRow; y++) {
+            boxLine(src, dst, y * w, 1, w, r);
+        }
+    }
+
+    private static void boxColumns(byte[] src, byte[] dst, int w, int h, int startColumn,
+            int endColumn, int r) {
+        for (int x = startColumn; x < endColumn; x++) {
+            boxLine(src, dst, x, w, h, r);
+        }
+    }
+
+    /**
+     * A single box blur of radius r along one row or column, with zero outside of the line.
+     */
+    private static void boxLine(byte[] src, byte[] dst, int offset, int stride, int length,
+            int r) {
+        if (r == 0) {
+            for (int i = 0, p = offset; i < length; i++, p += stride) {
+                dst[p] = src[p];
+            }
+            return;
+        }
+        final int diameter = 2 * r + 1;
+        final int half = diameter / 2;
+        int sum = 0;
+        for (int i = 0; i <= r && i < length; i++) {
+            sum += src[offset + i * stride] & 0xff;
+        }
+        for (int i = 0, p = offset; i < length; i++, p += stride) {
+            dst[p] = (byte) ((sum + half) / diameter);
+            final int add = i + r + 1;
+            if (add < length) {
+                sum += src[offset + add * stride] & 0xff;
+            }
+            final int remove = i - r;
+            if (remove >= 0) {
+                sum -= src[offset + remove * stride] & 0xff;
+            }
+        }
+    }
+
+    private void runParallel(final byte[] src, final byte[] s1, final byte[] s2,
+            final byte[] dst, final int w, final int h) {
+        final ExecutorService executor = getExecutor();
+        final int threads = sThreadCount;
+        final int[] r = mBoxRadii;
+
+        final byte[][] from = { src, s1, s2 };
+        final byte[][] to = { s1, s2, s1 };
+        for (int pass = 0; pass < PASSES; pass++) {
+            final byte[] passSrc = from[pass];
+            final byte[] passDst = to[pass];
+            final int radius = r[pass];
+            final CountDownLatch latch = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                final int start = h * t / threads;
+                final int end = h * (t + 1) / threads;
+                executor.execute(new Runnable() {
+                    public void run() {
+                        boxRows(passSrc, passDst, w, start, end, radius);
+                        latch.countDown();
+                    }
+                });
+            }
+            await(latch);
+        }
+
+        final byte[][] vFrom = { s1, s2, s1 };
+        final byte[][] vTo = { s2, s1, dst };
+        for (int pass = 0; pass < PASSES; pass++) {
+            final byte[] passSrc = vFrom[pass];
+            final byte[] passDst = vTo[pass];
+            final int radius = r[pass];
+            final CountDownLatch latch = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                final int start = w * t / threads;
+                final int end = w * (t + 1) / threads;
+                executor.execute(new Runnable() {
+                    public void run() {
+                        boxColumns(passSrc, passDst, w, h, start, end, radius);
+                        latch.countDown();
+                    }
+                });
+            }
+            await(latch);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sThreadCount = Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors());
+            sExecutor = Executors.newFixedThreadPool(sThreadCount, new ThreadFactory() {
+                private int mCount;
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "launcher-blur-" + mCount++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return sExecutor;
+    }
+}
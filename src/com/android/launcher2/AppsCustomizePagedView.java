@@ -148,7 +148,7 @@ class AppsCustomizeAsyncTask extends AsyncTask<AsyncTaskPageData, Void, AsyncTas
 public class AppsCustomizePagedView extends PagedViewWithDraggableItems implements
         View.OnClickListener, View.OnKeyListener, DragSource,
         PagedViewIcon.PressedCallback, PagedViewWidget.ShortPressListener,
-        LauncherTransitionable {
+        LauncherTransitionable, HardwareLayerManager.Client {
     static final String TAG = "AppsCustomizePagedView";
 
     /**
@@ -164,6 +164,7 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
     private DragController mDragController;
     private final LayoutInflater mLayoutInflater;
     private final PackageManager mPackageManager;
+    private final PagedViewItemRecycler mItemRecycler;
 
     // Save and Restore
     private int mSaveInstanceStateItemIndex = -1;
@@ -225,6 +226,17 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
     private ArrayList<Runnable> mDeferredPrepareLoadWidgetPreviewsTasks =
         new ArrayList<Runnable>();
 
+    // The pages that a fling will bring into view, in the order that they will, which are synced
+    // one a frame by mPrefetchNextPage while the fling is running, see onFlingPrefetch()
+    private final ArrayList<Integer> mPrefetchPages = new ArrayList<Integer>();
+    private int mPrefetchFirstPage = INVALID_PAGE;
+    private int mPrefetchLastPage = INVALID_PAGE;
+    private final Runnable mPrefetchNextPage = new Runnable() {
+        public void run() {
+            prefetchNextPage();
+        }
+    };
+
     private Rect mTmpRect = new Rect();
 
     // Used for drawing shortcut previews
@@ -246,6 +258,7 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
     public AppsCustomizePagedView(Context context, AttributeSet attrs) {
         super(context, attrs);
         mLayoutInflater = LayoutInflater.from(context);
+        mItemRecycler = new PagedViewItemRecycler(mLayoutInflater);
         mPackageManager = context.getPackageManager();
         mApps = new ArrayList<ApplicationInfo>();
         mWidgets = new ArrayList<Object>();
@@ -865,6 +878,10 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         }
         mDeferredPrepareLoadWidgetPreviewsTasks.clear();
         mForceDrawAllChildrenNextFrame = !toWorkspace;
+        if (toWorkspace) {
+            // The pages are hidden, leave the layer budget to the workspace
+            l.getHardwareLayerManager().releaseLayers(this);
+        }
     }
 
     @Override
@@ -925,12 +942,24 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         for (int i = 0; i < count; i++) {
             View v = getPageAt(i);
             if (v instanceof PagedViewGridLayout) {
-                ((PagedViewGridLayout) v).removeAllViewsOnPage();
+                mItemRecycler.recycleAllViewsOnPage((PagedViewGridLayout) v);
                 mDirtyPageContent.set(i, true);
             }
         }
     }
 
+    /**
+     * Drops the icons and widgets kept around for reuse by the pages.
+     */
+    void clearRecycledViews() {
+        mItemRecycler.clear();
+    }
+
+    @Override
+    protected void unloadPage(Page layout) {
+        mItemRecycler.recycleAllViewsOnPage(layout);
+    }
+
     private void cancelAllTasks() {
         // Clean up all the async tasks
         Iterator<AppsCustomizeAsyncTask> iter = mRunningTasks.iterator();
@@ -943,11 +972,12 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
             // We've already preallocated the views for the data to load into, so clear them as well
             View v = getPageAt(task.page);
             if (v instanceof PagedViewGridLayout) {
-                ((PagedViewGridLayout) v).removeAllViewsOnPage();
+                mItemRecycler.recycleAllViewsOnPage((PagedViewGridLayout) v);
             }
         }
         mDeferredSyncWidgetPageItems.clear();
         mDeferredPrepareLoadWidgetPreviewsTasks.clear();
+        cancelPrefetch();
     }
 
     public void setContentType(ContentType type) {
@@ -1027,13 +1057,12 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         int endIndex = Math.min(startIndex + numCells, mApps.size());
         PagedViewCellLayout layout = (PagedViewCellLayout) getPageAt(page);
 
-        layout.removeAllViewsOnPage();
+        mItemRecycler.recycleAllViewsOnPage(layout);
         ArrayList<Object> items = new ArrayList<Object>();
         ArrayList<Bitmap> images = new ArrayList<Bitmap>();
         for (int i = startIndex; i < endIndex; ++i) {
             ApplicationInfo info = mApps.get(i);
-            PagedViewIcon icon = (PagedViewIcon) mLayoutInflater.inflate(
-                    R.layout.apps_customize_application, layout, false);
+            PagedViewIcon icon = mItemRecycler.obtainIcon(layout);
             icon.applyFromApplicationInfo(info, true, this);
             icon.setOnClickListener(this);
             icon.setOnLongClickListener(this);
@@ -1108,8 +1137,9 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         while (iter.hasNext()) {
             AppsCustomizeAsyncTask task = (AppsCustomizeAsyncTask) iter.next();
             int taskPage = task.page;
-            if (taskPage < getAssociatedLowerPageBound(mCurrentPage) ||
-                    taskPage > getAssociatedUpperPageBound(mCurrentPage)) {
+            if (!isPageInLoadWindow(taskPage, mCurrentPage) &&
+                    !isPageInLoadWindow(taskPage, mFlingTargetPage) &&
+                    !isPagePrefetched(taskPage)) {
                 task.cancel(false);
                 iter.remove();
             } else {
@@ -1192,8 +1222,7 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         for (int i = 0; i < items.size(); ++i) {
             Object rawInfo = items.get(i);
             PendingAddItemInfo createItemInfo = null;
-            PagedViewWidget widget = (PagedViewWidget) mLayoutInflater.inflate(
-                    R.layout.apps_customize_widget, layout, false);
+            PagedViewWidget widget = mItemRecycler.obtainWidget(layout);
             if (rawInfo instanceof AppWidgetProviderInfo) {
                 // Fill in the widget information
                 AppWidgetProviderInfo info = (AppWidgetProviderInfo) rawInfo;
@@ -1334,6 +1363,19 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
 
     @Override
     public void syncPages() {
+        // Keep the items of the pages being thrown away, the new pages will reuse them
+        int pageCount = getChildCount();
+        for (int i = 0; i < pageCount; i++) {
+            View v = getChildAt(i);
+            if (v instanceof Page) {
+                mItemRecycler.recycleAllViewsOnPage((Page) v);
+            }
+        }
+        // Forget the layers of the pages being thrown away, the new pages get theirs on the next
+        // update
+        if (mLauncher != null) {
+            mLauncher.getHardwareLayerManager().releaseLayers(this);
+        }
         removeAllViews();
         cancelAllTasks();
 
@@ -1456,7 +1498,19 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
             }
         }
 
-        enableHwLayersOnVisiblePages();
+        if (mFrameStats != null && isTrackingFrameStats()) {
+            final long start = System.nanoTime();
+            enableHwLayersOnVisiblePages();
+            mFrameStats.addSectionTime(ScrollFrameStats.SECTION_HW_LAYERS,
+                    System.nanoTime() - start);
+        } else {
+            enableHwLayersOnVisiblePages();
+        }
+    }
+
+    @Override
+    protected boolean isTrackingFrameStats() {
+        return super.isTrackingFrameStats() || mInTransition;
     }
 
     private void enableHwLayersOnVisiblePages() {
@@ -1479,24 +1533,95 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
             forceDrawScreen = leftScreen + 1;
         }
 
-        for (int i = 0; i < screenCount; i++) {
-            final View layout = (View) getPageAt(i);
-            if (!(leftScreen <= i && i <= rightScreen &&
-                    (i == forceDrawScreen || shouldDrawChild(layout)))) {
-                layout.setLayerType(LAYER_TYPE_NONE, null);
+        // Layers are only given out while the pages are showing, see onLauncherTransitionEnd()
+        if (mLauncher != null && (mInTransition || mLauncher.isAllAppsVisible())) {
+            final int count = collectLayerPages(leftScreen, rightScreen, forceDrawScreen);
+            mLauncher.getHardwareLayerManager().updateLayers(this, mLayerPages, count);
+        }
+    }
+
+    @Override
+    public void setPageLayerEnabled(View page, boolean enabled) {
+        final int layerType = enabled ? LAYER_TYPE_HARDWARE : LAYER_TYPE_NONE;
+        if (page.getLayerType() != layerType) {
+            page.setLayerType(layerType, null);
+        }
+    }
+
+    @Override
+    protected void onFlingPrefetch(int targetPage, int firstPage, int lastPage) {
+        if (!mContentIsRefreshable) return;
+
+        // Sync the pages that the fling passes, and the pages around the destination, while it
+        // runs rather than once it settles. They are synced one a frame, like the pages that
+        // loadAssociatedPages() defers, so that the start of the fling does not drop frames.
+        // The pages being scrolled away from stay loaded until loadAssociatedPages() runs for
+        // the new page, so nothing is unloaded here.
+        mPrefetchPages.clear();
+        final int lowerPageBound = Math.min(firstPage, getAssociatedLowerPageBound(targetPage));
+        final int upperPageBound = Math.max(lastPage, getAssociatedUpperPageBound(targetPage));
+        if (targetPage == lastPage) {
+            for (int i = firstPage; i <= upperPageBound; i++) {
+                mPrefetchPages.add(i);
+            }
+        } else {
+            for (int i = lastPage; i >= lowerPageBound; i--) {
+                mPrefetchPages.add(i);
             }
         }
+        mPrefetchFirstPage = lowerPageBound;
+        mPrefetchLastPage = upperPageBound;
 
-        for (int i = 0; i < screenCount; i++) {
-            final View layout = (View) getPageAt(i);
+        // Have the layer of the destination ready by the time it scrolls into view, it is kept
+        // by enableHwLayersOnVisiblePages() until the pages stop moving
+        enableHwLayersOnVisiblePages();
 
-            if (leftScreen <= i && i <= rightScreen &&
-                    (i == forceDrawScreen || shouldDrawChild(layout))) {
-                if (layout.getLayerType() != LAYER_TYPE_HARDWARE) {
-                    layout.setLayerType(LAYER_TYPE_HARDWARE, null);
+        removeCallbacks(mPrefetchNextPage);
+        postOnAnimation(mPrefetchNextPage);
+    }
+
+    private void prefetchNextPage() {
+        // Stop once the fling has settled, loadAssociatedPages() takes care of the rest
+        if (mNextPage == INVALID_PAGE || mFlingTargetPage == INVALID_PAGE || mInTransition) {
+            cancelPrefetch();
+            return;
+        }
+
+        while (!mPrefetchPages.isEmpty()) {
+            final int page = mPrefetchPages.remove(0);
+            if (page < getChildCount() && mDirtyPageContent.get(page)) {
+                syncPageItems(page, false);
+                mDirtyPageContent.set(page, false);
+                if (page == mFlingTargetPage) {
+                    final View layout = (View) getPageAt(page);
+                    if (getWindowToken() != null && !layout.isLayoutRequested() &&
+                            layout.getLayerType() == LAYER_TYPE_HARDWARE) {
+                        layout.buildLayer();
+                    }
                 }
+                break;
             }
         }
+        if (!mPrefetchPages.isEmpty()) {
+            postOnAnimation(mPrefetchNextPage);
+        }
+    }
+
+    private void cancelPrefetch() {
+        removeCallbacks(mPrefetchNextPage);
+        mPrefetchPages.clear();
+        mPrefetchFirstPage = INVALID_PAGE;
+        mPrefetchLastPage = INVALID_PAGE;
+    }
+
+    private boolean isPageInLoadWindow(int page, int windowPage) {
+        return windowPage != INVALID_PAGE && page >= getAssociatedLowerPageBound(windowPage)
+                && page <= getAssociatedUpperPageBound(windowPage);
+    }
+
+    private boolean isPagePrefetched(int page) {
+        return mPrefetchFirstPage != INVALID_PAGE && page >= mPrefetchFirstPage
+                && page <= mPrefetchLastPage;
     }
 
     protected void overScroll(float amount) {
@@ -1514,6 +1639,7 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
     @Override
     protected void onPageEndMoving() {
         super.onPageEndMoving();
+        cancelPrefetch();
         mForceDrawAllChildrenNextFrame = true;
         // We reset the save index when we change pages so that it will be recalculated on next
         // rotation
@@ -1600,6 +1726,14 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         updatePageCountsAndInvalidateData();
     }
 
+    /**
+     * Sorts the apps again after their titles changed, or the locale did.
+     */
+    public void updateAppTitles() {
+        LauncherModel.sortAppsByTitle(mApps);
+        updatePageCountsAndInvalidateData();
+    }
+
     public void reset() {
         // If we have reset, then we should not continue to restore the previous state
         mSaveInstanceStateItemIndex = -1;
@@ -1625,6 +1759,7 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         // TODO: Dump information related to current list of Applications, Widgets, etc.
         ApplicationInfo.dumpApplicationInfoList(TAG, "mApps", mApps);
         dumpAppWidgetProviderInfoList(TAG, "mWidgets", mWidgets);
+        mItemRecycler.dumpState();
     }
 
     private void dumpAppWidgetProviderInfoList(String tag, String label,
@@ -474,6 +474,7 @@ public class AppsCustomizeTabHost extends TabHost implements LauncherTransitiona
         // Clear the widget pages of all their subviews - this will trigger the widget previews
         // to delete their bitmaps
         mAppsCustomizePane.clearAllWidgetPages();
+        mAppsCustomizePane.clearRecycledViews();
     }
 
     boolean isTransitioning() {
@@ -16,75 +16,162 @@
 
 package com.android.launcher2;
 
-import android.os.Handler;
 import android.os.Looper;
-import android.os.Message;
 import android.os.MessageQueue;
-import android.util.Pair;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import android.view.Choreographer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
 
 /**
- * Queue of things to run on a looper thread.  Items posted with {@link #post} will not
- * be actually enqued on the handler until after the last one has run, to keep from
- * starving the thread.
+ * Queue of things to run on a looper thread.  Queued items are run at the start of each frame,
+ * as many as fit in the frame budget (but always at least one), so that a long queue of bind
+ * work does not starve the thread and drawing keeps up.
  *
- * This class is fifo.
+ * Items posted without a priority are run in fifo order with everything else. Items posted in a
+ * row with a priority are run highest priority first, and in fifo order within a priority.
+ * Items posted with {@link #postIdle} are only run once the looper is idle.
  */
 public class DeferredHandler {
-    private LinkedList<Pair<Runnable, Integer>> mQueue = new LinkedList<Pair<Runnable, Integer>>();
-    private MessageQueue mMessageQueue = Looper.myQueue();
-    private Impl mHandler = new Impl();
-
-    private class Impl extends Handler implements MessageQueue.IdleHandler {
-        public void handleMessage(Message msg) {
-            Pair<Runnable, Integer> p;
-            Runnable r;
-            synchronized (mQueue) {
-                if (mQueue.size() == 0) {
-                    return;
-                }
-                p = mQueue.removeFirst();
-                r = p.first;
-            }
-            r.run();
-            synchronized (mQueue) {
-                scheduleNextLocked();
+    public static final int PRIORITY_CURRENT_PAGE = 0;
+    public static final int PRIORITY_NEIGHBOR_PAGES = 1;
+    public static final int PRIORITY_OTHER_PAGES = 2;
+    public static final int PRIORITY_ALL_APPS = 3;
+    private static final int PRIORITY_COUNT = 4;
+    private static final int PRIORITY_NONE = -1;
+
+    private static final int DEFAULT_FRAME_BUDGET_MILLIS = 8;
+
+    // All of the state below is guarded by mSegments
+    private final ArrayDeque<Segment> mSegments = new ArrayDeque<Segment>();
+    // Cancelling a type bumps its generation, items posted under an older one are dropped
+    private int[] mTypeGenerations = new int[2];
+    private boolean mFramePending;
+    private boolean mIdlePending;
+
+    private long mFrameBudgetNanos = DEFAULT_FRAME_BUDGET_MILLIS * 1000000L;
+    private final MessageQueue mMessageQueue = Looper.myQueue();
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+    private final Impl mImpl = new Impl();
+
+    private static class Task {
+        final Runnable runnable;
+        final int type;
+        final int generation;
+        final boolean idle;
+
+        Task(Runnable runnable, int type, int generation, boolean idle) {
+            this.runnable = runnable;
+            this.type = type;
+            this.generation = generation;
+            this.idle = idle;
+        }
+    }
+
+    /**
+     * Either a single item posted without a priority, or a run of items posted with one.
+     */
+    private static class Segment {
+        final boolean prioritized;
+        final ArrayDeque<Task>[] queues;
+
+        @SuppressWarnings("unchecked")
+        Segment(boolean prioritized) {
+            this.prioritized = prioritized;
+            queues = new ArrayDeque[prioritized ? PRIORITY_COUNT : 1];
+        }
+
+        void add(Task task, int priority) {
+            final int index = prioritized ? priority : 0;
+            if (queues[index] == null) {
+                queues[index] = new ArrayDeque<Task>();
             }
+            queues[index].addLast(task);
         }
 
-        public boolean queueIdle() {
-            handleMessage(null);
-            return false;
+        ArrayDeque<Task> firstQueue() {
+            for (ArrayDeque<Task> queue : queues) {
+                if (queue != null && !queue.isEmpty()) {
+                    return queue;
+                }
+            }
+            return null;
         }
     }
 
-    private class IdleRunnable implements Runnable {
-        Runnable mRunnable;
-
-        IdleRunnable(Runnable r) {
-            mRunnable = r;
+    private class Impl implements Choreographer.FrameCallback, MessageQueue.IdleHandler {
+        public void doFrame(long frameTimeNanos) {
+            final long deadline = frameTimeNanos + mFrameBudgetNanos;
+            boolean ranOne = false;
+            synchronized (mSegments) {
+                mFramePending = false;
+            }
+            while (true) {
+                Task task;
+                synchronized (mSegments) {
+                    task = peekLocked();
+                    if (task == null) {
+                        return;
+                    }
+                    if (task.idle || (ranOne && System.nanoTime() >= deadline)) {
+                        scheduleNextLocked();
+                        return;
+                    }
+                    pollLocked();
+                }
+                task.runnable.run();
+                ranOne = true;
+            }
         }
 
-        public void run() {
-            mRunnable.run();
+        public boolean queueIdle() {
+            Task task;
+            synchronized (mSegments) {
+                mIdlePending = false;
+                task = peekLocked();
+                if (task == null) {
+                    return false;
+                }
+                if (!task.idle) {
+                    scheduleNextLocked();
+                    return false;
+                }
+                pollLocked();
+            }
+            task.runnable.run();
+            synchronized (mSegments) {
+                scheduleNextLocked();
+            }
+            return false;
         }
     }
 
     public DeferredHandler() {
     }
 
+    /** Sets how long queued items may run for at the start of each frame. */
+    public void setFrameBudgetMillis(int millis) {
+        mFrameBudgetNanos = millis * 1000000L;
+    }
+
     /** Schedule runnable to run after everything that's on the queue right now. */
     public void post(Runnable runnable) {
         post(runnable, 0);
     }
     public void post(Runnable runnable, int type) {
-        synchronized (mQueue) {
-            mQueue.add(new Pair<Runnable, Integer>(runnable, type));
-            if (mQueue.size() == 1) {
-                scheduleNextLocked();
-            }
+        post(runnable, type, PRIORITY_NONE, false);
+    }
+
+    /**
+     * Schedule runnable to run after everything that's on the queue right now, except for the
+     * items of lower priority that were posted with a priority since the last item without one.
+     */
+    public void post(Runnable runnable, int type, int priority) {
+        if (priority < 0 || priority >= PRIORITY_COUNT) {
+            throw new IllegalArgumentException("Invalid priority " + priority);
         }
+        post(runnable, type, priority, false);
     }
 
     /** Schedule runnable to run when the queue goes idle. */
@@ -92,55 +179,116 @@ public class DeferredHandler {
         postIdle(runnable, 0);
     }
     public void postIdle(final Runnable runnable, int type) {
-        post(new IdleRunnable(runnable), type);
+        post(runnable, type, PRIORITY_NONE, true);
     }
 
-    public void cancelRunnable(Runnable runnable) {
-        synchronized (mQueue) {
-            while (mQueue.remove(runnable)) { }
+    private void post(Runnable runnable, int type, int priority, boolean idle) {
+        synchronized (mSegments) {
+            final Task task = new Task(runnable, type, getGenerationLocked(type), idle);
+            final boolean prioritized = priority != PRIORITY_NONE;
+            Segment segment = mSegments.peekLast();
+            if (!prioritized || segment == null || !segment.prioritized) {
+                segment = new Segment(prioritized);
+                mSegments.addLast(segment);
+            }
+            segment.add(task, priority);
+            scheduleNextLocked();
         }
     }
-    public void cancelAllRunnablesOfType(int type) {
-        synchronized (mQueue) {
-            ListIterator<Pair<Runnable, Integer>> iter = mQueue.listIterator();
-            Pair<Runnable, Integer> p;
-            while (iter.hasNext()) {
-                p = iter.next();
-                if (p.second == type) {
-                    iter.remove();
+
+    public void cancelRunnable(Runnable runnable) {
+        synchronized (mSegments) {
+            for (Segment segment : mSegments) {
+                for (ArrayDeque<Task> queue : segment.queues) {
+                    if (queue == null) continue;
+                    final Iterator<Task> iter = queue.iterator();
+                    while (iter.hasNext()) {
+                        if (iter.next().runnable == runnable) {
+                            iter.remove();
+                        }
+                    }
                 }
             }
         }
     }
 
+    public void cancelAllRunnablesOfType(int type) {
+        synchronized (mSegments) {
+            getGenerationLocked(type);
+            mTypeGenerations[type]++;
+        }
+    }
+
     public void cancel() {
-        synchronized (mQueue) {
-            mQueue.clear();
+        synchronized (mSegments) {
+            mSegments.clear();
         }
     }
 
     /** Runs all queued Runnables from the calling thread. */
     public void flush() {
-        LinkedList<Pair<Runnable, Integer>> queue = new LinkedList<Pair<Runnable, Integer>>();
-        synchronized (mQueue) {
-            queue.addAll(mQueue);
-            mQueue.clear();
+        final ArrayList<Runnable> runnables = new ArrayList<Runnable>();
+        synchronized (mSegments) {
+            Task task;
+            while ((task = peekLocked()) != null) {
+                pollLocked();
+                runnables.add(task.runnable);
+            }
+        }
+        for (Runnable r : runnables) {
+            r.run();
         }
-        for (Pair<Runnable, Integer> p : queue) {
-            p.first.run();
+    }
+
+    private int getGenerationLocked(int type) {
+        if (type >= mTypeGenerations.length) {
+            final int[] generations = new int[type + 1];
+            System.arraycopy(mTypeGenerations, 0, generations, 0, mTypeGenerations.length);
+            mTypeGenerations = generations;
         }
+        return mTypeGenerations[type];
+    }
+
+    /**
+     * Returns the next item to run, dropping the cancelled ones in front of it.
+     */
+    private Task peekLocked() {
+        while (!mSegments.isEmpty()) {
+            final ArrayDeque<Task> queue = mSegments.peekFirst().firstQueue();
+            if (queue == null) {
+                mSegments.removeFirst();
+                continue;
+            }
+            final Task task = queue.peekFirst();
+            if (task.generation != mTypeGenerations[task.type]) {
+                queue.removeFirst();
+                continue;
+            }
+            return task;
+        }
+        return null;
+    }
+
+    /**
+     * Removes the item last returned by peekLocked().
+     */
+    private void pollLocked() {
+        mSegments.peekFirst().firstQueue().removeFirst();
     }
 
     void scheduleNextLocked() {
-        if (mQueue.size() > 0) {
-            Pair<Runnable, Integer> p = mQueue.getFirst();
-            Runnable peek = p.first;
-            if (peek instanceof IdleRunnable) {
-                mMessageQueue.addIdleHandler(mHandler);
-            } else {
-                mHandler.sendEmptyMessage(1);
+        final Task task = peekLocked();
+        if (task == null) {
+            return;
+        }
+        if (task.idle) {
+            if (!mIdlePending) {
+                mIdlePending = true;
+                mMessageQueue.addIdleHandler(mImpl);
             }
+        } else if (!mFramePending) {
+            mFramePending = true;
+            mChoreographer.postFrameCallback(mImpl);
         }
     }
 }
-
@@ -50,6 +50,7 @@ import com.android.launcher2.FolderInfo.FolderListener;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 
 /**
  * Represents a set of icons chosen by the user or generated by the system.
@@ -109,6 +110,10 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
 
     private boolean mDestroyed;
 
+    // Whether the views for mInfo's contents have been created. They are only created once the
+    // folder is first opened, and may be dropped again under memory pressure once it is closed.
+    private boolean mViewsBound = false;
+
     /**
      * Used to inflate the Workspace from XML.
      *
@@ -328,7 +333,11 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
         }
     }
 
-    private void placeInReadingOrder(ArrayList<ShortcutInfo> items) {
+    /**
+     * Assigns the items consecutive cells in reading order. Returns the items whose cell changed.
+     */
+    private ArrayList<ShortcutInfo> placeInReadingOrder(ArrayList<ShortcutInfo> items) {
+        ArrayList<ShortcutInfo> moved = new ArrayList<ShortcutInfo>();
         int maxX = 0;
         int count = items.size();
         for (int i = 0; i < count; i++) {
@@ -345,14 +354,63 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
             int x = i % countX;
             int y = i / countX;
             ShortcutInfo item = items.get(i);
-            item.cellX = x;
-            item.cellY = y;
+            if (item.cellX != x || item.cellY != y) {
+                item.cellX = x;
+                item.cellY = y;
+                moved.add(item);
+            }
         }
+        return moved;
     }
 
+    /**
+     * Binds the folder to its data. No views are created for the contents until the folder is
+     * opened, see {@link #bindViewsIfNeeded()}.
+     */
     void bind(FolderInfo info) {
         mInfo = info;
+        mViewsBound = false;
         ArrayList<ShortcutInfo> children = info.contents;
+        setupContentForNumItems(children.size());
+        ArrayList<ShortcutInfo> moved = placeInReadingOrder(children);
+
+        // If our folder has too many items we prune them from the list. This is an issue
+        // when upgrading from the old Folders implementation which could contain an unlimited
+        // number of items.
+        ArrayList<ShortcutInfo> overflow = new ArrayList<ShortcutInfo>();
+        final int capacity = mContent.getCountX() * mContent.getCountY();
+        for (int i = capacity; i < children.size(); i++) {
+            overflow.add(children.get(i));
+        }
+        for (ShortcutInfo item: overflow) {
+            mInfo.remove(item);
+            moved.remove(item);
+            LauncherModel.deleteItemFromDatabase(mLauncher, item);
+        }
+        setupContentForNumItems(children.size());
+
+        mItemsInvalidated = true;
+        mInfo.addListener(this);
+
+        if (!sDefaultFolderName.contentEquals(mInfo.title)) {
+            mFolderName.setText(mInfo.title);
+        } else {
+            mFolderName.setText("");
+        }
+        for (ShortcutInfo item: moved) {
+            LauncherModel.addOrMoveItemInDatabase(mLauncher, item, mInfo.id, 0,
+                    item.cellX, item.cellY);
+        }
+    }
+
+    /**
+     * Creates the views for the folder contents, if they don't exist yet.
+     */
+    void bindViewsIfNeeded() {
+        if (mViewsBound) return;
+        mViewsBound = true;
+
+        ArrayList<ShortcutInfo> children = mInfo.contents;
         ArrayList<ShortcutInfo> overflow = new ArrayList<ShortcutInfo>();
         setupContentForNumItems(children.size());
         placeInReadingOrder(children);
@@ -369,9 +427,6 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
         // We rearrange the items in case there are any empty gaps
         setupContentForNumItems(count);
 
-        // If our folder has too many items we prune them from the list. This is an issue 
-        // when upgrading from the old Folders implementation which could contain an unlimited
-        // number of items.
         for (ShortcutInfo item: overflow) {
             mInfo.remove(item);
             LauncherModel.deleteItemFromDatabase(mLauncher, item);
@@ -379,14 +434,28 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
 
         mItemsInvalidated = true;
         updateTextViewFocus();
-        mInfo.addListener(this);
+        updateItemLocationsInDatabase();
+    }
 
-        if (!sDefaultFolderName.contentEquals(mInfo.title)) {
-            mFolderName.setText(mInfo.title);
-        } else {
-            mFolderName.setText("");
+    /**
+     * Drops the views for the folder contents if the folder is closed and not involved in a
+     * drag. They are recreated from mInfo the next time the folder is opened.
+     *
+     * @return whether the views were dropped
+     */
+    boolean unbindViewsIfClosed() {
+        if (!mViewsBound || mInfo.opened || getParent() != null || mDragInProgress
+                || mDestroyed) {
+            return false;
         }
-        updateItemLocationsInDatabase();
+        mContent.removeAllViews();
+        mViewsBound = false;
+        mItemsInvalidated = true;
+        return true;
+    }
+
+    boolean isViewsBound() {
+        return mViewsBound;
     }
 
     /**
@@ -413,6 +482,7 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
     }
 
     public void animateOpen() {
+        bindViewsIfNeeded();
         positionAndSizeAsIcon();
 
         if (!(getParent() instanceof DragLayer)) return;
@@ -495,8 +565,12 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
     void notifyDataSetChanged() {
         // recreate all the children if the data set changes under us. We may want to do this more
         // intelligently (ie just removing the views that should no longer exist)
+        final boolean viewsBound = mViewsBound;
         mContent.removeAllViewsInLayout();
         bind(mInfo);
+        if (viewsBound) {
+            bindViewsIfNeeded();
+        }
     }
 
     public boolean acceptDrop(DragObject d) {
@@ -732,6 +806,7 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
     }
 
     private void updateItemLocationsInDatabase() {
+        if (!mViewsBound) return;
         ArrayList<View> list = getItemsInReadingOrder();
         for (int i = 0; i < list.size(); i++) {
             View v = list.get(i);
@@ -905,6 +980,9 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
     }
 
     public int getItemCount() {
+        if (!mViewsBound) {
+            return mInfo.contents.size();
+        }
         return mContent.getShortcutsAndWidgets().getChildCount();
     }
 
@@ -936,6 +1014,9 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
     }
 
     private void replaceFolderWithFinalItem() {
+        // The destroy animation starts from the view of the remaining item
+        bindViewsIfNeeded();
+
         // Add the last remaining child to the workspace in place of the folder
         Runnable onCompleteRunnable = new Runnable() {
             @Override
@@ -1028,11 +1109,15 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
     // to correspond to the animation of the icon back into the folder. This is
     public void hideItem(ShortcutInfo info) {
         View v = getViewForInfo(info);
-        v.setVisibility(INVISIBLE);
+        if (v != null) {
+            v.setVisibility(INVISIBLE);
+        }
     }
     public void showItem(ShortcutInfo info) {
         View v = getViewForInfo(info);
-        v.setVisibility(VISIBLE);
+        if (v != null) {
+            v.setVisibility(VISIBLE);
+        }
     }
 
     public void onAdd(ShortcutInfo item) {
@@ -1040,6 +1125,19 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
         // If the item was dropped onto this open folder, we have done the work associated
         // with adding the item to the folder, as indicated by mSuppressOnAdd being set
         if (mSuppressOnAdd) return;
+        if (!mViewsBound) {
+            // Without views, the item just goes after the others in reading order
+            int lastCellY = -1;
+            for (ShortcutInfo info: mInfo.contents) {
+                if (info != item) {
+                    lastCellY = Math.max(lastCellY, info.cellY);
+                }
+            }
+            item.cellX = 0;
+            item.cellY = lastCellY + 1;
+            arrangeItemsWithoutViews(item);
+            return;
+        }
         if (!findAndSetEmptyCells(item)) {
             // The current layout is full, can we expand it?
             setupContentForNumItems(getItemCount() + 1);
@@ -1055,6 +1153,13 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
         // If this item is being dragged from this open folder, we have already handled
         // the work associated with removing the item, so we don't have to do anything here.
         if (item == mCurrentDragInfo) return;
+        if (!mViewsBound) {
+            arrangeItemsWithoutViews(null);
+            if (getItemCount() <= 1) {
+                replaceFolderWithFinalItem();
+            }
+            return;
+        }
         View v = getViewForInfo(item);
         mContent.removeView(v);
         if (mState == STATE_ANIMATING) {
@@ -1067,11 +1172,60 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
         }
     }
 
+    /**
+     * The counterpart of arrangeChildren for a folder without views: closes up any gaps in the
+     * reading order of mInfo's contents and saves the items that moved, along with added, if
+     * it is not null.
+     */
+    private void arrangeItemsWithoutViews(ShortcutInfo added) {
+        setupContentForNumItems(getItemCount());
+        ArrayList<ShortcutInfo> moved = placeInReadingOrder(mInfo.contents);
+        if (added != null && !moved.contains(added)) {
+            moved.add(added);
+        }
+        for (ShortcutInfo info: moved) {
+            LauncherModel.addOrMoveItemInDatabase(mLauncher, info, mInfo.id, 0,
+                    info.cellX, info.cellY);
+        }
+    }
+
+    /**
+     * Updates the text of the views of the given items, whose titles have changed.
+     */
+    void updateItemTitles(HashSet<ShortcutInfo> items) {
+        for (int j = 0; j < mContent.getCountY(); j++) {
+            for (int i = 0; i < mContent.getCountX(); i++) {
+                View v = mContent.getChildAt(i, j);
+                if (v != null && items.contains(v.getTag())) {
+                    ((TextView) v).setText(((ShortcutInfo) v.getTag()).title);
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the icons and titles of the views of the given items, after their icons changed.
+     */
+    void updateItemIcons(HashSet<ShortcutInfo> items) {
+        for (int j = 0; j < mContent.getCountY(); j++) {
+            for (int i = 0; i < mContent.getCountX(); i++) {
+                View v = mContent.getChildAt(i, j);
+                if (v != null && items.contains(v.getTag())) {
+                    final ShortcutInfo item = (ShortcutInfo) v.getTag();
+                    final TextView textView = (TextView) v;
+                    textView.setCompoundDrawablesWithIntrinsicBounds(null,
+                            new FastBitmapDrawable(item.getIcon(mIconCache)), null, null);
+                    textView.setText(item.title);
+                }
+            }
+        }
+    }
+
     private View getViewForInfo(ShortcutInfo item) {
         for (int j = 0; j < mContent.getCountY(); j++) {
             for (int i = 0; i < mContent.getCountX(); i++) {
                 View v = mContent.getChildAt(i, j);
-                if (v.getTag() == item) {
+                if (v != null && v.getTag() == item) {
                     return v;
                 }
             }
@@ -22,6 +22,7 @@ import android.animation.ValueAnimator;
 import android.animation.ValueAnimator.AnimatorUpdateListener;
 import android.content.Context;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.PorterDuff;
@@ -52,6 +53,7 @@ public class FolderIcon extends LinearLayout implements FolderListener {
     private Launcher mLauncher;
     private Folder mFolder;
     private FolderInfo mInfo;
+    private IconCache mIconCache;
     private static boolean sStaticValuesDirty = true;
 
     private CheckLongPressHelper mLongPressHelper;
@@ -99,6 +101,12 @@ public class FolderIcon extends LinearLayout implements FolderListener {
     private PreviewItemDrawingParams mAnimParams = new PreviewItemDrawingParams(0, 0, 0, 0);
     private ArrayList<ShortcutInfo> mHiddenItems = new ArrayList<ShortcutInfo>();
 
+    // The preview items are rendered once into this bitmap, which is then drawn on every frame
+    // until the folder contents change
+    private Bitmap mPreviewBitmap;
+    private final Canvas mPreviewCanvas = new Canvas();
+    private boolean mPreviewDirty = true;
+
     public FolderIcon(Context context, AttributeSet attrs) {
         super(context, attrs);
         init();
@@ -140,6 +148,7 @@ public class FolderIcon extends LinearLayout implements FolderListener {
         icon.setOnClickListener(launcher);
         icon.mInfo = folderInfo;
         icon.mLauncher = launcher;
+        icon.mIconCache = iconCache;
         icon.setContentDescription(String.format(launcher.getString(R.string.folder_name_format),
                 folderInfo.title));
         Folder folder = Folder.fromXml(launcher);
@@ -403,11 +412,12 @@ public class FolderIcon extends LinearLayout implements FolderListener {
             addItem(item);
             mHiddenItems.add(item);
             mFolder.hideItem(item);
+            invalidatePreview();
             postDelayed(new Runnable() {
                 public void run() {
                     mHiddenItems.remove(item);
                     mFolder.showItem(item);
-                    invalidate();
+                    invalidatePreview();
                 }
             }, DROP_IN_ANIMATION_DURATION);
         } else {
@@ -451,6 +461,7 @@ public class FolderIcon extends LinearLayout implements FolderListener {
 
             mPreviewOffsetX = (mTotalWidth - mAvailableSpaceInPreview) / 2;
             mPreviewOffsetY = previewPadding;
+            mPreviewDirty = true;
         }
     }
 
@@ -537,33 +548,90 @@ public class FolderIcon extends LinearLayout implements FolderListener {
         if (mFolder == null) return;
         if (mFolder.getItemCount() == 0 && !mAnimating) return;
 
-        ArrayList<View> items = mFolder.getItemsInReadingOrder();
-        Drawable d;
-        TextView v;
-
-        // Update our drawing parameters if necessary
         if (mAnimating) {
+            // The item being animated moves on every frame, so it is drawn directly
             computePreviewDrawingParams(mAnimParams.drawable);
+            drawPreviewItem(canvas, mAnimParams);
         } else {
-            v = (TextView) items.get(0);
-            d = v.getCompoundDrawables()[1];
-            computePreviewDrawingParams(d);
-        }
+            // Until the folder is first opened it has no views, so the preview is drawn from
+            // the icons of its contents, which are kept in reading order
+            final boolean viewsBound = mFolder.isViewsBound();
+            final ArrayList<View> items = viewsBound ? mFolder.getItemsInReadingOrder() : null;
+            if (viewsBound) {
+                computePreviewDrawingParams(((TextView) items.get(0)).getCompoundDrawables()[1]);
+            } else {
+                computePreviewDrawingParams(mInfo.contents.get(0).getIcon(mIconCache).getWidth(),
+                        getMeasuredWidth());
+            }
 
-        int nItemsInPreview = Math.min(items.size(), NUM_ITEMS_IN_PREVIEW);
-        if (!mAnimating) {
-            for (int i = nItemsInPreview - 1; i >= 0; i--) {
-                v = (TextView) items.get(i);
-                if (!mHiddenItems.contains(v.getTag())) {
-                    d = v.getCompoundDrawables()[1];
-                    mParams = computePreviewItemDrawingParams(i, mParams);
-                    mParams.drawable = d;
-                    drawPreviewItem(canvas, mParams);
-                }
+            final int left = mPreviewOffsetX - FolderRingAnimator.sPreviewPadding;
+            if (mPreviewDirty || mPreviewBitmap == null) {
+                renderPreview(items, left, 0);
             }
+            canvas.drawBitmap(mPreviewBitmap, left, 0, null);
+        }
+    }
+
+    /**
+     * Draws the first few items of the folder into mPreviewBitmap, whose top left corner is at
+     * the given position within this view. If items is null, the icons are taken from mInfo.
+     */
+    private void renderPreview(ArrayList<View> items, int left, int top) {
+        final int previewSize = FolderRingAnimator.sPreviewSize;
+        if (mPreviewBitmap == null || mPreviewBitmap.getWidth() != previewSize
+                || mPreviewBitmap.getHeight() != previewSize) {
+            // The old bitmap is left to the GC, it may still be drawn by a pending frame
+            mPreviewBitmap = Bitmap.createBitmap(previewSize, previewSize,
+                    Bitmap.Config.ARGB_8888);
         } else {
-            drawPreviewItem(canvas, mAnimParams);
+            mPreviewBitmap.eraseColor(0);
         }
+
+        final Canvas canvas = mPreviewCanvas;
+        canvas.setBitmap(mPreviewBitmap);
+        canvas.save();
+        canvas.translate(-left, -top);
+        final int itemCount = items != null ? items.size() : mInfo.contents.size();
+        int nItemsInPreview = Math.min(itemCount, NUM_ITEMS_IN_PREVIEW);
+        for (int i = nItemsInPreview - 1; i >= 0; i--) {
+            final Object tag;
+            final Drawable d;
+            if (items != null) {
+                TextView v = (TextView) items.get(i);
+                tag = v.getTag();
+                d = v.getCompoundDrawables()[1];
+            } else {
+                ShortcutInfo info = mInfo.contents.get(i);
+                tag = info;
+                d = new FastBitmapDrawable(info.getIcon(mIconCache));
+            }
+            if (!mHiddenItems.contains(tag)) {
+                mParams = computePreviewItemDrawingParams(i, mParams);
+                mParams.drawable = d;
+                drawPreviewItem(canvas, mParams);
+            }
+        }
+        canvas.restore();
+        canvas.setBitmap(null);
+        mParams.drawable = null;
+        mPreviewDirty = false;
+    }
+
+    /**
+     * Marks the rendered preview as stale, so that it is redrawn on the next frame.
+     */
+    void invalidatePreview() {
+        mPreviewDirty = true;
+        invalidate();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        // Not recycled, since the view may still be drawn after it is detached, as when it is
+        // moved to the drag layer during a drop
+        mPreviewBitmap = null;
+        mPreviewDirty = true;
     }
 
     private void animateFirstItem(final Drawable d, int duration, final boolean reverse,
@@ -598,6 +666,7 @@ public class FolderIcon extends LinearLayout implements FolderListener {
             @Override
             public void onAnimationEnd(Animator animation) {
                 mAnimating = false;
+                invalidatePreview();
                 if (onCompleteRunnable != null) {
                     onCompleteRunnable.run();
                 }
@@ -620,17 +689,17 @@ public class FolderIcon extends LinearLayout implements FolderListener {
     }
 
     public void onItemsChanged() {
-        invalidate();
+        invalidatePreview();
         requestLayout();
     }
 
     public void onAdd(ShortcutInfo item) {
-        invalidate();
+        invalidatePreview();
         requestLayout();
     }
 
     public void onRemove(ShortcutInfo item) {
-        invalidate();
+        invalidatePreview();
         requestLayout();
     }
 
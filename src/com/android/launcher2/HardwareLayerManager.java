@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.util.DisplayMetrics;
+import android.view.View;
+
+import com.android.launcher.R;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Decides which pages of the workspace and of all apps get hardware layers, so that the memory
+ * used by all of the page layers together stays within a budget that depends on the device.
+ *
+ * Each client asks for layers on its pages in order of importance, and gets them in that order
+ * for as long as they fit. A client that asks for a layer that does not fit takes just enough
+ * layers from the other clients to make room, least recently used first, so that the layers of
+ * a surface that is shown again soon, as in a transition back and forth, are mostly still there.
+ */
+class HardwareLayerManager implements MemoryPressureCoordinator.Cache {
+    interface Client {
+        void setPageLayerEnabled(View page, boolean enabled);
+    }
+
+    // Devices with less memory than this per app get one less screen worth of layers
+    private static final int LOW_MEMORY_CLASS_MB = 64;
+
+    private static class Layer {
+        Client client;
+        View page;
+        long bytes;
+        boolean wanted;
+        // The update in which the client last asked for the layer
+        long lastUsed;
+    }
+
+    private final ArrayList<Layer> mLayers = new ArrayList<Layer>();
+    private final ArrayList<Layer> mFreeLayers = new ArrayList<Layer>();
+    private final long mScreenBytes;
+    private final long mBudgetBytes;
+    private long mUsedBytes;
+    // Counts the calls to updateLayers(), for the least recently used order of the layers
+    private long mUpdateCount;
+
+    private long mPeakBytes;
+    private int mGrantedCount;
+    private int mDeniedCount;
+    private int mRevokedCount;
+    private int mTrimCount;
+
+    HardwareLayerManager(Context context) {
+        final DisplayMetrics dm = context.getResources().getDisplayMetrics();
+        mScreenBytes = 4L * dm.widthPixels * dm.heightPixels;
+
+        int screens = context.getResources().getInteger(
+                R.integer.config_hardwareLayerBudgetScreens);
+        final ActivityManager am =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am.getMemoryClass() < LOW_MEMORY_CLASS_MB) {
+            screens = Math.max(2, screens - 1);
+        }
+        mBudgetBytes = mScreenBytes * screens;
+    }
+
+    /**
+     * Gives layers to the first count pages, in that order, for as long as they fit in the
+     * budget, and takes them away from all of the other pages of the client.
+     */
+    void updateLayers(Client client, View[] pages, int count) {
+        mUpdateCount++;
+        // Drop the layers that the client no longer wants first, to make room
+        for (int i = 0; i < count; i++) {
+            final Layer layer = findLayer(client, pages[i]);
+            if (layer != null) {
+                layer.wanted = true;
+            }
+        }
+        for (int i = mLayers.size() - 1; i >= 0; i--) {
+            final Layer layer = mLayers.get(i);
+            if (layer.client == client) {
+                if (layer.wanted) {
+                    layer.wanted = false;
+                } else {
+                    release(i);
+                }
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            final View page = pages[i];
+            final long bytes = getLayerBytes(page);
+            final Layer layer = findLayer(client, page);
+            if (layer != null) {
+                // The page may have been resized since it got its layer
+                mUsedBytes += bytes - layer.bytes;
+                layer.bytes = bytes;
+                layer.lastUsed = mUpdateCount;
+                // Pages drop their layer on their own when their views are removed, so set it
+                // again, which does nothing if the page still has it
+                client.setPageLayerEnabled(page, true);
+                continue;
+            }
+            if (mUsedBytes + bytes > mBudgetBytes) {
+                evictOtherClients(client, mUsedBytes + bytes - mBudgetBytes);
+            }
+            if (mUsedBytes + bytes > mBudgetBytes) {
+                mDeniedCount++;
+                continue;
+            }
+            grant(client, page, bytes);
+        }
+        mPeakBytes = Math.max(mPeakBytes, mUsedBytes);
+    }
+
+    /**
+     * Takes away all of the layers of the given client.
+     */
+    void releaseLayers(Client client) {
+        for (int i = mLayers.size() - 1; i >= 0; i--) {
+            if (mLayers.get(i).client == client) {
+                release(i);
+            }
+        }
+    }
+
+    /**
+     * Takes away all of the layers once memory is running low; clients get them back the next
+     * time they ask for them.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mTrimCount++;
+            for (int i = mLayers.size() - 1; i >= 0; i--) {
+                release(i);
+            }
+        }
+    }
+
+    boolean hasLayer(Client client, View page) {
+        return findLayer(client, page) != null;
+    }
+
+    public long getSizeBytes() {
+        return mUsedBytes;
+    }
+
+    void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "Hardware layers: count=" + mLayers.size()
+                + " used=" + (mUsedBytes / 1024) + "KB budget=" + (mBudgetBytes / 1024)
+                + "KB peak=" + (mPeakBytes / 1024) + "KB granted=" + mGrantedCount
+                + " denied=" + mDeniedCount + " revoked=" + mRevokedCount
+                + " trims=" + mTrimCount);
+    }
+
+    private long getLayerBytes(View page) {
+        final long bytes = 4L * page.getWidth() * page.getHeight();
+        // Pages that have not been laid out yet will be about the size of the screen
+        return bytes > 0 ? bytes : mScreenBytes;
+    }
+
+    private Layer findLayer(Client client, View page) {
+        for (int i = 0; i < mLayers.size(); i++) {
+            final Layer layer = mLayers.get(i);
+            if (layer.page == page && layer.client == client) {
+                return layer;
+            }
+        }
+        return null;
+    }
+
+    private void grant(Client client, View page, long bytes) {
+        final int free = mFreeLayers.size();
+        final Layer layer = free > 0 ? mFreeLayers.remove(free - 1) : new Layer();
+        layer.client = client;
+        layer.page = page;
+        layer.bytes = bytes;
+        layer.lastUsed = mUpdateCount;
+        mLayers.add(layer);
+        mUsedBytes += bytes;
+        mGrantedCount++;
+        client.setPageLayerEnabled(page, true);
+    }
+
+    private void release(int index) {
+        final Layer layer = mLayers.remove(index);
+        mUsedBytes -= layer.bytes;
+        layer.client.setPageLayerEnabled(layer.page, false);
+        layer.client = null;
+        layer.page = null;
+        layer.wanted = false;
+        mFreeLayers.add(layer);
+    }
+
+    /**
+     * Takes layers away from the clients other than the given one, least recently used first,
+     * until at least the given number of bytes are freed or they have none left.
+     */
+    private void evictOtherClients(Client client, long bytesNeeded) {
+        while (bytesNeeded > 0) {
+            int oldest = -1;
+            for (int i = 0; i < mLayers.size(); i++) {
+                final Layer layer = mLayers.get(i);
+                if (layer.client != client &&
+                        (oldest < 0 || layer.lastUsed < mLayers.get(oldest).lastUsed)) {
+                    oldest = i;
+                }
+            }
+            if (oldest < 0) {
+                return;
+            }
+            bytesNeeded -= mLayers.get(oldest).bytes;
+            release(oldest);
+            mRevokedCount++;
+        }
+    }
+}
@@ -43,6 +43,42 @@ public class HolographicOutlineHelper {
     private static final int MEDIUM = 1;
     private static final int EXTRA_THICK = 2;
 
+    /** Blurs are rendered by Skia through BlurMaskFilter and Bitmap.extractAlpha. */
+    static final int BLUR_BACKEND_MASK_FILTER = 0;
+    /** Blurs are rendered by {@link AlphaBlur} directly on the pixels of the bitmap. */
+    static final int BLUR_BACKEND_SOFTWARE = 1;
+    /** Blurs are rendered in software when {@link #useSoftwareBlur} allows it. */
+    static final int BLUR_BACKEND_AUTO = 2;
+
+    private static final int DEFAULT_BLUR_BACKEND = BLUR_BACKEND_AUTO;
+
+    // The largest bitmap blurred in software by the auto backend, which covers the outlines of
+    // icons and small widgets and bounds the shared scratch planes to about 600KB
+    private static final int MAX_SOFTWARE_BLUR_PIXELS = 256 * 256;
+
+    // The software blur only pays off when its passes can be split across cores
+    private static final boolean SOFTWARE_BLUR_CAPABLE =
+            Runtime.getRuntime().availableProcessors() > 1;
+
+    // Pixels whose alpha is below this are ignored when defining the shape of the object
+    private static final int CLIP_ALPHA_THRESHOLD = 188;
+
+    // Radii in dp of the outer glow, bright outline and inner glow, indexed by thickness
+    private static final float[] OUTER_BLUR_RADII = { 6.0f, 2.0f, 12.0f };
+    private static final float[] BRIGHT_OUTLINE_RADII = { 1.0f, 1.0f, 2.0f };
+    private static final float[] INNER_BLUR_RADII = { 4.0f, 2.0f, 6.0f };
+
+    // Scratch planes shared by every helper, guarded by sSoftwareBlur
+    private static final AlphaBlur sSoftwareBlur = new AlphaBlur(true);
+    private static int[] sPixels;
+    private static byte[] sShape;
+    private static byte[] sOuterBlur;
+    private static byte[] sBrightOutline;
+    private static byte[] sInnerBlur;
+    private static byte[] sInverted;
+
+    private int mBlurBackend = DEFAULT_BLUR_BACKEND;
+
     static {
         final float scale = LauncherApplication.getScreenDensity();
 
@@ -68,6 +104,54 @@ public class HolographicOutlineHelper {
         mErasePaint.setAntiAlias(true);
     }
 
+    void setBlurBackend(int backend) {
+        mBlurBackend = backend;
+    }
+
+    int getBlurBackend() {
+        return mBlurBackend;
+    }
+
+    /**
+     * Returns whether the outline of a bitmap of the given size is blurred in software.
+     */
+    boolean useSoftwareBlur(int width, int height) {
+        switch (mBlurBackend) {
+            case BLUR_BACKEND_SOFTWARE:
+                return true;
+            case BLUR_BACKEND_AUTO:
+                return SOFTWARE_BLUR_CAPABLE && width * height <= MAX_SOFTWARE_BLUR_PIXELS;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Releases the scratch buffers used by the software blur backend.
+     */
+    static void trimSoftwareBlurBuffers() {
+        synchronized (sSoftwareBlur) {
+            sSoftwareBlur.trim();
+            sPixels = null;
+            sShape = null;
+            sOuterBlur = null;
+            sBrightOutline = null;
+            sInnerBlur = null;
+            sInverted = null;
+        }
+    }
+
+    /**
+     * Returns the number of bytes held by the scratch buffers of the software blur backend.
+     */
+    static long getSoftwareBlurByteCount() {
+        synchronized (sSoftwareBlur) {
+            // One int plane and five byte planes
+            final long planes = sPixels == null ? 0 : sPixels.length * (4L + 5L);
+            return planes + sSoftwareBlur.getScratchByteCount();
+        }
+    }
+
     /**
      * Returns the interpolated holographic highlight alpha for the effect we want when scrolling
      * pages.
@@ -100,6 +184,11 @@ public class HolographicOutlineHelper {
     }
     void applyExpensiveOutlineWithBlur(Bitmap srcDst, Canvas srcDstCanvas, int color,
             int outlineColor, boolean clipAlpha, int thickness) {
+        if (useSoftwareBlur(srcDst.getWidth(), srcDst.getHeight())) {
+            applySoftwareOutlineWithBlur(srcDst, srcDstCanvas, color, outlineColor, clipAlpha,
+                    thickness);
+            return;
+        }
 
         // We start by removing most of the alpha channel so as to ignore shadows, and
         // other types of partial transparency when defining the shape of the object
@@ -109,7 +198,7 @@ public class HolographicOutlineHelper {
                     0, srcDst.getWidth(), 0, 0, srcDst.getWidth(), srcDst.getHeight());
             for (int i = 0; i < srcBuffer.length; i++) {
                 final int alpha = srcBuffer[i] >>> 24;
-                if (alpha < 188) {
+                if (alpha < CLIP_ALPHA_THRESHOLD) {
                     srcBuffer[i] = 0;
                 }
             }
@@ -197,6 +286,107 @@ public class HolographicOutlineHelper {
         glowShape.recycle();
     }
 
+    /**
+     * Produces the same outline as the BlurMaskFilter path, but computes every blur on the alpha
+     * channel in Java with {@link AlphaBlur} instead of going through software Canvas layers.
+     */
+    private void applySoftwareOutlineWithBlur(Bitmap srcDst, Canvas srcDstCanvas, int color,
+            int outlineColor, boolean clipAlpha, int thickness) {
+        if (thickness != EXTRA_THICK && thickness != THICK && thickness != MEDIUM) {
+            throw new RuntimeException("Invalid blur thickness");
+        }
+        final float scale = LauncherApplication.getScreenDensity();
+        final int width = srcDst.getWidth();
+        final int height = srcDst.getHeight();
+        final int size = width * height;
+
+        synchronized (sSoftwareBlur) {
+            if (sPixels == null || sPixels.length < size) {
+                sPixels = new int[size];
+                sShape = new byte[size];
+                sOuterBlur = new byte[size];
+                sBrightOutline = new byte[size];
+                sInnerBlur = new byte[size];
+                sInverted = new byte[size];
+            }
+            final int[] pixels = sPixels;
+            final byte[] shape = sShape;
+            final byte[] outer = sOuterBlur;
+            final byte[] bright = sBrightOutline;
+            final byte[] inner = sInnerBlur;
+            final byte[] inverted = sInverted;
+
+            // Extract the shape of the object, ignoring shadows and other partial transparency
+            srcDst.getPixels(pixels, 0, width, 0, 0, width, height);
+            for (int i = 0; i < size; i++) {
+                final int alpha = pixels[i] >>> 24;
+                shape[i] = (byte) (clipAlpha && alpha < CLIP_ALPHA_THRESHOLD ? 0 : alpha);
+            }
+
+            sSoftwareBlur.blur(shape, outer, width, height, scale * OUTER_BLUR_RADII[thickness]);
+            sSoftwareBlur.blur(shape, bright, width, height,
+                    scale * BRIGHT_OUTLINE_RADII[thickness]);
+
+            // The inner glow is a blur of the inverted shape
+            for (int i = 0; i < size; i++) {
+                inverted[i] = (byte) (255 - (shape[i] & 0xff));
+            }
+            sSoftwareBlur.blur(inverted, inner, width, height,
+                    scale * INNER_BLUR_RADII[thickness]);
+
+            // Mask the glows against the shape and composite them the same way the canvas
+            // would: inner glow, then outer glow, in color, then the bright outline on top
+            final int colorAlpha = color >>> 24;
+            final int outlineAlpha = outlineColor >>> 24;
+            for (int i = 0; i < size; i++) {
+                final int a = shape[i] & 0xff;
+                final int innerMask = ((inner[i] & 0xff) * a + 127) / 255;
+                final int outerMask = ((outer[i] & 0xff) * (255 - a) + 127) / 255;
+                final int brightMask = ((bright[i] & 0xff) * (255 - a) + 127) / 255;
+
+                int dst = srcOver(0, color, (colorAlpha * innerMask + 127) / 255);
+                dst = srcOver(dst, color, (colorAlpha * outerMask + 127) / 255);
+                dst = srcOver(dst, outlineColor, (outlineAlpha * brightMask + 127) / 255);
+                pixels[i] = unpremultiply(dst);
+            }
+            srcDst.setPixels(pixels, 0, width, 0, 0, width, height);
+        }
+
+        // Leave the canvas in the same state as the mask filter path does
+        srcDstCanvas.setBitmap(null);
+    }
+
+    /**
+     * Composites the rgb of color with the given alpha over a premultiplied pixel.
+     */
+    private static int srcOver(int dst, int color, int alpha) {
+        if (alpha == 0) {
+            return dst;
+        }
+        final int inv = 255 - alpha;
+        final int a = alpha + ((dst >>> 24) * inv + 127) / 255;
+        final int r = (((color >> 16) & 0xff) * alpha + ((dst >> 16) & 0xff) * inv + 127) / 255;
+        final int g = (((color >> 8) & 0xff) * alpha + ((dst >> 8) & 0xff) * inv + 127) / 255;
+        final int b = ((color & 0xff) * alpha + (dst & 0xff) * inv + 127) / 255;
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Converts a premultiplied pixel into the unpremultiplied form expected by setPixels.
+     */
+    private static int unpremultiply(int pixel) {
+        final int a = pixel >>> 24;
+        if (a == 0) {
+            return 0;
+        } else if (a == 255) {
+            return pixel;
+        }
+        final int r = Math.min(255, (((pixel >> 16) & 0xff) * 255 + a / 2) / a);
+        final int g = Math.min(255, (((pixel >> 8) & 0xff) * 255 + a / 2) / a);
+        final int b = Math.min(255, ((pixel & 0xff) * 255 + a / 2) / a);
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
     void applyExtraThickExpensiveOutlineWithBlur(Bitmap srcDst, Canvas srcDstCanvas, int color,
             int outlineColor) {
         applyExpensiveOutlineWithBlur(srcDst, srcDstCanvas, color, outlineColor, EXTRA_THICK);
@@ -17,6 +17,7 @@
 package com.android.launcher2;
 
 import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -25,6 +26,7 @@ import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
 
@@ -33,7 +35,7 @@ import java.util.HashMap;
 /**
  * Cache of application icons.  Icons can be made from any thread.
  */
-public class IconCache {
+public class IconCache implements MemoryPressureCoordinator.Cache {
     @SuppressWarnings("unused")
     private static final String TAG = "Launcher.IconCache";
 
@@ -128,6 +130,25 @@ public class IconCache {
         return b;
     }
 
+    /**
+     * Decodes an icon saved in the launcher database, or returns null if it can't be decoded.
+     */
+    Bitmap decodeSavedIcon(byte[] data) {
+        try {
+            return Utilities.createIconBitmap(
+                    BitmapFactory.decodeByteArray(data, 0, data.length), mContext);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a new bitmap of the default icon, at the size of the other icons.
+     */
+    Bitmap createFallbackIcon() {
+        return Utilities.createIconBitmap(getFullResDefaultActivityIcon(), mContext);
+    }
+
     /**
      * Remove any records for the supplied ComponentName.
      */
@@ -146,6 +167,41 @@ public class IconCache {
         }
     }
 
+    /**
+     * Replaces the cached title of the given component, if it is cached, and keeps its icon.
+     */
+    public void updateTitle(ComponentName componentName, String title) {
+        synchronized (mCache) {
+            final CacheEntry entry = mCache.get(componentName);
+            if (entry != null) {
+                entry.title = title;
+            }
+        }
+    }
+
+    public long getSizeBytes() {
+        synchronized (mCache) {
+            long bytes = 0;
+            for (CacheEntry entry : mCache.values()) {
+                if (entry.icon != null) {
+                    bytes += entry.icon.getByteCount();
+                }
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * The icons of bound items are kept alive by the items themselves, so emptying the cache
+     * mostly frees the icons of apps that are gone. Since every icon has to be loaded again
+     * afterwards, this waits until the launcher is in the background and memory is getting low.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            flush();
+        }
+    }
+
     /**
      * Fill in "application" with the icon and label for "info."
      */
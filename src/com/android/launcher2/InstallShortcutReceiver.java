@@ -17,11 +17,13 @@
 package com.android.launcher2;
 
 import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
+import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.util.Base64;
@@ -30,9 +32,18 @@ import android.widget.Toast;
 
 import com.android.launcher.R;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Set;
 
 import org.json.*;
@@ -49,8 +60,11 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
     public static final String ICON_KEY = "icon";
     public static final String ICON_RESOURCE_NAME_KEY = "iconResource";
     public static final String ICON_RESOURCE_PACKAGE_NAME_KEY = "iconResourcePackage";
-    // The set of shortcuts that are pending install
+    // The set of shortcuts that were pending install in older versions
     public static final String APPS_PENDING_INSTALL = "apps_to_install";
+    // The file of shortcuts that are pending install, appended to as they come in
+    private static final String INSTALL_QUEUE_FILE = "install_queue";
+    private static final int INSTALL_QUEUE_VERSION = 1;
 
     public static final int NEW_SHORTCUT_BOUNCE_DURATION = 450;
     public static final int NEW_SHORTCUT_STAGGER_DELAY = 75;
@@ -65,93 +79,253 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
 
     private static Object sLock = new Object();
 
-    private static void addToStringSet(SharedPreferences sharedPrefs,
-            SharedPreferences.Editor editor, String key, String value) {
-        Set<String> strings = sharedPrefs.getStringSet(key, null);
-        if (strings == null) {
-            strings = new HashSet<String>(0);
-        } else {
-            strings = new HashSet<String>(strings);
-        }
-        strings.add(value);
-        editor.putStringSet(key, strings);
+    private static File getInstallQueueFile(Context context) {
+        return new File(context.getFilesDir(), INSTALL_QUEUE_FILE);
     }
 
-    private static void addToInstallQueue(
-            SharedPreferences sharedPrefs, PendingInstallShortcutInfo info) {
+    /**
+     * Appends the shortcut to the install queue file. Each record is its length followed by the
+     * record itself, so a record that was cut short by a crash is easy to tell apart and drop.
+     */
+    private static void addToInstallQueue(Context context, PendingInstallShortcutInfo info) {
         synchronized(sLock) {
             try {
-                JSONStringer json = new JSONStringer()
-                    .object()
-                    .key(DATA_INTENT_KEY).value(info.data.toUri(0))
-                    .key(LAUNCH_INTENT_KEY).value(info.launchIntent.toUri(0))
-                    .key(NAME_KEY).value(info.name);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream record = new DataOutputStream(bytes);
+                record.writeInt(INSTALL_QUEUE_VERSION);
+                writeString(record, info.data.toUri(0));
+                writeString(record, info.launchIntent.toUri(0));
+                writeString(record, info.name);
                 if (info.icon != null) {
                     byte[] iconByteArray = ItemInfo.flattenBitmap(info.icon);
-                    json = json.key(ICON_KEY).value(
-                        Base64.encodeToString(
-                            iconByteArray, 0, iconByteArray.length, Base64.DEFAULT));
+                    record.writeInt(iconByteArray.length);
+                    record.write(iconByteArray);
+                } else {
+                    record.writeInt(-1);
                 }
+                record.writeBoolean(info.iconResource != null);
                 if (info.iconResource != null) {
-                    json = json.key(ICON_RESOURCE_NAME_KEY).value(info.iconResource.resourceName);
-                    json = json.key(ICON_RESOURCE_PACKAGE_NAME_KEY)
-                        .value(info.iconResource.packageName);
+                    writeString(record, info.iconResource.resourceName);
+                    writeString(record, info.iconResource.packageName);
                 }
-                json = json.endObject();
-                SharedPreferences.Editor editor = sharedPrefs.edit();
-                addToStringSet(sharedPrefs, editor, APPS_PENDING_INSTALL, json.toString());
-                editor.commit();
-            } catch (org.json.JSONException e) {
+                record.flush();
+
+                appendInstallQueueRecord(getInstallQueueFile(context), bytes.toByteArray());
+            } catch (IOException e) {
                 Log.d("InstallShortcutReceiver", "Exception when adding shortcut: " + e);
             }
         }
     }
 
+    /**
+     * Appends a record to the queue file. A record at the end of the file that a crash cut short
+     * is dropped first, otherwise its length would take in the start of this one and every
+     * record after it would be lost.
+     */
+    static void appendInstallQueueRecord(File file, byte[] record) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + record.length);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(record.length);
+        out.write(record);
+        out.flush();
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final long end = findInstallQueueEnd(raf);
+            if (end < raf.length()) {
+                Log.d("InstallShortcutReceiver", "Dropping " + (raf.length() - end)
+                        + " bytes of a shortcut record that was cut short");
+                raf.setLength(end);
+            }
+            raf.seek(end);
+            raf.write(bytes.toByteArray());
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the offset just past the last complete record of the queue file.
+     */
+    private static long findInstallQueueEnd(RandomAccessFile raf) throws IOException {
+        final long length = raf.length();
+        long offset = 0;
+        while (length - offset >= 4) {
+            raf.seek(offset);
+            final int recordLength = raf.readInt();
+            if (recordLength < 0 || recordLength > length - offset - 4) {
+                break;
+            }
+            offset += 4 + recordLength;
+        }
+        return offset;
+    }
+
     private static ArrayList<PendingInstallShortcutInfo> getAndClearInstallQueue(
-            SharedPreferences sharedPrefs) {
+            Context context, SharedPreferences sharedPrefs) {
         synchronized(sLock) {
-            Set<String> strings = sharedPrefs.getStringSet(APPS_PENDING_INSTALL, null);
-            if (strings == null) {
-                return new ArrayList<PendingInstallShortcutInfo>();
-            }
             ArrayList<PendingInstallShortcutInfo> infos =
                 new ArrayList<PendingInstallShortcutInfo>();
-            for (String json : strings) {
-                try {
-                    JSONObject object = (JSONObject) new JSONTokener(json).nextValue();
-                    Intent data = Intent.parseUri(object.getString(DATA_INTENT_KEY), 0);
-                    Intent launchIntent = Intent.parseUri(object.getString(LAUNCH_INTENT_KEY), 0);
-                    String name = object.getString(NAME_KEY);
-                    String iconBase64 = object.optString(ICON_KEY);
-                    String iconResourceName = object.optString(ICON_RESOURCE_NAME_KEY);
-                    String iconResourcePackageName =
-                        object.optString(ICON_RESOURCE_PACKAGE_NAME_KEY);
-                    if (iconBase64 != null && !iconBase64.isEmpty()) {
-                        byte[] iconArray = Base64.decode(iconBase64, Base64.DEFAULT);
-                        Bitmap b = BitmapFactory.decodeByteArray(iconArray, 0, iconArray.length);
-                        data.putExtra(Intent.EXTRA_SHORTCUT_ICON, b);
-                    } else if (iconResourceName != null && !iconResourceName.isEmpty()) {
-                        Intent.ShortcutIconResource iconResource =
-                            new Intent.ShortcutIconResource();
-                        iconResource.resourceName = iconResourceName;
-                        iconResource.packageName = iconResourcePackageName;
-                        data.putExtra(Intent.EXTRA_SHORTCUT_ICON_RESOURCE, iconResource);
+            getAndClearLegacyInstallQueue(sharedPrefs, infos);
+
+            final File file = getInstallQueueFile(context);
+            if (!file.exists()) {
+                return infos;
+            }
+            // The records are only used, and the file deleted, if the whole file can be read.
+            // Otherwise the file is kept so that the records are read on the next attempt.
+            final ArrayList<byte[]> records = new ArrayList<byte[]>();
+            if (readInstallQueueRecords(file, records)) {
+                for (byte[] record : records) {
+                    PendingInstallShortcutInfo info = readInstallQueueRecord(record);
+                    if (info != null) {
+                        infos.add(info);
                     }
-                    data.putExtra(Intent.EXTRA_SHORTCUT_INTENT, launchIntent);
-                    PendingInstallShortcutInfo info =
-                        new PendingInstallShortcutInfo(data, name, launchIntent);
-                    infos.add(info);
-                } catch (org.json.JSONException e) {
-                    Log.d("InstallShortcutReceiver", "Exception reading shortcut to add: " + e);
-                } catch (java.net.URISyntaxException e) {
-                    Log.d("InstallShortcutReceiver", "Exception reading shortcut to add: " + e);
                 }
+                file.delete();
             }
-            sharedPrefs.edit().putStringSet(APPS_PENDING_INSTALL, new HashSet<String>()).commit();
             return infos;
         }
     }
 
+    /**
+     * Reads the records of the queue file into records, and returns whether the whole file could
+     * be read. A record at the end that was cut short is left out.
+     */
+    static boolean readInstallQueueRecords(File file, ArrayList<byte[]> records) {
+        DataInputStream in = null;
+        try {
+            long remaining = file.length();
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (remaining >= 4) {
+                final int length = in.readInt();
+                remaining -= 4;
+                if (length < 0 || length > remaining) {
+                    // Only the last record can be cut short, appendInstallQueueRecord() drops it
+                    // before anything is written after it
+                    Log.d("InstallShortcutReceiver", "Bad shortcut record length " + length
+                            + ", " + remaining + " bytes left");
+                    break;
+                }
+                final byte[] record = new byte[length];
+                in.readFully(record);
+                remaining -= length;
+                records.add(record);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.d("InstallShortcutReceiver", "Exception reading shortcuts to add: " + e);
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private static PendingInstallShortcutInfo readInstallQueueRecord(byte[] record) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            if (in.readInt() != INSTALL_QUEUE_VERSION) {
+                return null;
+            }
+            Intent data = Intent.parseUri(readString(in), 0);
+            Intent launchIntent = Intent.parseUri(readString(in), 0);
+            String name = readString(in);
+            int iconLength = in.readInt();
+            if (iconLength > in.available()) {
+                throw new IOException("Bad icon length " + iconLength);
+            }
+            if (iconLength >= 0) {
+                byte[] iconArray = new byte[iconLength];
+                in.readFully(iconArray);
+                Bitmap b = BitmapFactory.decodeByteArray(iconArray, 0, iconLength);
+                data.putExtra(Intent.EXTRA_SHORTCUT_ICON, b);
+            }
+            if (in.readBoolean()) {
+                Intent.ShortcutIconResource iconResource = new Intent.ShortcutIconResource();
+                iconResource.resourceName = readString(in);
+                iconResource.packageName = readString(in);
+                if (iconLength < 0) {
+                    data.putExtra(Intent.EXTRA_SHORTCUT_ICON_RESOURCE, iconResource);
+                }
+            }
+            data.putExtra(Intent.EXTRA_SHORTCUT_INTENT, launchIntent);
+            return new PendingInstallShortcutInfo(data, name, launchIntent);
+        } catch (IOException e) {
+            Log.d("InstallShortcutReceiver", "Exception reading shortcut to add: " + e);
+        } catch (java.net.URISyntaxException e) {
+            Log.d("InstallShortcutReceiver", "Exception reading shortcut to add: " + e);
+        }
+        return null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        // Intent URIs can be longer than writeUTF() allows
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        // Only ever reads from a record, so available() is what is left of it
+        final int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Reads the shortcuts that were queued in the shared preferences by older versions.
+     */
+    private static void getAndClearLegacyInstallQueue(SharedPreferences sharedPrefs,
+            ArrayList<PendingInstallShortcutInfo> infos) {
+        Set<String> strings = sharedPrefs.getStringSet(APPS_PENDING_INSTALL, null);
+        if (strings == null) {
+            return;
+        }
+        for (String json : strings) {
+            try {
+                JSONObject object = (JSONObject) new JSONTokener(json).nextValue();
+                Intent data = Intent.parseUri(object.getString(DATA_INTENT_KEY), 0);
+                Intent launchIntent = Intent.parseUri(object.getString(LAUNCH_INTENT_KEY), 0);
+                String name = object.getString(NAME_KEY);
+                String iconBase64 = object.optString(ICON_KEY);
+                String iconResourceName = object.optString(ICON_RESOURCE_NAME_KEY);
+                String iconResourcePackageName =
+                    object.optString(ICON_RESOURCE_PACKAGE_NAME_KEY);
+                if (iconBase64 != null && !iconBase64.isEmpty()) {
+                    byte[] iconArray = Base64.decode(iconBase64, Base64.DEFAULT);
+                    Bitmap b = BitmapFactory.decodeByteArray(iconArray, 0, iconArray.length);
+                    data.putExtra(Intent.EXTRA_SHORTCUT_ICON, b);
+                } else if (iconResourceName != null && !iconResourceName.isEmpty()) {
+                    Intent.ShortcutIconResource iconResource =
+                        new Intent.ShortcutIconResource();
+                    iconResource.resourceName = iconResourceName;
+                    iconResource.packageName = iconResourcePackageName;
+                    data.putExtra(Intent.EXTRA_SHORTCUT_ICON_RESOURCE, iconResource);
+                }
+                data.putExtra(Intent.EXTRA_SHORTCUT_INTENT, launchIntent);
+                PendingInstallShortcutInfo info =
+                    new PendingInstallShortcutInfo(data, name, launchIntent);
+                infos.add(info);
+            } catch (org.json.JSONException e) {
+                Log.d("InstallShortcutReceiver", "Exception reading shortcut to add: " + e);
+            } catch (java.net.URISyntaxException e) {
+                Log.d("InstallShortcutReceiver", "Exception reading shortcut to add: " + e);
+            }
+        }
+        sharedPrefs.edit().remove(APPS_PENDING_INSTALL).commit();
+    }
+
     // Determines whether to defer installing shortcuts immediately until
     // processAllPendingInstalls() is called.
     private static boolean mUseInstallQueue = false;
@@ -204,11 +378,12 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
         info.icon = icon;
         info.iconResource = iconResource;
         if (mUseInstallQueue || launcherNotLoaded) {
-            String spKey = LauncherApplication.getSharedPreferencesKey();
-            SharedPreferences sp = context.getSharedPreferences(spKey, Context.MODE_PRIVATE);
-            addToInstallQueue(sp, info);
+            addToInstallQueue(context, info);
         } else {
-            processInstallShortcut(context, info);
+            ArrayList<PendingInstallShortcutInfo> infos =
+                    new ArrayList<PendingInstallShortcutInfo>(1);
+            infos.add(info);
+            processInstallShortcuts(context, infos);
         }
     }
 
@@ -222,64 +397,212 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
     static void flushInstallQueue(Context context) {
         String spKey = LauncherApplication.getSharedPreferencesKey();
         SharedPreferences sp = context.getSharedPreferences(spKey, Context.MODE_PRIVATE);
-        ArrayList<PendingInstallShortcutInfo> installQueue = getAndClearInstallQueue(sp);
-        Iterator<PendingInstallShortcutInfo> iter = installQueue.iterator();
-        while (iter.hasNext()) {
-            processInstallShortcut(context, iter.next());
+        ArrayList<PendingInstallShortcutInfo> installQueue = getAndClearInstallQueue(context, sp);
+        if (!installQueue.isEmpty()) {
+            processInstallShortcuts(context, installQueue);
         }
     }
 
-    private static void processInstallShortcut(Context context,
-            PendingInstallShortcutInfo pendingInfo) {
+    /**
+     * Where the shortcuts of a batch can go: which cells of each workspace screen are taken, and
+     * which shortcuts exist already. Built from one scan of the database, and kept up to date
+     * as the shortcuts of the batch are placed, so none of them needs another query.
+     */
+    private static class PlacementPlan {
+        final int xCount = LauncherModel.getCellCountX();
+        final int yCount = LauncherModel.getCellCountY();
+        final boolean[][][] occupied = new boolean[Launcher.SCREEN_COUNT][xCount][yCount];
+        // The intent URI and title of every shortcut, see getShortcutKey()
+        final HashSet<String> shortcuts = new HashSet<String>();
+
+        PlacementPlan(Context context) {
+            final ContentResolver cr = context.getContentResolver();
+            Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI, new String[] {
+                    LauncherSettings.Favorites.CONTAINER, LauncherSettings.Favorites.SCREEN,
+                    LauncherSettings.Favorites.CELLX, LauncherSettings.Favorites.CELLY,
+                    LauncherSettings.Favorites.SPANX, LauncherSettings.Favorites.SPANY,
+                    LauncherSettings.Favorites.TITLE, LauncherSettings.Favorites.INTENT },
+                    null, null, null);
+            if (c == null) {
+                return;
+            }
+            try {
+                final int containerIndex =
+                        c.getColumnIndexOrThrow(LauncherSettings.Favorites.CONTAINER);
+                final int screenIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.SCREEN);
+                final int cellXIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.CELLX);
+                final int cellYIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.CELLY);
+                final int spanXIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.SPANX);
+                final int spanYIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.SPANY);
+                final int titleIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.TITLE);
+                final int intentIndex =
+                        c.getColumnIndexOrThrow(LauncherSettings.Favorites.INTENT);
+                while (c.moveToNext()) {
+                    final String title = c.getString(titleIndex);
+                    final String intent = c.getString(intentIndex);
+                    if (title != null && intent != null) {
+                        shortcuts.add(getShortcutKey(title, intent));
+                    }
+                    if (c.getInt(containerIndex) == LauncherSettings.Favorites.CONTAINER_DESKTOP) {
+                        occupy(c.getInt(screenIndex), c.getInt(cellXIndex), c.getInt(cellYIndex),
+                                c.getInt(spanXIndex), c.getInt(spanYIndex));
+                    }
+                }
+            } catch (Exception e) {
+                // Same as finding nothing, as when reading the items one at a time used to fail
+                for (boolean[][] screen : occupied) {
+                    for (boolean[] column : screen) {
+                        Arrays.fill(column, false);
+                    }
+                }
+                shortcuts.clear();
+            } finally {
+                c.close();
+            }
+        }
+
+        private static String getShortcutKey(String title, String intentUri) {
+            // Intent URIs are escaped, so they never contain a newline
+            return intentUri + "\n" + title;
+        }
+
+        private void occupy(int screen, int cellX, int cellY, int spanX, int spanY) {
+            if (screen < 0 || screen >= occupied.length) {
+                return;
+            }
+            for (int x = cellX; 0 <= x && x < cellX + spanX && x < xCount; x++) {
+                for (int y = cellY; 0 <= y && y < cellY + spanY && y < yCount; y++) {
+                    occupied[screen][x][y] = true;
+                }
+            }
+        }
+
+        boolean findEmptyCell(int[] xy, int screen) {
+            return CellLayout.findVacantCell(xy, 1, 1, xCount, yCount, occupied[screen]);
+        }
+
+        boolean shortcutExists(String title, Intent intent) {
+            return shortcuts.contains(getShortcutKey(title, intent.toUri(0)));
+        }
+
+        void add(ShortcutInfo info) {
+            occupy(info.screen, info.cellX, info.cellY, info.spanX, info.spanY);
+            if (info.title != null && info.intent != null) {
+                shortcuts.add(getShortcutKey(info.title.toString(), info.intent.toUri(0)));
+            }
+        }
+    }
+
+    /**
+     * Places the given shortcuts on the workspace in order, and then adds all of them to the
+     * database in one transaction.
+     */
+    private static void processInstallShortcuts(Context context,
+            ArrayList<PendingInstallShortcutInfo> pendingInfos) {
         String spKey = LauncherApplication.getSharedPreferencesKey();
         SharedPreferences sp = context.getSharedPreferences(spKey, Context.MODE_PRIVATE);
 
-        final Intent data = pendingInfo.data;
-        final Intent intent = pendingInfo.launchIntent;
-        final String name = pendingInfo.name;
-
         // Lock on the app so that we don't try and get the items while apps are being added
         LauncherApplication app = (LauncherApplication) context.getApplicationContext();
-        final int[] result = {INSTALL_SHORTCUT_SUCCESSFUL};
-        boolean found = false;
+        final ArrayList<ShortcutInfo> added = new ArrayList<ShortcutInfo>();
+        final ArrayList<String> duplicateNames = new ArrayList<String>();
+        boolean outOfSpace = false;
         synchronized (app) {
             // Flush the LauncherModel worker thread, so that if we just did another
-            // processInstallShortcut, we give it time for its shortcut to get added to the
-            // database (getItemsInLocalCoordinates reads the database)
+            // processInstallShortcuts, we give it time for its shortcuts to get added to the
+            // database (the placement plan reads the database)
             app.getModel().flushWorkerThread();
-            final ArrayList<ItemInfo> items = LauncherModel.getItemsInLocalCoordinates(context);
-            final boolean exists = LauncherModel.shortcutExists(context, name, intent);
-
-            // Try adding to the workspace screens incrementally, starting at the default or center
-            // screen and alternating between +1, -1, +2, -2, etc. (using ~ ceil(i/2f)*(-1)^(i-1))
-            final int screen = Launcher.DEFAULT_SCREEN;
-            for (int i = 0; i < (2 * Launcher.SCREEN_COUNT) + 1 && !found; ++i) {
-                int si = screen + (int) ((i / 2f) + 0.5f) * ((i % 2 == 1) ? 1 : -1);
-                if (0 <= si && si < Launcher.SCREEN_COUNT) {
-                    found = installShortcut(context, data, items, name, intent, si, exists, sp,
-                            result);
+            final PlacementPlan plan = new PlacementPlan(context);
+
+            for (PendingInstallShortcutInfo pendingInfo : pendingInfos) {
+                final Intent data = pendingInfo.data;
+                final Intent intent = pendingInfo.launchIntent;
+                final String name = pendingInfo.name;
+                final int[] result = {INSTALL_SHORTCUT_SUCCESSFUL};
+                boolean found = false;
+                final boolean exists = plan.shortcutExists(name, intent);
+
+                // Try adding to the workspace screens incrementally, starting at the default or
+                // center screen and alternating between +1, -1, +2, -2, etc. (using
+                // ~ ceil(i/2f)*(-1)^(i-1))
+                final int screen = Launcher.DEFAULT_SCREEN;
+                for (int i = 0; i < (2 * Launcher.SCREEN_COUNT) + 1 && !found; ++i) {
+                    int si = screen + (int) ((i / 2f) + 0.5f) * ((i % 2 == 1) ? 1 : -1);
+                    if (0 <= si && si < Launcher.SCREEN_COUNT) {
+                        found = installShortcut(context, data, plan, name, intent, si, exists,
+                                result, added);
+                    }
+                }
+
+                if (!found) {
+                    if (result[0] == INSTALL_SHORTCUT_NO_SPACE) {
+                        outOfSpace = true;
+                    } else if (result[0] == INSTALL_SHORTCUT_IS_DUPLICATE) {
+                        duplicateNames.add(name);
+                    }
                 }
             }
+
+            if (!added.isEmpty()) {
+                LauncherModel.addItemsToDatabase(context, added, true);
+                updateNewApps(sp, added);
+            }
         }
 
         // We only report error messages (duplicate shortcut or out of space) as the add-animation
         // will provide feedback otherwise
-        if (!found) {
-            if (result[0] == INSTALL_SHORTCUT_NO_SPACE) {
-                Toast.makeText(context, context.getString(R.string.completely_out_of_space),
-                        Toast.LENGTH_SHORT).show();
-            } else if (result[0] == INSTALL_SHORTCUT_IS_DUPLICATE) {
-                Toast.makeText(context, context.getString(R.string.shortcut_duplicate, name),
-                        Toast.LENGTH_SHORT).show();
-            }
+        if (outOfSpace) {
+            Toast.makeText(context, context.getString(R.string.completely_out_of_space),
+                    Toast.LENGTH_SHORT).show();
+        }
+        for (String name : duplicateNames) {
+            Toast.makeText(context, context.getString(R.string.shortcut_duplicate, name),
+                    Toast.LENGTH_SHORT).show();
         }
     }
 
-    private static boolean installShortcut(Context context, Intent data, ArrayList<ItemInfo> items,
+    /**
+     * Remembers the shortcuts that were added to the page of new apps, to be animated the next
+     * time the launcher is shown. All of the shortcuts of a batch are saved in one commit.
+     */
+    private static void updateNewApps(final SharedPreferences sharedPrefs,
+            ArrayList<ShortcutInfo> added) {
+        final int count = added.size();
+        final int[] screens = new int[count];
+        final String[] uris = new String[count];
+        for (int i = 0; i < count; i++) {
+            screens[i] = added.get(i).screen;
+            uris[i] = added.get(i).intent.toUri(0);
+        }
+        new Thread("setNewAppsThread") {
+            public void run() {
+                synchronized (sLock) {
+                    int newAppsScreen = sharedPrefs.getInt(NEW_APPS_PAGE_KEY, screens[0]);
+                    Set<String> newApps = sharedPrefs.getStringSet(NEW_APPS_LIST_KEY, null);
+                    newApps = newApps != null
+                            ? new HashSet<String>(newApps) : new HashSet<String>(count);
+                    for (int i = 0; i < count; i++) {
+                        // If the new app is going to fall into the same page as before,
+                        // then just continue adding to the current page
+                        if (newAppsScreen == -1 || newAppsScreen == screens[i]) {
+                            newApps.add(uris[i]);
+                        }
+                        newAppsScreen = screens[i];
+                    }
+                    sharedPrefs.edit()
+                            .putStringSet(NEW_APPS_LIST_KEY, newApps)
+                            .putInt(NEW_APPS_PAGE_KEY, newAppsScreen)
+                            .commit();
+                }
+            }
+        }.start();
+    }
+
+    private static boolean installShortcut(Context context, Intent data, PlacementPlan plan,
             String name, final Intent intent, final int screen, boolean shortcutExists,
-            final SharedPreferences sharedPrefs, int[] result) {
+            int[] result, ArrayList<ShortcutInfo> added) {
         int[] tmpCoordinates = new int[2];
-        if (findEmptyCell(context, items, tmpCoordinates, screen)) {
+        if (plan.findEmptyCell(tmpCoordinates, screen)) {
             if (intent != null) {
                 if (intent.getAction() == null) {
                     intent.setAction(Intent.ACTION_VIEW);
@@ -294,32 +617,18 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
                 // different places)
                 boolean duplicate = data.getBooleanExtra(Launcher.EXTRA_SHORTCUT_DUPLICATE, true);
                 if (duplicate || !shortcutExists) {
-                    new Thread("setNewAppsThread") {
-                        public void run() {
-                            synchronized (sLock) {
-                                // If the new app is going to fall into the same page as before,
-                                // then just continue adding to the current page
-                                final int newAppsScreen = sharedPrefs.getInt(
-                                        NEW_APPS_PAGE_KEY, screen);
-                                SharedPreferences.Editor editor = sharedPrefs.edit();
-                                if (newAppsScreen == -1 || newAppsScreen == screen) {
-                                    addToStringSet(sharedPrefs,
-                                        editor, NEW_APPS_LIST_KEY, intent.toUri(0));
-                                }
-                                editor.putInt(NEW_APPS_PAGE_KEY, screen);
-                                editor.commit();
-                            }
-                        }
-                    }.start();
-
-                    // Update the Launcher db
+                    // The Launcher db is updated with the rest of the batch
                     LauncherApplication app = (LauncherApplication) context.getApplicationContext();
-                    ShortcutInfo info = app.getModel().addShortcut(context, data,
-                            LauncherSettings.Favorites.CONTAINER_DESKTOP, screen,
-                            tmpCoordinates[0], tmpCoordinates[1], true);
+                    ShortcutInfo info = app.getModel().infoFromShortcutIntent(context, data, null);
                     if (info == null) {
                         return false;
                     }
+                    info.container = LauncherSettings.Favorites.CONTAINER_DESKTOP;
+                    info.screen = screen;
+                    info.cellX = tmpCoordinates[0];
+                    info.cellY = tmpCoordinates[1];
+                    plan.add(info);
+                    added.add(info);
                 } else {
                     result[0] = INSTALL_SHORTCUT_IS_DUPLICATE;
                 }
@@ -332,32 +641,4 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
 
         return false;
     }
-
-    private static boolean findEmptyCell(Context context, ArrayList<ItemInfo> items, int[] xy,
-            int screen) {
-        final int xCount = LauncherModel.getCellCountX();
-        final int yCount = LauncherModel.getCellCountY();
-        boolean[][] occupied = new boolean[xCount][yCount];
-
-        ItemInfo item = null;
-        int cellX, cellY, spanX, spanY;
-        for (int i = 0; i < items.size(); ++i) {
-            item = items.get(i);
-            if (item.container == LauncherSettings.Favorites.CONTAINER_DESKTOP) {
-                if (item.screen == screen) {
-                    cellX = item.cellX;
-                    cellY = item.cellY;
-                    spanX = item.spanX;
-                    spanY = item.spanY;
-                    for (int x = cellX; 0 <= x && x < cellX + spanX && x < xCount; x++) {
-                        for (int y = cellY; 0 <= y && y < cellY + spanY && y < yCount; y++) {
-                            occupied[x][y] = true;
-                        }
-                    }
-                }
-            }
-        }
-
-        return CellLayout.findVacantCell(xy, 1, 1, xCount, yCount, occupied);
-    }
 }
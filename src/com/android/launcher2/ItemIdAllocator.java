@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.content.SharedPreferences;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out the ids of new items, from any thread. Ids are reserved a block at a time by saving
+ * the last id of the block, so that most ids are handed out without locking, and no id is ever
+ * handed out twice, even when the launcher dies before its items are written.
+ *
+ * The reserved id is saved with apply(), so that the thread asking for an id, which may be the
+ * UI thread, never waits for the disk. If the launcher dies before the write lands, the ids
+ * handed out since are only reused if none of their items were written, since initialize() starts
+ * after the highest id in the database.
+ */
+class ItemIdAllocator {
+    private static final String RESERVED_ID_KEY = "launcher.reserved_item_id";
+
+    // How many ids are reserved past the one that ran out of the previous block
+    static final int BLOCK_SIZE = 64;
+
+    // How many ids may be left in the block when the next one is reserved
+    private static final int RESERVE_AHEAD = BLOCK_SIZE / 2;
+
+    private final SharedPreferences mPrefs;
+
+    // The last id that was handed out
+    private final AtomicLong mLastId = new AtomicLong();
+
+    // The last id of the reserved block, or -1 until initialize() is called. Only ever grows,
+    // and only once the new value has been queued to be saved.
+    private volatile long mReservedId = -1;
+
+    ItemIdAllocator(SharedPreferences prefs) {
+        mPrefs = prefs;
+    }
+
+    boolean isInitialized() {
+        return mReservedId >= 0;
+    }
+
+    /**
+     * Starts handing out ids after the given one, or after the last one that was reserved if
+     * that is higher, since items may have been deleted since.
+     */
+    synchronized void initialize(long maxId) {
+        final long start = Math.max(maxId, mPrefs.getLong(RESERVED_ID_KEY, 0));
+        mLastId.set(start);
+        mReservedId = start;
+    }
+
+    /**
+     * Returns a new id.
+     */
+    long next() {
+        return next(1);
+    }
+
+    /**
+     * Returns the first of count new ids, which are all consecutive.
+     */
+    long next(int count) {
+        if (mReservedId < 0) {
+            throw new RuntimeException("Error: max id was not initialized");
+        }
+        final long last = mLastId.addAndGet(count);
+        if (last > mReservedId - RESERVE_AHEAD) {
+            reserve(last);
+        }
+        return last - count + 1;
+    }
+
+    private synchronized void reserve(long id) {
+        // Another thread may have reserved it while this one was waiting
+        if (id <= mReservedId - RESERVE_AHEAD) return;
+        final long reserved = id + BLOCK_SIZE;
+        mPrefs.edit().putLong(RESERVED_ID_KEY, reserved).apply();
+        mReservedId = reserved;
+    }
+}
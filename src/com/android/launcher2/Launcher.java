@@ -71,6 +71,7 @@ import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
 import android.text.method.TextKeyListener;
 import android.util.Log;
+import android.util.LongSparseArray;
 import android.view.Display;
 import android.view.HapticFeedbackConstants;
 import android.view.KeyEvent;
@@ -101,11 +102,13 @@ import com.android.launcher2.DropTarget.DragObject;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -128,6 +131,9 @@ public final class Launcher extends Activity
     static final boolean DEBUG_STRICT_MODE = false;
     static final boolean DEBUG_RESUME_TIME = false;
 
+    private static final String DUMP_ARG_STARTUP_TRACE = "startup-trace";
+    private static final String STARTUP_TRACE_FILE = "startup_trace.json";
+
     private static final int MENU_GROUP_WALLPAPER = 1;
     private static final int MENU_WALLPAPER_SETTINGS = Menu.FIRST + 1;
     private static final int MENU_MANAGE_APPS = MENU_WALLPAPER_SETTINGS + 1;
@@ -217,6 +223,7 @@ public final class Launcher extends Activity
     private View mLauncherView;
     private DragLayer mDragLayer;
     private DragController mDragController;
+    private HardwareLayerManager mHardwareLayerManager;
 
     private AppWidgetManager mAppWidgetManager;
     private LauncherAppWidgetHost mAppWidgetHost;
@@ -266,7 +273,7 @@ public final class Launcher extends Activity
 
     private static LocaleConfiguration sLocaleConfiguration = null;
 
-    private static HashMap<Long, FolderInfo> sFolders = new HashMap<Long, FolderInfo>();
+    private static LongSparseArray<FolderInfo> sFolders = new LongSparseArray<FolderInfo>();
 
     private Intent mAppMarketIntent = null;
 
@@ -292,8 +299,6 @@ public final class Launcher extends Activity
 
     private final ArrayList<Integer> mSynchronouslyBoundPages = new ArrayList<Integer>();
 
-    static final ArrayList<String> sDumpLogs = new ArrayList<String>();
-
     // We only want to get the SharedPreferences once since it does an FS stat each time we get
     // it from the context.
     private SharedPreferences mSharedPrefs;
@@ -355,6 +360,7 @@ public final class Launcher extends Activity
                     .build());
         }
 
+        final long createTraceStart = StartupTrace.begin();
         super.onCreate(savedInstanceState);
         LauncherApplication app = ((LauncherApplication)getApplication());
         mSharedPrefs = getSharedPreferences(LauncherApplication.getSharedPreferencesKey(),
@@ -362,6 +368,7 @@ public final class Launcher extends Activity
         mModel = app.setLauncher(this);
         mIconCache = app.getIconCache();
         mDragController = new DragController(this);
+        mHardwareLayerManager = new HardwareLayerManager(this);
         mInflater = getLayoutInflater();
 
         mAppWidgetManager = AppWidgetManager.getInstance(this);
@@ -381,7 +388,9 @@ public final class Launcher extends Activity
         checkForLocaleChange();
         setContentView(R.layout.launcher);
         setupViews();
+        registerMemoryCaches(app.getMemoryCoordinator());
         showFirstRunWorkspaceCling();
+        traceFirstFrame(createTraceStart);
 
         registerContentObservers();
 
@@ -499,7 +508,7 @@ public final class Launcher extends Activity
             sLocaleConfiguration.mcc = mcc;
             sLocaleConfiguration.mnc = mnc;
 
-            mIconCache.flush();
+            // The icons stay cached, LauncherModel reloads only the titles on a locale change
 
             final LocaleConfiguration localeConfiguration = sLocaleConfiguration;
             new Thread("WriteLocaleConfiguration") {
@@ -1302,6 +1311,29 @@ public final class Launcher extends Activity
         updateRunning();
     }
 
+    /**
+     * Records the time from onCreate to the first time the workspace is drawn.
+     */
+    private void traceFirstFrame(final long createTraceStart) {
+        mWorkspace.getViewTreeObserver().addOnDrawListener(new ViewTreeObserver.OnDrawListener() {
+            private boolean mDrawn = false;
+            public void onDraw() {
+                if (mDrawn) return;
+                mDrawn = true;
+                StartupTrace.end(StartupTrace.SPAN_FIRST_FRAME, createTraceStart, 0);
+                final ViewTreeObserver.OnDrawListener listener = this;
+                mWorkspace.post(new Runnable() {
+                        public void run() {
+                            if (mWorkspace != null &&
+                                    mWorkspace.getViewTreeObserver() != null) {
+                                mWorkspace.getViewTreeObserver().removeOnDrawListener(listener);
+                            }
+                        }
+                    });
+            }
+        });
+    }
+
     public void onWindowVisibilityChanged(int visibility) {
         mVisible = visibility == View.VISIBLE;
         updateRunning();
@@ -1565,6 +1597,7 @@ public final class Launcher extends Activity
         LauncherApplication app = ((LauncherApplication) getApplication());
         mModel.stopLoader();
         app.setLauncher(null);
+        app.getMemoryCoordinator().unregisterAll(this);
 
         try {
             mAppWidgetHost.stopListening();
@@ -1599,6 +1632,10 @@ public final class Launcher extends Activity
         return mDragController;
     }
 
+    HardwareLayerManager getHardwareLayerManager() {
+        return mHardwareLayerManager;
+    }
+
     @Override
     public void startActivityForResult(Intent intent, int requestCode) {
         if (requestCode >= 0) mWaitingForResult = true;
@@ -2814,11 +2851,75 @@ public final class Launcher extends Activity
         }
     }
 
+    /**
+     * Registers the caches held by the views of this activity, which are trimmed along with the
+     * application wide ones by the MemoryPressureCoordinator.
+     */
+    private void registerMemoryCaches(MemoryPressureCoordinator coordinator) {
+        coordinator.register(this, "hardware layers", mHardwareLayerManager);
+        coordinator.register(this, "widget previews", new MemoryPressureCoordinator.Cache() {
+            public long getSizeBytes() {
+                final WidgetPreviewLoader loader = mAppsCustomizeContent.mWidgetPreviewLoader;
+                return loader != null ? loader.getSizeBytes() : 0;
+            }
+
+            public void trimMemory(int level) {
+                final WidgetPreviewLoader loader = mAppsCustomizeContent.mWidgetPreviewLoader;
+                if (loader != null) {
+                    loader.trimMemory(level);
+                }
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+                    mAppsCustomizeTabHost.onTrimMemory();
+                }
+            }
+        });
+        coordinator.register(this, "pressed outlines", new MemoryPressureCoordinator.Cache() {
+            public long getSizeBytes() {
+                final Bitmap b = mWaitingForResume != null ?
+                        mWaitingForResume.getPressedOrFocusedBackground() : null;
+                return b != null ? b.getByteCount() : 0;
+            }
+
+            public void trimMemory(int level) {
+                // The icon that was launched from stays pressed until we are resumed, there is no
+                // need to keep its outline around once we are hidden
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN &&
+                        mWaitingForResume != null) {
+                    mWaitingForResume.setStayPressed(false);
+                }
+            }
+        });
+        coordinator.register(this, "outline blur buffers", new MemoryPressureCoordinator.Cache() {
+            public long getSizeBytes() {
+                return HolographicOutlineHelper.getSoftwareBlurByteCount();
+            }
+
+            public void trimMemory(int level) {
+                // Outlines are only drawn while the launcher is showing
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+                    HolographicOutlineHelper.trimSoftwareBlurBuffers();
+                }
+            }
+        });
+        coordinator.register(this, "drag outline", new MemoryPressureCoordinator.Cache() {
+            public long getSizeBytes() {
+                return mWorkspace.getDragOutlineBytes();
+            }
+
+            public void trimMemory(int level) {
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                    mWorkspace.releaseDragOutline();
+                }
+            }
+        });
+    }
+
     @Override
     public void onTrimMemory(int level) {
         super.onTrimMemory(level);
+        // The caches are trimmed by the MemoryPressureCoordinator, see registerMemoryCaches()
         if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
-            mAppsCustomizeTabHost.onTrimMemory();
+            mWorkspace.unbindClosedFolderViews();
         }
     }
 
@@ -3467,7 +3568,7 @@ public final class Launcher extends Activity
     /**
      * Implementation of the method from LauncherModel.Callbacks.
      */
-    public void bindFolders(final HashMap<Long, FolderInfo> folders) {
+    public void bindFolders(final LongSparseArray<FolderInfo> folders) {
         if (waitUntilResume(new Runnable() {
                 public void run() {
                     bindFolders(folders);
@@ -3475,8 +3576,7 @@ public final class Launcher extends Activity
             })) {
             return;
         }
-        sFolders.clear();
-        sFolders.putAll(folders);
+        sFolders = folders.clone();
     }
 
     /**
@@ -3742,6 +3842,31 @@ public final class Launcher extends Activity
         }
     }
 
+    /**
+     * The titles of some apps and shortcuts changed, after the locale changed. The titles of the
+     * items have already been set.
+     *
+     * Implementation of the method from LauncherModel.Callbacks.
+     */
+    public void bindTitlesChanged(final ArrayList<ApplicationInfo> apps,
+            final HashSet<ShortcutInfo> shortcuts) {
+        if (waitUntilResume(new Runnable() {
+                public void run() {
+                    bindTitlesChanged(apps, shortcuts);
+                }
+            })) {
+            return;
+        }
+
+        if (mWorkspace != null && !shortcuts.isEmpty()) {
+            mWorkspace.updateShortcutTitles(shortcuts);
+        }
+
+        if (mAppsCustomizeContent != null) {
+            mAppsCustomizeContent.updateAppTitles();
+        }
+    }
+
     /**
      * A package was uninstalled.  We take both the super set of packageNames
      * in addition to specific applications to remove, the reason being that
@@ -4036,6 +4161,7 @@ public final class Launcher extends Activity
         if (mAppsCustomizeContent != null) {
             mAppsCustomizeContent.dumpState();
         }
+        ((LauncherApplication) getApplication()).getMemoryCoordinator().dumpState();
         Log.d(TAG, "END launcher2 dump state");
     }
 
@@ -4044,8 +4170,27 @@ public final class Launcher extends Activity
         super.dump(prefix, fd, writer, args);
         writer.println(" ");
         writer.println("Debug logs: ");
-        for (int i = 0; i < sDumpLogs.size(); i++) {
-            writer.println("  " + sDumpLogs.get(i));
+        LauncherEventLog.dump("  ", writer);
+        writer.println(" ");
+        StartupTrace.dump("", writer);
+        if (mWorkspace != null) {
+            mWorkspace.dumpFrameStats("", writer);
+            mWorkspace.dumpWallpaperOffsetStats("", writer);
+        }
+        if (mAppsCustomizeContent != null) {
+            mAppsCustomizeContent.dumpFrameStats("", writer);
+        }
+        if (mHardwareLayerManager != null) {
+            mHardwareLayerManager.dump("", writer);
+        }
+        ((LauncherApplication) getApplication()).getMemoryCoordinator().dump("", writer);
+
+        // "dumpsys activity <launcher> startup-trace" also writes the trace to a file
+        if (args != null && Arrays.asList(args).contains(DUMP_ARG_STARTUP_TRACE)) {
+            final File file = new File(getFilesDir(), STARTUP_TRACE_FILE);
+            if (StartupTrace.writeTraceFile(file)) {
+                writer.println("Startup trace written to " + file);
+            }
         }
     }
 
@@ -4053,9 +4198,7 @@ public final class Launcher extends Activity
         Log.d(TAG, "");
         Log.d(TAG, "*********************");
         Log.d(TAG, "Launcher debug logs: ");
-        for (int i = 0; i < sDumpLogs.size(); i++) {
-            Log.d(TAG, "  " + sDumpLogs.get(i));
-        }
+        LauncherEventLog.dumpToLog(TAG);
         Log.d(TAG, "*********************");
         Log.d(TAG, "");
     }
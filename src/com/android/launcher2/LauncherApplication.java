@@ -34,6 +34,7 @@ public class LauncherApplication extends Application {
     private LauncherModel mModel;
     private IconCache mIconCache;
     private WidgetPreviewLoader.CacheDb mWidgetPreviewCacheDb;
+    private final MemoryPressureCoordinator mMemoryCoordinator = new MemoryPressureCoordinator();
     private static boolean sIsScreenLarge;
     private static float sScreenDensity;
     private static int sLongPressTimeout = 300;
@@ -51,6 +52,8 @@ public class LauncherApplication extends Application {
         mWidgetPreviewCacheDb = new WidgetPreviewLoader.CacheDb(this);
         mIconCache = new IconCache(this);
         mModel = new LauncherModel(this, mIconCache);
+        mMemoryCoordinator.register(this, "icon cache", mIconCache);
+        mModel.registerCaches(mMemoryCoordinator);
 
         // Register intent receivers
         IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
@@ -90,6 +93,18 @@ public class LauncherApplication extends Application {
         resolver.unregisterContentObserver(mFavoritesObserver);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mMemoryCoordinator.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        mMemoryCoordinator.onLowMemory();
+    }
+
     /**
      * Receives notifications whenever the user favorites have changed.
      */
@@ -116,6 +131,10 @@ public class LauncherApplication extends Application {
         return mModel;
     }
 
+    MemoryPressureCoordinator getMemoryCoordinator() {
+        return mMemoryCoordinator;
+    }
+
     WidgetPreviewLoader.CacheDb getWidgetPreviewCacheDb() {
         return mWidgetPreviewCacheDb;
     }
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size ring of timestamped debug events, such as the changes made to the launcher
+ * database. Events are stored as a type and a few longs, so that they can be logged from any
+ * thread without locking or allocating, and are only turned into text when they are dumped.
+ * Once the ring is full the oldest events are overwritten.
+ */
+final class LauncherEventLog {
+    // args: id, old container, new container, old cell, new cell
+    static final int EVENT_MOVE_ITEM = 1;
+    // args: id, old container, new container, old cell, new cell
+    static final int EVENT_MODIFY_ITEM = 2;
+    // args: id, container, cell
+    static final int EVENT_ADD_ITEM = 3;
+    // args: id, container, cell
+    static final int EVENT_DELETE_ITEM = 4;
+    // args: id, appWidgetId
+    static final int EVENT_REMOVE_MISSING_WIDGET = 5;
+
+    // A few hundred database changes a day leaves about a week of history
+    private static final int CAPACITY = 2048;
+
+    private static final int FIELD_SEQUENCE = 0;
+    private static final int FIELD_TIME = 1;
+    private static final int FIELD_TYPE = 2;
+    private static final int FIELD_ARGS = 3;
+    private static final int ARG_COUNT = 5;
+    private static final int SLOT_SIZE = FIELD_ARGS + ARG_COUNT;
+
+    // While a slot is being written its sequence field is set to this, so that readers skip it
+    private static final long WRITING = -1;
+
+    private static final AtomicLong sNextSequence = new AtomicLong();
+    private static final AtomicLongArray sSlots = new AtomicLongArray(CAPACITY * SLOT_SIZE);
+
+    private LauncherEventLog() {
+    }
+
+    static void log(int type, long arg0, long arg1) {
+        log(type, arg0, arg1, 0, 0, 0);
+    }
+
+    static void log(int type, long arg0, long arg1, long arg2) {
+        log(type, arg0, arg1, arg2, 0, 0);
+    }
+
+    static void log(int type, long arg0, long arg1, long arg2, long arg3, long arg4) {
+        final long sequence = sNextSequence.getAndIncrement();
+        final int base = (int) (sequence % CAPACITY) * SLOT_SIZE;
+        final AtomicLongArray slots = sSlots;
+        slots.set(base + FIELD_SEQUENCE, WRITING);
+        slots.set(base + FIELD_TIME, System.currentTimeMillis());
+        slots.set(base + FIELD_TYPE, type);
+        slots.set(base + FIELD_ARGS, arg0);
+        slots.set(base + FIELD_ARGS + 1, arg1);
+        slots.set(base + FIELD_ARGS + 2, arg2);
+        slots.set(base + FIELD_ARGS + 3, arg3);
+        slots.set(base + FIELD_ARGS + 4, arg4);
+        // Stored plus one, so that an empty slot never matches
+        slots.set(base + FIELD_SEQUENCE, sequence + 1);
+    }
+
+    /**
+     * Packs a screen and cell position into a single event argument.
+     */
+    static long packCell(int screen, int cellX, int cellY) {
+        return ((long) (screen & 0xffff) << 32) | ((long) (cellX & 0xffff) << 16)
+                | (cellY & 0xffff);
+    }
+
+    static void dump(String prefix, PrintWriter writer) {
+        final String[] lines = format();
+        writer.println(prefix + "Event log (" + lines.length + " events):");
+        for (String line : lines) {
+            writer.println(prefix + "  " + line);
+        }
+    }
+
+    static void dumpToLog(String tag) {
+        for (String line : format()) {
+            Log.d(tag, "  " + line);
+        }
+    }
+
+    /**
+     * Formats the events that are still in the ring, oldest first. Events that are being written
+     * or overwritten while this runs are left out.
+     */
+    private static String[] format() {
+        final long end = sNextSequence.get();
+        final long start = Math.max(0, end - CAPACITY);
+        final String[] lines = new String[(int) (end - start)];
+        final long[] args = new long[ARG_COUNT];
+        final SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
+        final StringBuilder sb = new StringBuilder();
+        int count = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            final int base = (int) (sequence % CAPACITY) * SLOT_SIZE;
+            if (sSlots.get(base + FIELD_SEQUENCE) != sequence + 1) continue;
+            final long time = sSlots.get(base + FIELD_TIME);
+            final int type = (int) sSlots.get(base + FIELD_TYPE);
+            for (int i = 0; i < ARG_COUNT; i++) {
+                args[i] = sSlots.get(base + FIELD_ARGS + i);
+            }
+            if (sSlots.get(base + FIELD_SEQUENCE) != sequence + 1) continue;
+
+            sb.setLength(0);
+            sb.append(dateFormat.format(new Date(time))).append(' ');
+            formatEvent(sb, type, args);
+            lines[count++] = sb.toString();
+        }
+        if (count < lines.length) {
+            final String[] trimmed = new String[count];
+            System.arraycopy(lines, 0, trimmed, 0, count);
+            return trimmed;
+        }
+        return lines;
+    }
+
+    private static void formatEvent(StringBuilder sb, int type, long[] args) {
+        switch (type) {
+            case EVENT_MOVE_ITEM:
+            case EVENT_MODIFY_ITEM:
+                sb.append(type == EVENT_MOVE_ITEM ? "Move" : "Modify")
+                        .append(" item in db, id: ").append(args[0]).append(' ');
+                appendPosition(sb, args[1], args[3]);
+                sb.append(" --> ");
+                appendPosition(sb, args[2], args[4]);
+                break;
+            case EVENT_ADD_ITEM:
+                sb.append("Add item to db, id: ").append(args[0]).append(' ');
+                appendPosition(sb, args[1], args[2]);
+                break;
+            case EVENT_DELETE_ITEM:
+                sb.append("Delete item from db, id: ").append(args[0]).append(' ');
+                appendPosition(sb, args[1], args[2]);
+                break;
+            case EVENT_REMOVE_MISSING_WIDGET:
+                sb.append("Deleting widget that isn't installed anymore: id=").append(args[0])
+                        .append(" appWidgetId=").append(args[1]);
+                break;
+            default:
+                sb.append("Unknown event ").append(type);
+                break;
+        }
+    }
+
+    private static void appendPosition(StringBuilder sb, long container, long cell) {
+        sb.append('(').append(container)
+                .append(", ").append((short) (cell >> 32))
+                .append(", ").append((short) (cell >> 16))
+                .append(", ").append((short) cell).append(')');
+    }
+}
@@ -20,6 +20,7 @@ import android.app.SearchManager;
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProviderInfo;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
@@ -41,17 +42,21 @@ import android.net.Uri;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.os.Parcelable;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.util.Log;
+import android.util.LongSparseArray;
 
 import com.android.launcher.R;
 import com.android.launcher2.InstallWidgetReceiver.WidgetMimeTypeHandlerData;
 
 import java.lang.ref.WeakReference;
 import java.net.URISyntaxException;
+import java.text.CollationKey;
 import java.text.Collator;
 import java.util.Arrays;
 import java.util.ArrayList;
@@ -59,9 +64,11 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Maintains in-memory state of the Launcher. It is expected that there should be only one
@@ -84,6 +91,15 @@ public class LauncherModel extends BroadcastReceiver {
     private boolean mIsLoaderTaskRunning;
     private volatile boolean mFlushingWorkerThread;
 
+    /**
+     * The time spent decoding the icons stored in the database while loading, for the startup
+     * trace. Each load has its own, so nothing is shared between threads.
+     */
+    static final class IconDecodeStats {
+        long nanos;
+        int count;
+    }
+
     // Specific runnable types that are run on the main thread deferred handler, this allows us to
     // clear all queued binding runnables when the Launcher activity is destroyed.
     private static final int MAIN_THREAD_NORMAL_RUNNABLE = 0;
@@ -113,30 +129,39 @@ public class LauncherModel extends BroadcastReceiver {
     // < only access in worker thread >
     private AllAppsList mBgAllAppsList;
 
-    // The lock that must be acquired before referencing any static bg data structures.  Unlike
-    // other locks, this one can generally be held long-term because we never expect any of these
-    // static data structures to be referenced outside of the worker thread except on the first
-    // load after configuration change.
-    static final Object sBgLock = new Object();
-
-    // sBgItemsIdMap maps *all* the ItemInfos (shortcuts, folders, and widgets) created by
-    // LauncherModel to their ids
-    static final HashMap<Long, ItemInfo> sBgItemsIdMap = new HashMap<Long, ItemInfo>();
-
-    // sBgWorkspaceItems is passed to bindItems, which expects a list of all folders and shortcuts
-    //       created by LauncherModel that are directly on the home screen (however, no widgets or
-    //       shortcuts within folders).
-    static final ArrayList<ItemInfo> sBgWorkspaceItems = new ArrayList<ItemInfo>();
-
-    // sBgAppWidgets is all LauncherAppWidgetInfo created by LauncherModel. Passed to bindAppWidget()
-    static final ArrayList<LauncherAppWidgetInfo> sBgAppWidgets =
-        new ArrayList<LauncherAppWidgetInfo>();
-
-    // sBgFolders is all FolderInfos created by LauncherModel. Passed to bindFolders()
-    static final HashMap<Long, FolderInfo> sBgFolders = new HashMap<Long, FolderInfo>();
-
-    // sBgDbIconCache is the set of ItemInfos that need to have their icons updated in the database
-    static final HashMap<Object, byte[]> sBgDbIconCache = new HashMap<Object, byte[]>();
+    // How long package changes are collected before they are applied, and the longest that the
+    // first of them waits while more keep coming in
+    private static final int PACKAGE_CHANGE_COALESCE_MS = 250;
+    private static final int PACKAGE_CHANGE_MAX_DELAY_MS = 2000;
+
+    // The most threads used to reload the labels of the apps when the locale changes
+    private static final int MAX_RELABEL_THREADS = 4;
+
+    // The package changes waiting to be applied, by package, guarded by itself
+    private final HashMap<String, Integer> mPendingPackageOps = new HashMap<String, Integer>();
+    private long mPendingPackageOpsSince;
+    private int mMergedPackageOpCount;
+    private int mPackageChangeFlushCount;
+
+    // sBgModel is the current snapshot of all the ItemInfos created by LauncherModel. It can be
+    // read from any thread without locking, but is only replaced on the worker thread, see
+    // publishModel().
+    static final AtomicReference<ModelSnapshot> sBgModel =
+            new AtomicReference<ModelSnapshot>(ModelSnapshot.EMPTY);
+
+    // sBgDbIconCache is the set of ItemInfos that may need to have their icons updated in the
+    // database. The saved icons are only read back when they are checked, see
+    // checkSavedIconsWhenIdle(). Only used on the worker thread.
+    static final HashSet<Object> sBgDbIconCache = new HashSet<Object>();
+    // The bytes held by sBgDbIconCache, so that they can be reported from the UI thread
+    private static volatile long sBgDbIconCacheBytes;
+    // Rough size of an entry of sBgDbIconCache
+    private static final int DB_ICON_CACHE_ENTRY_BYTES = 32;
+    // How many saved icons are checked each time the worker thread goes idle
+    private static final int SAVED_ICON_CHECK_BATCH_SIZE = 8;
+    // Set when memory is critical to have the saved icons of the current or next load dropped
+    // instead of checked
+    private volatile boolean mSkipSavedIconChecks;
     // </ only access in worker thread >
 
     private IconCache mIconCache;
@@ -152,7 +177,7 @@ public class LauncherModel extends BroadcastReceiver {
         public int getCurrentWorkspaceScreen();
         public void startBinding();
         public void bindItems(ArrayList<ItemInfo> shortcuts, int start, int end);
-        public void bindFolders(HashMap<Long,FolderInfo> folders);
+        public void bindFolders(LongSparseArray<FolderInfo> folders);
         public void finishBindingItems();
         public void bindAppWidget(LauncherAppWidgetInfo info);
         public void bindAllApplications(ArrayList<ApplicationInfo> apps);
@@ -162,6 +187,8 @@ public class LauncherModel extends BroadcastReceiver {
                         ArrayList<ApplicationInfo> appInfos,
                         boolean matchPackageNamesOnly);
         public void bindPackagesUpdated(ArrayList<Object> widgetsAndShortcuts);
+        public void bindTitlesChanged(ArrayList<ApplicationInfo> apps,
+                HashSet<ShortcutInfo> shortcuts);
         public boolean isAllAppsVisible();
         public boolean isAllAppsButtonRank(int rank);
         public void bindSearchablesChanged();
@@ -180,6 +207,7 @@ public class LauncherModel extends BroadcastReceiver {
         final Resources res = app.getResources();
         mAllAppsLoadDelay = res.getInteger(R.integer.config_allAppsBatchLoadDelay);
         mBatchSize = res.getInteger(R.integer.config_allAppsBatchSize);
+        mHandler.setFrameBudgetMillis(res.getInteger(R.integer.config_bindFrameBudgetMillis));
         Configuration config = res.getConfiguration();
         mPreviousConfigMcc = config.mcc;
     }
@@ -192,7 +220,14 @@ public class LauncherModel extends BroadcastReceiver {
     private void runOnMainThread(Runnable r, int type) {
         if (sWorkerThread.getThreadId() == Process.myTid()) {
             // If we are on the worker thread, post onto the main handler
-            mHandler.post(r);
+            mHandler.post(r, type);
+        } else {
+            r.run();
+        }
+    }
+    private void runOnMainThread(Runnable r, int type, int priority) {
+        if (sWorkerThread.getThreadId() == Process.myTid()) {
+            mHandler.post(r, type, priority);
         } else {
             r.run();
         }
@@ -209,6 +244,18 @@ public class LauncherModel extends BroadcastReceiver {
         }
     }
 
+    /**
+     * Runs the given handler on the worker thread the next time that it has nothing else to do,
+     * and again after that for as long as the handler returns true.
+     */
+    static void runOnWorkerThreadWhenIdle(final MessageQueue.IdleHandler handler) {
+        runOnWorkerThread(new Runnable() {
+            public void run() {
+                Looper.myQueue().addIdleHandler(handler);
+            }
+        });
+    }
+
     public Bitmap getFallbackIcon() {
         return Bitmap.createBitmap(mDefaultIcon);
     }
@@ -227,16 +274,12 @@ public class LauncherModel extends BroadcastReceiver {
         unbindWorkspaceItemsOnMainThread();
     }
 
-    /** Unbinds all the sBgWorkspaceItems and sBgAppWidgets on the main thread */
+    /** Unbinds all the workspace items and app widgets of the model on the main thread */
     void unbindWorkspaceItemsOnMainThread() {
-        // Ensure that we don't use the same workspace items data structure on the main thread
-        // by making a copy of workspace items first.
-        final ArrayList<ItemInfo> tmpWorkspaceItems = new ArrayList<ItemInfo>();
-        final ArrayList<ItemInfo> tmpAppWidgets = new ArrayList<ItemInfo>();
-        synchronized (sBgLock) {
-            tmpWorkspaceItems.addAll(sBgWorkspaceItems);
-            tmpAppWidgets.addAll(sBgAppWidgets);
-        }
+        // The snapshot never changes, so it is safe to use on the main thread
+        final ModelSnapshot model = sBgModel.get();
+        final List<ItemInfo> tmpWorkspaceItems = model.workspaceItems;
+        final List<LauncherAppWidgetInfo> tmpAppWidgets = model.appWidgets;
         Runnable r = new Runnable() {
                 @Override
                 public void run() {
@@ -266,9 +309,29 @@ public class LauncherModel extends BroadcastReceiver {
         }
     }
 
-    static void checkItemInfoLocked(
+    /**
+     * Returns the current snapshot of the items of the model.
+     */
+    static ModelSnapshot getModelSnapshot() {
+        return sBgModel.get();
+    }
+
+    /**
+     * Publishes the snapshot built by the given builder as the current one. Must be called on
+     * the worker thread, which is the only one that changes the model.
+     */
+    static void publishModel(ModelSnapshot.Builder builder) {
+        final ModelSnapshot next = builder.build();
+        if (builder.base == null) {
+            sBgModel.set(next);
+        } else if (!sBgModel.compareAndSet(builder.base, next)) {
+            throw new IllegalStateException("The model was changed outside of the worker thread");
+        }
+    }
+
+    static void checkItemInfoInModel(ModelSnapshot model,
             final long itemId, final ItemInfo item, StackTraceElement[] stackTrace) {
-        ItemInfo modelItem = sBgItemsIdMap.get(itemId);
+        ItemInfo modelItem = model.itemsIdMap.get(itemId);
         if (modelItem != null && item != modelItem) {
             // check all the data is consistent
             if (modelItem instanceof ShortcutInfo && item instanceof ShortcutInfo) {
@@ -314,9 +377,7 @@ public class LauncherModel extends BroadcastReceiver {
         final long itemId = item.id;
         Runnable r = new Runnable() {
             public void run() {
-                synchronized (sBgLock) {
-                    checkItemInfoLocked(itemId, item, stackTrace);
-                }
+                checkItemInfoInModel(sBgModel.get(), itemId, item, stackTrace);
             }
         };
         runOnWorkerThread(r);
@@ -333,43 +394,52 @@ public class LauncherModel extends BroadcastReceiver {
             public void run() {
                 cr.update(uri, values, null, null);
 
-                // Lock on mBgLock *after* the db operation
-                synchronized (sBgLock) {
-                    checkItemInfoLocked(itemId, item, stackTrace);
-
-                    if (item.container != LauncherSettings.Favorites.CONTAINER_DESKTOP &&
-                            item.container != LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
-                        // Item is in a folder, make sure this folder exists
-                        if (!sBgFolders.containsKey(item.container)) {
-                            // An items container is being set to a that of an item which is not in
-                            // the list of Folders.
-                            String msg = "item: " + item + " container being set to: " +
-                                    item.container + ", not in the list of folders";
-                            Log.e(TAG, msg);
-                            Launcher.dumpDebugLogsToConsole();
-                        }
+                // Update the model *after* the db operation
+                final ModelSnapshot model = sBgModel.get();
+                checkItemInfoInModel(model, itemId, item, stackTrace);
+
+                if (item.container != LauncherSettings.Favorites.CONTAINER_DESKTOP &&
+                        item.container != LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
+                    // Item is in a folder, make sure this folder exists
+                    if (model.folders.get(item.container) == null) {
+                        // An items container is being set to a that of an item which is not in
+                        // the list of Folders.
+                        String msg = "item: " + item + " container being set to: " +
+                                item.container + ", not in the list of folders";
+                        Log.e(TAG, msg);
+                        Launcher.dumpDebugLogsToConsole();
                     }
+                }
 
-                    // Items are added/removed from the corresponding FolderInfo elsewhere, such
-                    // as in Workspace.onDrop. Here, we just add/remove them from the list of items
-                    // that are on the desktop, as appropriate
-                    ItemInfo modelItem = sBgItemsIdMap.get(itemId);
-                    if (modelItem.container == LauncherSettings.Favorites.CONTAINER_DESKTOP ||
-                            modelItem.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
-                        switch (modelItem.itemType) {
-                            case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
-                            case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
-                            case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
-                                if (!sBgWorkspaceItems.contains(modelItem)) {
-                                    sBgWorkspaceItems.add(modelItem);
-                                }
-                                break;
-                            default:
-                                break;
-                        }
-                    } else {
-                        sBgWorkspaceItems.remove(modelItem);
+                // Items are added/removed from the corresponding FolderInfo elsewhere, such
+                // as in Workspace.onDrop. Here, we just add/remove them from the list of items
+                // that are on the desktop, as appropriate. Most updates don't change that list,
+                // and those don't need a new snapshot, only the new position in its columns.
+                model.updateColumns(item);
+                ItemInfo modelItem = model.itemsIdMap.get(itemId);
+                // Looked up by id in the columns, rather than by scanning workspaceItems
+                final WorkspaceColumns<ItemInfo> columns = model.getWorkspaceColumns();
+                final int row = columns.indexOf(itemId);
+                final boolean inWorkspaceItems = row >= 0 && columns.getItem(row) == modelItem;
+                if (modelItem.container == LauncherSettings.Favorites.CONTAINER_DESKTOP ||
+                        modelItem.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
+                    switch (modelItem.itemType) {
+                        case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
+                        case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
+                        case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
+                            if (!inWorkspaceItems) {
+                                final ModelSnapshot.Builder builder = model.edit();
+                                builder.workspaceItems.add(modelItem);
+                                publishModel(builder);
+                            }
+                            break;
+                        default:
+                            break;
                     }
+                } else if (inWorkspaceItems) {
+                    final ModelSnapshot.Builder builder = model.edit();
+                    builder.workspaceItems.remove(modelItem);
+                    publishModel(builder);
                 }
             }
         };
@@ -410,11 +480,9 @@ public class LauncherModel extends BroadcastReceiver {
      */
     static void moveItemInDatabase(Context context, final ItemInfo item, final long container,
             final int screen, final int cellX, final int cellY) {
-        String transaction = "DbDebug    Modify item (" + item.title + ") in db, id: " + item.id +
-                " (" + item.container + ", " + item.screen + ", " + item.cellX + ", " + item.cellY +
-                ") --> " + "(" + container + ", " + screen + ", " + cellX + ", " + cellY + ")";
-        Launcher.sDumpLogs.add(transaction);
-        Log.d(TAG, transaction);
+        LauncherEventLog.log(LauncherEventLog.EVENT_MOVE_ITEM, item.id, item.container, container,
+                LauncherEventLog.packCell(item.screen, item.cellX, item.cellY),
+                LauncherEventLog.packCell(screen, cellX, cellY));
         item.container = container;
         item.cellX = cellX;
         item.cellY = cellY;
@@ -442,11 +510,9 @@ public class LauncherModel extends BroadcastReceiver {
      */
     static void modifyItemInDatabase(Context context, final ItemInfo item, final long container,
             final int screen, final int cellX, final int cellY, final int spanX, final int spanY) {
-        String transaction = "DbDebug    Modify item (" + item.title + ") in db, id: " + item.id +
-                " (" + item.container + ", " + item.screen + ", " + item.cellX + ", " + item.cellY +
-                ") --> " + "(" + container + ", " + screen + ", " + cellX + ", " + cellY + ")";
-        Launcher.sDumpLogs.add(transaction);
-        Log.d(TAG, transaction);
+        LauncherEventLog.log(LauncherEventLog.EVENT_MODIFY_ITEM, item.id, item.container,
+                container, LauncherEventLog.packCell(item.screen, item.cellX, item.cellY),
+                LauncherEventLog.packCell(screen, cellX, cellY));
         item.cellX = cellX;
         item.cellY = cellY;
         item.spanX = spanX;
@@ -545,7 +611,7 @@ public class LauncherModel extends BroadcastReceiver {
     /**
      * Find a folder in the db, creating the FolderInfo if necessary, and adding it to folderList.
      */
-    FolderInfo getFolderById(Context context, HashMap<Long,FolderInfo> folderList, long id) {
+    FolderInfo getFolderById(Context context, LongSparseArray<FolderInfo> folderList, long id) {
         final ContentResolver cr = context.getContentResolver();
         Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI, null,
                 "_id=? and (itemType=? or itemType=?)",
@@ -613,48 +679,97 @@ public class LauncherModel extends BroadcastReceiver {
 
         Runnable r = new Runnable() {
             public void run() {
-                String transaction = "DbDebug    Add item (" + item.title + ") to db, id: "
-                        + item.id + " (" + container + ", " + screen + ", " + cellX + ", "
-                        + cellY + ")";
-                Launcher.sDumpLogs.add(transaction);
-                Log.d(TAG, transaction);
+                LauncherEventLog.log(LauncherEventLog.EVENT_ADD_ITEM, item.id, container,
+                        LauncherEventLog.packCell(screen, cellX, cellY));
 
                 cr.insert(notify ? LauncherSettings.Favorites.CONTENT_URI :
                         LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION, values);
 
-                // Lock on mBgLock *after* the db operation
-                synchronized (sBgLock) {
-                    checkItemInfoLocked(item.id, item, null);
-                    sBgItemsIdMap.put(item.id, item);
-                    switch (item.itemType) {
-                        case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
-                            sBgFolders.put(item.id, (FolderInfo) item);
-                            // Fall through
-                        case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
-                        case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
-                            if (item.container == LauncherSettings.Favorites.CONTAINER_DESKTOP ||
-                                    item.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
-                                sBgWorkspaceItems.add(item);
-                            } else {
-                                if (!sBgFolders.containsKey(item.container)) {
-                                    // Adding an item to a folder that doesn't exist.
-                                    String msg = "adding item: " + item + " to a folder that " +
-                                            " doesn't exist";
-                                    Log.e(TAG, msg);
-                                    Launcher.dumpDebugLogsToConsole();
-                                }
-                            }
-                            break;
-                        case LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET:
-                            sBgAppWidgets.add((LauncherAppWidgetInfo) item);
-                            break;
-                    }
+                // Update the model *after* the db operation
+                final ModelSnapshot model = sBgModel.get();
+                checkItemInfoInModel(model, item.id, item, null);
+                final ModelSnapshot.Builder builder = model.edit();
+                addItemToModel(builder, item);
+                publishModel(builder);
+            }
+        };
+        runOnWorkerThread(r);
+    }
+
+    /**
+     * Adds items to the database all at once, in one transaction. Unlike
+     * {@link #addItemToDatabase}, the container, screen, cellX and cellY fields of the items must
+     * already be set. Also assigns an ID to each item.
+     */
+    static void addItemsToDatabase(Context context, final ArrayList<? extends ItemInfo> items,
+            final boolean notify) {
+        final int count = items.size();
+        final ContentValues[] values = new ContentValues[count];
+        final ContentResolver cr = context.getContentResolver();
+        LauncherApplication app = (LauncherApplication) context.getApplicationContext();
+        final long firstId = count > 0 ? app.getLauncherProvider().generateNewIds(count) : 0;
+        for (int i = 0; i < count; i++) {
+            final ItemInfo item = items.get(i);
+            values[i] = new ContentValues();
+            item.onAddToDatabase(values[i]);
+            item.id = firstId + i;
+            values[i].put(LauncherSettings.Favorites._ID, item.id);
+            item.updateValuesWithCoordinates(values[i], item.cellX, item.cellY);
+        }
+
+        Runnable r = new Runnable() {
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    final ItemInfo item = items.get(i);
+                    LauncherEventLog.log(LauncherEventLog.EVENT_ADD_ITEM, item.id,
+                            item.container,
+                            LauncherEventLog.packCell(item.screen, item.cellX, item.cellY));
+                }
+
+                cr.bulkInsert(notify ? LauncherSettings.Favorites.CONTENT_URI :
+                        LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION, values);
+
+                // Update the model *after* the db operation
+                final ModelSnapshot model = sBgModel.get();
+                final ModelSnapshot.Builder builder = model.edit();
+                for (int i = 0; i < count; i++) {
+                    final ItemInfo item = items.get(i);
+                    checkItemInfoInModel(model, item.id, item, null);
+                    addItemToModel(builder, item);
                 }
+                publishModel(builder);
             }
         };
         runOnWorkerThread(r);
     }
 
+    private static void addItemToModel(ModelSnapshot.Builder builder, ItemInfo item) {
+        builder.itemsIdMap.put(item.id, item);
+        switch (item.itemType) {
+            case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
+                builder.folders.put(item.id, (FolderInfo) item);
+                // Fall through
+            case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
+            case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
+                if (item.container == LauncherSettings.Favorites.CONTAINER_DESKTOP ||
+                        item.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
+                    builder.workspaceItems.add(item);
+                } else {
+                    if (builder.folders.get(item.container) == null) {
+                        // Adding an item to a folder that doesn't exist.
+                        String msg = "adding item: " + item + " to a folder that " +
+                                " doesn't exist";
+                        Log.e(TAG, msg);
+                        Launcher.dumpDebugLogsToConsole();
+                    }
+                }
+                break;
+            case LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET:
+                builder.appWidgets.add((LauncherAppWidgetInfo) item);
+                break;
+        }
+    }
+
     /**
      * Creates a new unique child id, for a given cell span across all layouts.
      */
@@ -692,42 +807,40 @@ public class LauncherModel extends BroadcastReceiver {
 
         Runnable r = new Runnable() {
             public void run() {
-                String transaction = "DbDebug    Delete item (" + item.title + ") from db, id: "
-                        + item.id + " (" + item.container + ", " + item.screen + ", " + item.cellX +
-                        ", " + item.cellY + ")";
-                Launcher.sDumpLogs.add(transaction);
-                Log.d(TAG, transaction);
+                LauncherEventLog.log(LauncherEventLog.EVENT_DELETE_ITEM, item.id, item.container,
+                        LauncherEventLog.packCell(item.screen, item.cellX, item.cellY));
 
                 cr.delete(uriToDelete, null, null);
 
-                // Lock on mBgLock *after* the db operation
-                synchronized (sBgLock) {
-                    switch (item.itemType) {
-                        case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
-                            sBgFolders.remove(item.id);
-                            for (ItemInfo info: sBgItemsIdMap.values()) {
-                                if (info.container == item.id) {
-                                    // We are deleting a folder which still contains items that
-                                    // think they are contained by that folder.
-                                    String msg = "deleting a folder (" + item + ") which still " +
-                                            "contains items (" + info + ")";
-                                    Log.e(TAG, msg);
-                                    Launcher.dumpDebugLogsToConsole();
-                                }
+                // Update the model *after* the db operation
+                final ModelSnapshot.Builder builder = sBgModel.get().edit();
+                switch (item.itemType) {
+                    case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
+                        builder.folders.remove(item.id);
+                        for (int i = 0; i < builder.itemsIdMap.size(); i++) {
+                            final ItemInfo info = builder.itemsIdMap.valueAt(i);
+                            if (info.container == item.id) {
+                                // We are deleting a folder which still contains items that
+                                // think they are contained by that folder.
+                                String msg = "deleting a folder (" + item + ") which still " +
+                                        "contains items (" + info + ")";
+                                Log.e(TAG, msg);
+                                Launcher.dumpDebugLogsToConsole();
                             }
-                            sBgWorkspaceItems.remove(item);
-                            break;
-                        case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
-                        case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
-                            sBgWorkspaceItems.remove(item);
-                            break;
-                        case LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET:
-                            sBgAppWidgets.remove((LauncherAppWidgetInfo) item);
-                            break;
-                    }
-                    sBgItemsIdMap.remove(item.id);
-                    sBgDbIconCache.remove(item);
+                        }
+                        builder.workspaceItems.remove(item);
+                        break;
+                    case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
+                    case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
+                        builder.workspaceItems.remove(item);
+                        break;
+                    case LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET:
+                        builder.appWidgets.remove((LauncherAppWidgetInfo) item);
+                        break;
                 }
+                builder.itemsIdMap.remove(item.id);
+                publishModel(builder);
+                removeDbIconCheck(item);
             }
         };
         runOnWorkerThread(r);
@@ -742,23 +855,23 @@ public class LauncherModel extends BroadcastReceiver {
         Runnable r = new Runnable() {
             public void run() {
                 cr.delete(LauncherSettings.Favorites.getContentUri(info.id, false), null, null);
-                // Lock on mBgLock *after* the db operation
-                synchronized (sBgLock) {
-                    sBgItemsIdMap.remove(info.id);
-                    sBgFolders.remove(info.id);
-                    sBgDbIconCache.remove(info);
-                    sBgWorkspaceItems.remove(info);
-                }
+                // Update the model *after* the db operation
+                ModelSnapshot.Builder builder = sBgModel.get().edit();
+                builder.itemsIdMap.remove(info.id);
+                builder.folders.remove(info.id);
+                builder.workspaceItems.remove(info);
+                publishModel(builder);
+                removeDbIconCheck(info);
 
                 cr.delete(LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION,
                         LauncherSettings.Favorites.CONTAINER + "=" + info.id, null);
-                // Lock on mBgLock *after* the db operation
-                synchronized (sBgLock) {
-                    for (ItemInfo childInfo : info.contents) {
-                        sBgItemsIdMap.remove(childInfo.id);
-                        sBgDbIconCache.remove(childInfo);
-                    }
+                // Update the model *after* the db operation
+                builder = sBgModel.get().edit();
+                for (ItemInfo childInfo : info.contents) {
+                    builder.itemsIdMap.remove(childInfo.id);
+                    removeDbIconCheck(childInfo);
                 }
+                publishModel(builder);
             }
         };
         runOnWorkerThread(r);
@@ -813,31 +926,30 @@ public class LauncherModel extends BroadcastReceiver {
             }
 
             if (op != PackageUpdatedTask.OP_NONE) {
-                enqueuePackageUpdated(new PackageUpdatedTask(op, new String[] { packageName }));
+                enqueuePackageChanges(op, new String[] { packageName }, false);
             }
 
         } else if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)) {
             // First, schedule to add these apps back in.
             String[] packages = intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
-            enqueuePackageUpdated(new PackageUpdatedTask(PackageUpdatedTask.OP_ADD, packages));
+            enqueuePackageChanges(PackageUpdatedTask.OP_ADD, packages, true);
             // Then, rebind everything.
             startLoaderFromBackground();
         } else if (Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
             String[] packages = intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
-            enqueuePackageUpdated(new PackageUpdatedTask(
-                        PackageUpdatedTask.OP_UNAVAILABLE, packages));
+            enqueuePackageChanges(PackageUpdatedTask.OP_UNAVAILABLE, packages, true);
         } else if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
-            // If we have changed locale we need to clear out the labels in all apps/workspace.
-            forceReload();
+            // If we have changed locale we need to reload the labels in all apps/workspace.
+            startRelabel();
         } else if (Intent.ACTION_CONFIGURATION_CHANGED.equals(action)) {
              // Check if configuration change was an mcc/mnc change which would affect app resources
-             // and we would need to clear out the labels in all apps/workspace. Same handling as
+             // and we would need to reload the labels in all apps/workspace. Same handling as
              // above for ACTION_LOCALE_CHANGED
              Configuration currentConfig = context.getResources().getConfiguration();
              if (mPreviousConfigMcc != currentConfig.mcc) {
-                   Log.d(TAG, "Reload apps on config change. curr_mcc:"
+                   Log.d(TAG, "Relabel apps on config change. curr_mcc:"
                        + currentConfig.mcc + " prevmcc:" + mPreviousConfigMcc);
-                   forceReload();
+                   startRelabel();
              }
              // Update previousConfig
              mPreviousConfigMcc = currentConfig.mcc;
@@ -852,13 +964,159 @@ public class LauncherModel extends BroadcastReceiver {
         }
     }
 
-    private void forceReload() {
-        resetLoadedState(true, true);
+    /**
+     * Reloads the labels of the apps after the locale changed. Unlike a full reload, this keeps
+     * all of the items and their icons, and only the titles that changed are rebound.
+     */
+    private void startRelabel() {
+        sWorker.removeCallbacks(mRelabelRunnable);
+        sWorker.post(mRelabelRunnable);
+    }
+
+    private final Runnable mRelabelRunnable = new Runnable() {
+        public void run() {
+            relabelApps();
+        }
+    };
+
+    private void relabelApps() {
+        final long t = SystemClock.uptimeMillis();
+
+        // The apps in all apps, and the app shortcuts anywhere in the workspace, by component
+        final ArrayList<ApplicationInfo> apps = new ArrayList<ApplicationInfo>(mBgAllAppsList.data);
+        final ArrayList<ShortcutInfo> shortcuts = new ArrayList<ShortcutInfo>();
+        final ArrayList<ComponentName> components = new ArrayList<ComponentName>();
+        final HashMap<ComponentName, Integer> componentIndices =
+                new HashMap<ComponentName, Integer>();
+        for (ApplicationInfo app : apps) {
+            if (!componentIndices.containsKey(app.componentName)) {
+                componentIndices.put(app.componentName, components.size());
+                components.add(app.componentName);
+            }
+        }
+        final LongSparseArray<ItemInfo> itemsIdMap = sBgModel.get().itemsIdMap;
+        for (int i = 0; i < itemsIdMap.size(); i++) {
+            final ItemInfo item = itemsIdMap.valueAt(i);
+            if (item.itemType != LauncherSettings.Favorites.ITEM_TYPE_APPLICATION ||
+                    !(item instanceof ShortcutInfo)) {
+                continue;
+            }
+            final ShortcutInfo shortcut = (ShortcutInfo) item;
+            final ComponentName component =
+                    shortcut.intent != null ? shortcut.intent.getComponent() : null;
+            if (component != null) {
+                shortcuts.add(shortcut);
+                if (!componentIndices.containsKey(component)) {
+                    componentIndices.put(component, components.size());
+                    components.add(component);
+                }
+            }
+        }
 
-        // Do this here because if the launcher activity is running it will be restarted.
-        // If it's not running startLoaderFromBackground will merely tell it that it needs
-        // to reload.
-        startLoaderFromBackground();
+        final String[] labels = loadLabels(mApp.getPackageManager(),
+                components.toArray(new ComponentName[components.size()]));
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i] != null) {
+                mIconCache.updateTitle(components.get(i), labels[i]);
+            }
+        }
+
+        // The items are shared with the UI thread, so only look for the titles that changed
+        // here, and change them there
+        final ArrayList<ApplicationInfo> changedApps = new ArrayList<ApplicationInfo>();
+        final ArrayList<String> appTitles = new ArrayList<String>();
+        for (ApplicationInfo app : apps) {
+            final String label = labels[componentIndices.get(app.componentName)];
+            if (label != null && (app.title == null || !label.equals(app.title.toString()))) {
+                changedApps.add(app);
+                appTitles.add(label);
+            }
+        }
+        final ArrayList<ShortcutInfo> changedShortcuts = new ArrayList<ShortcutInfo>();
+        final ArrayList<String> shortcutTitles = new ArrayList<String>();
+        for (ShortcutInfo shortcut : shortcuts) {
+            final String label = labels[componentIndices.get(shortcut.intent.getComponent())];
+            if (label != null &&
+                    (shortcut.title == null || !label.equals(shortcut.title.toString()))) {
+                changedShortcuts.add(shortcut);
+                shortcutTitles.add(label);
+            }
+        }
+
+        if (DEBUG_LOADERS) {
+            Log.d(TAG, "relabeled " + components.size() + " components in "
+                    + (SystemClock.uptimeMillis() - t) + "ms, " + changedApps.size()
+                    + " apps and " + changedShortcuts.size() + " shortcuts changed");
+        }
+
+        mHandler.post(new Runnable() {
+            public void run() {
+                for (int i = 0; i < changedApps.size(); i++) {
+                    changedApps.get(i).title = appTitles.get(i);
+                }
+                final HashSet<ShortcutInfo> changed = new HashSet<ShortcutInfo>();
+                for (int i = 0; i < changedShortcuts.size(); i++) {
+                    final ShortcutInfo shortcut = changedShortcuts.get(i);
+                    shortcut.title = shortcutTitles.get(i);
+                    changed.add(shortcut);
+                }
+                // The order of the apps depends on the locale even if none of the titles
+                // changed, so the callbacks are always told
+                final Callbacks callbacks = mCallbacks != null ? mCallbacks.get() : null;
+                if (callbacks != null) {
+                    callbacks.bindTitlesChanged(changedApps, changed);
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads the labels of the given activities, spread over a few threads since each one is a
+     * call into the package manager. The labels of activities that are gone are null.
+     */
+    private static String[] loadLabels(final PackageManager pm,
+            final ComponentName[] components) {
+        final String[] labels = new String[components.length];
+        final AtomicInteger next = new AtomicInteger();
+        final Runnable loader = new Runnable() {
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < components.length) {
+                    try {
+                        final CharSequence label =
+                                pm.getActivityInfo(components[i], 0).loadLabel(pm);
+                        labels[i] = label != null ? label.toString() : null;
+                    } catch (NameNotFoundException e) {
+                        labels[i] = null;
+                    }
+                }
+            }
+        };
+
+        // The calling thread loads labels too
+        final int helpers = Math.min(MAX_RELABEL_THREADS,
+                Math.min(Runtime.getRuntime().availableProcessors(), components.length)) - 1;
+        final CountDownLatch done = new CountDownLatch(Math.max(0, helpers));
+        for (int i = 0; i < helpers; i++) {
+            new Thread("launcher-relabel-" + i) {
+                @Override
+                public void run() {
+                    try {
+                        loader.run();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        loader.run();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            // The labels that were not loaded yet are left as they are
+            Thread.currentThread().interrupt();
+        }
+        return labels;
     }
 
     public void resetLoadedState(boolean resetAllAppsLoaded, boolean resetWorkspaceLoaded) {
@@ -937,7 +1195,8 @@ public class LauncherModel extends BroadcastReceiver {
         // Post the remaining side pages to be loaded
         if (!mDeferredBindRunnables.isEmpty()) {
             for (final Runnable r : mDeferredBindRunnables) {
-                mHandler.post(r, MAIN_THREAD_BINDING_RUNNABLE);
+                mHandler.post(r, MAIN_THREAD_BINDING_RUNNABLE,
+                        DeferredHandler.PRIORITY_OTHER_PAGES);
             }
             mDeferredBindRunnables.clear();
         }
@@ -1144,14 +1403,21 @@ public class LauncherModel extends BroadcastReceiver {
             }
 
 
-            // Update the saved icons if necessary
-            if (DEBUG_LOADERS) Log.d(TAG, "Comparing loaded icons to database icons");
-            synchronized (sBgLock) {
-                for (Object key : sBgDbIconCache.keySet()) {
-                    updateSavedIcon(mContext, (ShortcutInfo) key, sBgDbIconCache.get(key));
+            // Update the saved icons if necessary, once the worker thread has nothing else to do
+            final int count = sBgDbIconCache.size();
+            if (count > 0 && !mSkipSavedIconChecks) {
+                if (DEBUG_LOADERS) Log.d(TAG, "Queueing " + count + " saved icon checks");
+                final ShortcutInfo[] items = new ShortcutInfo[count];
+                int i = 0;
+                for (Object key : sBgDbIconCache) {
+                    items[i++] = (ShortcutInfo) key;
                 }
-                sBgDbIconCache.clear();
+                checkSavedIconsWhenIdle(items);
+            } else {
+                mSkipSavedIconChecks = false;
             }
+            sBgDbIconCache.clear();
+            sBgDbIconCacheBytes = 0;
 
             // Clear out this reference, otherwise we end up holding it until all of the
             // callback runnables are done.
@@ -1252,6 +1518,7 @@ public class LauncherModel extends BroadcastReceiver {
 
         private void loadWorkspace() {
             final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+            final long traceStart = StartupTrace.begin();
 
             final Context context = mContext;
             final ContentResolver contentResolver = context.getContentResolver();
@@ -1262,423 +1529,386 @@ public class LauncherModel extends BroadcastReceiver {
             // Make sure the default workspace is loaded, if needed
             mApp.getLauncherProvider().loadDefaultFavoritesIfNecessary(0);
 
-            synchronized (sBgLock) {
-                sBgWorkspaceItems.clear();
-                sBgAppWidgets.clear();
-                sBgFolders.clear();
-                sBgItemsIdMap.clear();
-                sBgDbIconCache.clear();
+            // The loaded items are published all at once, the current snapshot stays in use until
+            // then
+            final ModelSnapshot.Builder model = new ModelSnapshot.Builder();
+            sBgDbIconCache.clear();
+            sBgDbIconCacheBytes = 0;
 
-                final ArrayList<Long> itemsToRemove = new ArrayList<Long>();
+            final LongList itemsToRemove = new LongList();
 
-                final Cursor c = contentResolver.query(
-                        LauncherSettings.Favorites.CONTENT_URI, null, null, null, null);
+            final long cursorStart = StartupTrace.begin();
+            final IconDecodeStats decodeStats = new IconDecodeStats();
+            final Cursor c = contentResolver.query(
+                    LauncherSettings.Favorites.CONTENT_URI, null, null, null, null);
 
-                // +1 for the hotseat (it can be larger than the workspace)
-                // Load workspace in reverse order to ensure that latest items are loaded first (and
-                // before any earlier duplicates)
-                final ItemInfo occupied[][][] =
-                        new ItemInfo[Launcher.SCREEN_COUNT + 1][mCellCountX + 1][mCellCountY + 1];
+            // +1 for the hotseat (it can be larger than the workspace)
+            // Load workspace in reverse order to ensure that latest items are loaded first (and
+            // before any earlier duplicates)
+            final ItemInfo occupied[][][] =
+                    new ItemInfo[Launcher.SCREEN_COUNT + 1][mCellCountX + 1][mCellCountY + 1];
 
-                try {
-                    final int idIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites._ID);
-                    final int intentIndex = c.getColumnIndexOrThrow
-                            (LauncherSettings.Favorites.INTENT);
-                    final int titleIndex = c.getColumnIndexOrThrow
-                            (LauncherSettings.Favorites.TITLE);
-                    final int iconTypeIndex = c.getColumnIndexOrThrow(
-                            LauncherSettings.Favorites.ICON_TYPE);
-                    final int iconIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ICON);
-                    final int iconPackageIndex = c.getColumnIndexOrThrow(
-                            LauncherSettings.Favorites.ICON_PACKAGE);
-                    final int iconResourceIndex = c.getColumnIndexOrThrow(
-                            LauncherSettings.Favorites.ICON_RESOURCE);
-                    final int containerIndex = c.getColumnIndexOrThrow(
-                            LauncherSettings.Favorites.CONTAINER);
-                    final int itemTypeIndex = c.getColumnIndexOrThrow(
-                            LauncherSettings.Favorites.ITEM_TYPE);
-                    final int appWidgetIdIndex = c.getColumnIndexOrThrow(
-                            LauncherSettings.Favorites.APPWIDGET_ID);
-                    final int screenIndex = c.getColumnIndexOrThrow(
-                            LauncherSettings.Favorites.SCREEN);
-                    final int cellXIndex = c.getColumnIndexOrThrow
-                            (LauncherSettings.Favorites.CELLX);
-                    final int cellYIndex = c.getColumnIndexOrThrow
-                            (LauncherSettings.Favorites.CELLY);
-                    final int spanXIndex = c.getColumnIndexOrThrow
-                            (LauncherSettings.Favorites.SPANX);
-                    final int spanYIndex = c.getColumnIndexOrThrow(
-                            LauncherSettings.Favorites.SPANY);
-                    //final int uriIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.URI);
-                    //final int displayModeIndex = c.getColumnIndexOrThrow(
-                    //        LauncherSettings.Favorites.DISPLAY_MODE);
-
-                    ShortcutInfo info;
-                    String intentDescription;
-                    LauncherAppWidgetInfo appWidgetInfo;
-                    int container;
-                    long id;
-                    Intent intent;
-
-                    while (!mStopped && c.moveToNext()) {
-                        try {
-                            int itemType = c.getInt(itemTypeIndex);
-
-                            switch (itemType) {
-                            case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
-                            case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
-                                intentDescription = c.getString(intentIndex);
-                                try {
-                                    intent = Intent.parseUri(intentDescription, 0);
-                                } catch (URISyntaxException e) {
-                                    continue;
-                                }
+            try {
+                final int idIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites._ID);
+                final int intentIndex = c.getColumnIndexOrThrow
+                        (LauncherSettings.Favorites.INTENT);
+                final int titleIndex = c.getColumnIndexOrThrow
+                        (LauncherSettings.Favorites.TITLE);
+                final int iconTypeIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.ICON_TYPE);
+                final int iconIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ICON);
+                final int iconPackageIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.ICON_PACKAGE);
+                final int iconResourceIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.ICON_RESOURCE);
+                final int containerIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.CONTAINER);
+                final int itemTypeIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.ITEM_TYPE);
+                final int appWidgetIdIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.APPWIDGET_ID);
+                final int screenIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.SCREEN);
+                final int cellXIndex = c.getColumnIndexOrThrow
+                        (LauncherSettings.Favorites.CELLX);
+                final int cellYIndex = c.getColumnIndexOrThrow
+                        (LauncherSettings.Favorites.CELLY);
+                final int spanXIndex = c.getColumnIndexOrThrow
+                        (LauncherSettings.Favorites.SPANX);
+                final int spanYIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.SPANY);
+                //final int uriIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.URI);
+                //final int displayModeIndex = c.getColumnIndexOrThrow(
+                //        LauncherSettings.Favorites.DISPLAY_MODE);
+
+                ShortcutInfo info;
+                String intentDescription;
+                LauncherAppWidgetInfo appWidgetInfo;
+                int container;
+                long id;
+                Intent intent;
+
+                while (!mStopped && c.moveToNext()) {
+                    try {
+                        int itemType = c.getInt(itemTypeIndex);
 
-                                if (itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
-                                    info = getShortcutInfo(manager, intent, context, c, iconIndex,
-                                            titleIndex, mLabelCache);
-                                } else {
-                                    info = getShortcutInfo(c, context, iconTypeIndex,
-                                            iconPackageIndex, iconResourceIndex, iconIndex,
-                                            titleIndex);
-
-                                    // App shortcuts that used to be automatically added to Launcher
-                                    // didn't always have the correct intent flags set, so do that
-                                    // here
-                                    if (intent.getAction() != null &&
-                                        intent.getCategories() != null &&
-                                        intent.getAction().equals(Intent.ACTION_MAIN) &&
-                                        intent.getCategories().contains(Intent.CATEGORY_LAUNCHER)) {
-                                        intent.addFlags(
-                                            Intent.FLAG_ACTIVITY_NEW_TASK |
-                                            Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED);
-                                    }
-                                }
+                        switch (itemType) {
+                        case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
+                        case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
+                            intentDescription = c.getString(intentIndex);
+                            try {
+                                intent = Intent.parseUri(intentDescription, 0);
+                            } catch (URISyntaxException e) {
+                                continue;
+                            }
 
-                                if (info != null) {
-                                    info.intent = intent;
-                                    info.id = c.getLong(idIndex);
-                                    container = c.getInt(containerIndex);
-                                    info.container = container;
-                                    info.screen = c.getInt(screenIndex);
-                                    info.cellX = c.getInt(cellXIndex);
-                                    info.cellY = c.getInt(cellYIndex);
-
-                                    // check & update map of what's occupied
-                                    if (!checkItemPlacement(occupied, info)) {
-                                        break;
-                                    }
-
-                                    switch (container) {
-                                    case LauncherSettings.Favorites.CONTAINER_DESKTOP:
-                                    case LauncherSettings.Favorites.CONTAINER_HOTSEAT:
-                                        sBgWorkspaceItems.add(info);
-                                        break;
-                                    default:
-                                        // Item is in a user folder
-                                        FolderInfo folderInfo =
-                                                findOrMakeFolder(sBgFolders, container);
-                                        folderInfo.add(info);
-                                        break;
-                                    }
-                                    sBgItemsIdMap.put(info.id, info);
-
-                                    // now that we've loaded everthing re-save it with the
-                                    // icon in case it disappears somehow.
-                                    queueIconToBeChecked(sBgDbIconCache, info, c, iconIndex);
-                                } else {
-                                    // Failed to load the shortcut, probably because the
-                                    // activity manager couldn't resolve it (maybe the app
-                                    // was uninstalled), or the db row was somehow screwed up.
-                                    // Delete it.
-                                    id = c.getLong(idIndex);
-                                    Log.e(TAG, "Error loading shortcut " + id + ", removing it");
-                                    contentResolver.delete(LauncherSettings.Favorites.getContentUri(
-                                                id, false), null, null);
+                            if (itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
+                                info = getShortcutInfo(manager, intent, context, c, iconIndex,
+                                        titleIndex, mLabelCache, decodeStats);
+                            } else {
+                                info = getShortcutInfo(c, context, iconTypeIndex,
+                                        iconPackageIndex, iconResourceIndex, iconIndex,
+                                        titleIndex);
+
+                                // App shortcuts that used to be automatically added to Launcher
+                                // didn't always have the correct intent flags set, so do that
+                                // here
+                                if (intent.getAction() != null &&
+                                    intent.getCategories() != null &&
+                                    intent.getAction().equals(Intent.ACTION_MAIN) &&
+                                    intent.getCategories().contains(Intent.CATEGORY_LAUNCHER)) {
+                                    intent.addFlags(
+                                        Intent.FLAG_ACTIVITY_NEW_TASK |
+                                        Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED);
                                 }
-                                break;
-
-                            case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
-                                id = c.getLong(idIndex);
-                                FolderInfo folderInfo = findOrMakeFolder(sBgFolders, id);
+                            }
 
-                                folderInfo.title = c.getString(titleIndex);
-                                folderInfo.id = id;
+                            if (info != null) {
+                                info.intent = intent;
+                                info.id = c.getLong(idIndex);
                                 container = c.getInt(containerIndex);
-                                folderInfo.container = container;
-                                folderInfo.screen = c.getInt(screenIndex);
-                                folderInfo.cellX = c.getInt(cellXIndex);
-                                folderInfo.cellY = c.getInt(cellYIndex);
+                                info.container = container;
+                                info.screen = c.getInt(screenIndex);
+                                info.cellX = c.getInt(cellXIndex);
+                                info.cellY = c.getInt(cellYIndex);
 
                                 // check & update map of what's occupied
-                                if (!checkItemPlacement(occupied, folderInfo)) {
+                                if (!checkItemPlacement(occupied, info)) {
                                     break;
                                 }
+
                                 switch (container) {
-                                    case LauncherSettings.Favorites.CONTAINER_DESKTOP:
-                                    case LauncherSettings.Favorites.CONTAINER_HOTSEAT:
-                                        sBgWorkspaceItems.add(folderInfo);
-                                        break;
+                                case LauncherSettings.Favorites.CONTAINER_DESKTOP:
+                                case LauncherSettings.Favorites.CONTAINER_HOTSEAT:
+                                    model.workspaceItems.add(info);
+                                    break;
+                                default:
+                                    // Item is in a user folder
+                                    FolderInfo folderInfo =
+                                            findOrMakeFolder(model.folders, container);
+                                    folderInfo.add(info);
+                                    break;
                                 }
+                                model.itemsIdMap.put(info.id, info);
 
-                                sBgItemsIdMap.put(folderInfo.id, folderInfo);
-                                sBgFolders.put(folderInfo.id, folderInfo);
-                                break;
-
-                            case LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET:
-                                // Read all Launcher-specific widget details
-                                int appWidgetId = c.getInt(appWidgetIdIndex);
+                                // now that we've loaded everthing re-save it with the
+                                // icon in case it disappears somehow.
+                                queueIconToBeChecked(sBgDbIconCache, info);
+                            } else {
+                                // Failed to load the shortcut, probably because the
+                                // activity manager couldn't resolve it (maybe the app
+                                // was uninstalled), or the db row was somehow screwed up.
+                                // Delete it.
                                 id = c.getLong(idIndex);
+                                Log.e(TAG, "Error loading shortcut " + id + ", removing it");
+                                contentResolver.delete(LauncherSettings.Favorites.getContentUri(
+                                            id, false), null, null);
+                            }
+                            break;
 
-                                final AppWidgetProviderInfo provider =
-                                        widgets.getAppWidgetInfo(appWidgetId);
-
-                                if (!isSafeMode && (provider == null || provider.provider == null ||
-                                        provider.provider.getPackageName() == null)) {
-                                    String log = "Deleting widget that isn't installed anymore: id="
-                                        + id + " appWidgetId=" + appWidgetId;
-                                    Log.e(TAG, log);
-                                    Launcher.sDumpLogs.add(log);
-                                    itemsToRemove.add(id);
-                                } else {
-                                    appWidgetInfo = new LauncherAppWidgetInfo(appWidgetId,
-                                            provider.provider);
-                                    appWidgetInfo.id = id;
-                                    appWidgetInfo.screen = c.getInt(screenIndex);
-                                    appWidgetInfo.cellX = c.getInt(cellXIndex);
-                                    appWidgetInfo.cellY = c.getInt(cellYIndex);
-                                    appWidgetInfo.spanX = c.getInt(spanXIndex);
-                                    appWidgetInfo.spanY = c.getInt(spanYIndex);
-                                    int[] minSpan = Launcher.getMinSpanForWidget(context, provider);
-                                    appWidgetInfo.minSpanX = minSpan[0];
-                                    appWidgetInfo.minSpanY = minSpan[1];
-
-                                    container = c.getInt(containerIndex);
-                                    if (container != LauncherSettings.Favorites.CONTAINER_DESKTOP &&
-                                        container != LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
-                                        Log.e(TAG, "Widget found where container != " +
-                                            "CONTAINER_DESKTOP nor CONTAINER_HOTSEAT - ignoring!");
-                                        continue;
-                                    }
-                                    appWidgetInfo.container = c.getInt(containerIndex);
-
-                                    // check & update map of what's occupied
-                                    if (!checkItemPlacement(occupied, appWidgetInfo)) {
-                                        break;
-                                    }
-                                    sBgItemsIdMap.put(appWidgetInfo.id, appWidgetInfo);
-                                    sBgAppWidgets.add(appWidgetInfo);
-                                }
+                        case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
+                            id = c.getLong(idIndex);
+                            FolderInfo folderInfo = findOrMakeFolder(model.folders, id);
+
+                            folderInfo.title = c.getString(titleIndex);
+                            folderInfo.id = id;
+                            container = c.getInt(containerIndex);
+                            folderInfo.container = container;
+                            folderInfo.screen = c.getInt(screenIndex);
+                            folderInfo.cellX = c.getInt(cellXIndex);
+                            folderInfo.cellY = c.getInt(cellYIndex);
+
+                            // check & update map of what's occupied
+                            if (!checkItemPlacement(occupied, folderInfo)) {
                                 break;
                             }
-                        } catch (Exception e) {
-                            Log.w(TAG, "Desktop items loading interrupted:", e);
-                        }
-                    }
-                } finally {
-                    c.close();
-                }
+                            switch (container) {
+                                case LauncherSettings.Favorites.CONTAINER_DESKTOP:
+                                case LauncherSettings.Favorites.CONTAINER_HOTSEAT:
+                                    model.workspaceItems.add(folderInfo);
+                                    break;
+                            }
 
-                if (itemsToRemove.size() > 0) {
-                    ContentProviderClient client = contentResolver.acquireContentProviderClient(
-                                    LauncherSettings.Favorites.CONTENT_URI);
-                    // Remove dead items
-                    for (long id : itemsToRemove) {
-                        if (DEBUG_LOADERS) {
-                            Log.d(TAG, "Removed id = " + id);
-                        }
-                        // Don't notify content observers
-                        try {
-                            client.delete(LauncherSettings.Favorites.getContentUri(id, false),
-                                    null, null);
-                        } catch (RemoteException e) {
-                            Log.w(TAG, "Could not remove id = " + id);
-                        }
-                    }
-                }
+                            model.itemsIdMap.put(folderInfo.id, folderInfo);
+                            model.folders.put(folderInfo.id, folderInfo);
+                            break;
 
-                if (DEBUG_LOADERS) {
-                    Log.d(TAG, "loaded workspace in " + (SystemClock.uptimeMillis()-t) + "ms");
-                    Log.d(TAG, "workspace layout: ");
-                    for (int y = 0; y < mCellCountY; y++) {
-                        String line = "";
-                        for (int s = 0; s < Launcher.SCREEN_COUNT; s++) {
-                            if (s > 0) {
-                                line += " | ";
-                            }
-                            for (int x = 0; x < mCellCountX; x++) {
-                                line += ((occupied[s][x][y] != null) ? "#" : ".");
+                        case LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET:
+                            // Read all Launcher-specific widget details
+                            int appWidgetId = c.getInt(appWidgetIdIndex);
+                            id = c.getLong(idIndex);
+
+                            final AppWidgetProviderInfo provider =
+                                    widgets.getAppWidgetInfo(appWidgetId);
+
+                            if (!isSafeMode && (provider == null || provider.provider == null ||
+                                    provider.provider.getPackageName() == null)) {
+                                Log.e(TAG, "Deleting widget that isn't installed anymore: id="
+                                    + id + " appWidgetId=" + appWidgetId);
+                                LauncherEventLog.log(
+                                        LauncherEventLog.EVENT_REMOVE_MISSING_WIDGET, id,
+                                        appWidgetId);
+                                itemsToRemove.add(id);
+                            } else {
+                                appWidgetInfo = new LauncherAppWidgetInfo(appWidgetId,
+                                        provider.provider);
+                                appWidgetInfo.id = id;
+                                appWidgetInfo.screen = c.getInt(screenIndex);
+                                appWidgetInfo.cellX = c.getInt(cellXIndex);
+                                appWidgetInfo.cellY = c.getInt(cellYIndex);
+                                appWidgetInfo.spanX = c.getInt(spanXIndex);
+                                appWidgetInfo.spanY = c.getInt(spanYIndex);
+                                int[] minSpan = Launcher.getMinSpanForWidget(context, provider);
+                                appWidgetInfo.minSpanX = minSpan[0];
+                                appWidgetInfo.minSpanY = minSpan[1];
+
+                                container = c.getInt(containerIndex);
+                                if (container != LauncherSettings.Favorites.CONTAINER_DESKTOP &&
+                                    container != LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
+                                    Log.e(TAG, "Widget found where container != " +
+                                        "CONTAINER_DESKTOP nor CONTAINER_HOTSEAT - ignoring!");
+                                    continue;
+                                }
+                                appWidgetInfo.container = c.getInt(containerIndex);
+
+                                // check & update map of what's occupied
+                                if (!checkItemPlacement(occupied, appWidgetInfo)) {
+                                    break;
+                                }
+                                model.itemsIdMap.put(appWidgetInfo.id, appWidgetInfo);
+                                model.appWidgets.add(appWidgetInfo);
                             }
+                            break;
                         }
-                        Log.d(TAG, "[ " + line + " ]");
+                    } catch (Exception e) {
+                        Log.w(TAG, "Desktop items loading interrupted:", e);
                     }
                 }
-            }
-        }
-
-        /** Filters the set of items who are directly or indirectly (via another container) on the
-         * specified screen. */
-        private void filterCurrentWorkspaceItems(int currentScreen,
-                ArrayList<ItemInfo> allWorkspaceItems,
-                ArrayList<ItemInfo> currentScreenItems,
-                ArrayList<ItemInfo> otherScreenItems) {
-            // Purge any null ItemInfos
-            Iterator<ItemInfo> iter = allWorkspaceItems.iterator();
-            while (iter.hasNext()) {
-                ItemInfo i = iter.next();
-                if (i == null) {
-                    iter.remove();
-                }
-            }
-
-            // If we aren't filtering on a screen, then the set of items to load is the full set of
-            // items given.
-            if (currentScreen < 0) {
-                currentScreenItems.addAll(allWorkspaceItems);
-            }
-
-            // Order the set of items by their containers first, this allows use to walk through the
-            // list sequentially, build up a list of containers that are in the specified screen,
-            // as well as all items in those containers.
-            Set<Long> itemsOnScreen = new HashSet<Long>();
-            Collections.sort(allWorkspaceItems, new Comparator<ItemInfo>() {
-                @Override
-                public int compare(ItemInfo lhs, ItemInfo rhs) {
-                    return (int) (lhs.container - rhs.container);
-                }
-            });
-            for (ItemInfo info : allWorkspaceItems) {
-                if (info.container == LauncherSettings.Favorites.CONTAINER_DESKTOP) {
-                    if (info.screen == currentScreen) {
-                        currentScreenItems.add(info);
-                        itemsOnScreen.add(info.id);
-                    } else {
-                        otherScreenItems.add(info);
+            } finally {
+                StartupTrace.end(StartupTrace.SPAN_CURSOR_ITERATION, cursorStart,
+                        c.getCount());
+                c.close();
+            }
+            StartupTrace.record(StartupTrace.SPAN_ICON_DECODE, cursorStart, decodeStats.nanos,
+                    decodeStats.count);
+
+            if (itemsToRemove.size() > 0) {
+                ContentProviderClient client = contentResolver.acquireContentProviderClient(
+                                LauncherSettings.Favorites.CONTENT_URI);
+                // Remove dead items
+                for (int i = 0; i < itemsToRemove.size(); i++) {
+                    final long id = itemsToRemove.get(i);
+                    if (DEBUG_LOADERS) {
+                        Log.d(TAG, "Removed id = " + id);
                     }
-                } else if (info.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
-                    currentScreenItems.add(info);
-                    itemsOnScreen.add(info.id);
-                } else {
-                    if (itemsOnScreen.contains(info.container)) {
-                        currentScreenItems.add(info);
-                        itemsOnScreen.add(info.id);
-                    } else {
-                        otherScreenItems.add(info);
+                    // Don't notify content observers
+                    try {
+                        client.delete(LauncherSettings.Favorites.getContentUri(id, false),
+                                null, null);
+                    } catch (RemoteException e) {
+                        Log.w(TAG, "Could not remove id = " + id);
                     }
                 }
             }
-        }
 
-        /** Filters the set of widgets which are on the specified screen. */
-        private void filterCurrentAppWidgets(int currentScreen,
-                ArrayList<LauncherAppWidgetInfo> appWidgets,
-                ArrayList<LauncherAppWidgetInfo> currentScreenWidgets,
-                ArrayList<LauncherAppWidgetInfo> otherScreenWidgets) {
-            // If we aren't filtering on a screen, then the set of items to load is the full set of
-            // widgets given.
-            if (currentScreen < 0) {
-                currentScreenWidgets.addAll(appWidgets);
-            }
+            publishModel(model);
 
-            for (LauncherAppWidgetInfo widget : appWidgets) {
-                if (widget == null) continue;
-                if (widget.container == LauncherSettings.Favorites.CONTAINER_DESKTOP &&
-                        widget.screen == currentScreen) {
-                    currentScreenWidgets.add(widget);
-                } else {
-                    otherScreenWidgets.add(widget);
+            StartupTrace.end(StartupTrace.SPAN_LOAD_WORKSPACE, traceStart,
+                    model.itemsIdMap.size());
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "loaded workspace in " + (SystemClock.uptimeMillis()-t) + "ms");
+                Log.d(TAG, "workspace layout: ");
+                for (int y = 0; y < mCellCountY; y++) {
+                    String line = "";
+                    for (int s = 0; s < Launcher.SCREEN_COUNT; s++) {
+                        if (s > 0) {
+                            line += " | ";
+                        }
+                        for (int x = 0; x < mCellCountX; x++) {
+                            line += ((occupied[s][x][y] != null) ? "#" : ".");
+                        }
+                    }
+                    Log.d(TAG, "[ " + line + " ]");
                 }
             }
         }
 
         /** Filters the set of folders which are on the specified screen. */
         private void filterCurrentFolders(int currentScreen,
-                HashMap<Long, ItemInfo> itemsIdMap,
-                HashMap<Long, FolderInfo> folders,
-                HashMap<Long, FolderInfo> currentScreenFolders,
-                HashMap<Long, FolderInfo> otherScreenFolders) {
-            // If we aren't filtering on a screen, then the set of items to load is the full set of
-            // widgets given.
-            if (currentScreen < 0) {
-                currentScreenFolders.putAll(folders);
-            }
-
-            for (long id : folders.keySet()) {
+                LongSparseArray<ItemInfo> itemsIdMap,
+                LongSparseArray<FolderInfo> folders,
+                LongSparseArray<FolderInfo> currentScreenFolders,
+                LongSparseArray<FolderInfo> otherScreenFolders) {
+            final int count = folders.size();
+            for (int i = 0; i < count; i++) {
+                final long id = folders.keyAt(i);
+                final FolderInfo folder = folders.valueAt(i);
+                // If we aren't filtering on a screen, then the set of items to load is the full
+                // set of folders given.
+                if (currentScreen < 0) {
+                    currentScreenFolders.append(id, folder);
+                }
                 ItemInfo info = itemsIdMap.get(id);
-                FolderInfo folder = folders.get(id);
                 if (info == null || folder == null) continue;
                 if (info.container == LauncherSettings.Favorites.CONTAINER_DESKTOP &&
                         info.screen == currentScreen) {
-                    currentScreenFolders.put(id, folder);
+                    currentScreenFolders.append(id, folder);
                 } else {
-                    otherScreenFolders.put(id, folder);
+                    otherScreenFolders.append(id, folder);
                 }
             }
         }
 
-        /** Sorts the set of items by hotseat, workspace (spatially from top to bottom, left to
-         * right) */
-        private void sortWorkspaceItemsSpatially(ArrayList<ItemInfo> workspaceItems) {
-            // XXX: review this
-            Collections.sort(workspaceItems, new Comparator<ItemInfo>() {
-                @Override
-                public int compare(ItemInfo lhs, ItemInfo rhs) {
-                    int cellCountX = LauncherModel.getCellCountX();
-                    int cellCountY = LauncherModel.getCellCountY();
-                    int screenOffset = cellCountX * cellCountY;
-                    int containerOffset = screenOffset * (Launcher.SCREEN_COUNT + 1); // +1 hotseat
-                    long lr = (lhs.container * containerOffset + lhs.screen * screenOffset +
-                            lhs.cellY * cellCountX + lhs.cellX);
-                    long rr = (rhs.container * containerOffset + rhs.screen * screenOffset +
-                            rhs.cellY * cellCountX + rhs.cellX);
-                    return (int) (lr - rr);
+        /**
+         * Decodes the saved icons that loadWorkspace() left undecoded for the given items, right
+         * before they are bound, so that the main thread does not have to.
+         */
+        private void decodePendingIcons(ArrayList<? extends ItemInfo> items, int start, int end) {
+            final long t = StartupTrace.begin();
+            int decoded = 0;
+            for (int i = start; i < end; i++) {
+                final ItemInfo item = items.get(i);
+                if (item instanceof ShortcutInfo && ((ShortcutInfo) item).hasPendingIcon()) {
+                    ((ShortcutInfo) item).decodePendingIcon(mIconCache);
+                    decoded++;
                 }
-            });
+            }
+            if (decoded > 0) {
+                StartupTrace.end(StartupTrace.SPAN_PENDING_ICON_DECODE, t, decoded);
+            }
         }
 
         private void bindWorkspaceItems(final Callbacks oldCallbacks,
                 final ArrayList<ItemInfo> workspaceItems,
                 final ArrayList<LauncherAppWidgetInfo> appWidgets,
-                final HashMap<Long, FolderInfo> folders,
-                ArrayList<Runnable> deferredBindRunnables) {
+                final LongSparseArray<FolderInfo> folders,
+                int currentScreen, ArrayList<Runnable> deferredBindRunnables) {
 
             final boolean postOnMainThread = (deferredBindRunnables != null);
+            // Binding synchronously happens on the main thread, where the icons are better left
+            // to be decoded as they are bound
+            final boolean decodeIcons = sWorkerThread.getThreadId() == Process.myTid();
 
             // Bind the workspace items
             int N = workspaceItems.size();
             for (int i = 0; i < N; i += ITEMS_CHUNK) {
                 final int start = i;
                 final int chunkSize = (i+ITEMS_CHUNK <= N) ? ITEMS_CHUNK : (N-i);
+                if (decodeIcons) {
+                    decodePendingIcons(workspaceItems, start, start + chunkSize);
+                }
+                int priority = DeferredHandler.PRIORITY_OTHER_PAGES;
+                for (int j = start; j < start + chunkSize; j++) {
+                    priority = Math.min(priority,
+                            getBindPriority(workspaceItems.get(j), currentScreen));
+                }
                 final Runnable r = new Runnable() {
                     @Override
                     public void run() {
                         Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                         if (callbacks != null) {
+                            final long t = StartupTrace.begin();
                             callbacks.bindItems(workspaceItems, start, start+chunkSize);
+                            StartupTrace.end(StartupTrace.SPAN_BIND_CHUNK, t, chunkSize);
                         }
                     }
                 };
                 if (postOnMainThread) {
                     deferredBindRunnables.add(r);
                 } else {
-                    runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE);
+                    runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE, priority);
                 }
             }
 
             // Bind the folders
-            if (!folders.isEmpty()) {
+            if (folders.size() > 0) {
+                if (decodeIcons) {
+                    for (int i = 0; i < folders.size(); i++) {
+                        final FolderInfo folder = folders.valueAt(i);
+                        decodePendingIcons(folder.contents, 0, folder.contents.size());
+                    }
+                }
                 final Runnable r = new Runnable() {
                     public void run() {
                         Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                         if (callbacks != null) {
+                            final long t = StartupTrace.begin();
                             callbacks.bindFolders(folders);
+                            StartupTrace.end(StartupTrace.SPAN_BIND_CHUNK, t, folders.size());
                         }
                     }
                 };
                 if (postOnMainThread) {
                     deferredBindRunnables.add(r);
                 } else {
-                    runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE);
+                    // The folders of the other pages replace those of the current page, so they
+                    // are bound with the lowest priority of any of them to keep them in order
+                    int priority = DeferredHandler.PRIORITY_CURRENT_PAGE;
+                    for (int i = 0; i < folders.size(); i++) {
+                        priority = Math.max(priority,
+                                getBindPriority(folders.valueAt(i), currentScreen));
+                    }
+                    runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE, priority);
                 }
             }
 
@@ -1690,18 +1920,35 @@ public class LauncherModel extends BroadcastReceiver {
                     public void run() {
                         Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                         if (callbacks != null) {
+                            final long t = StartupTrace.begin();
                             callbacks.bindAppWidget(widget);
+                            StartupTrace.end(StartupTrace.SPAN_BIND_CHUNK, t, 1);
                         }
                     }
                 };
                 if (postOnMainThread) {
                     deferredBindRunnables.add(r);
                 } else {
-                    runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE);
+                    runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE,
+                            getBindPriority(widget, currentScreen));
                 }
             }
         }
 
+        /**
+         * Returns the priority of binding the given workspace item, the current page and the
+         * hotseat come first, then the pages next to it.
+         */
+        private int getBindPriority(ItemInfo item, int currentScreen) {
+            if (item.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT ||
+                    item.screen == currentScreen) {
+                return DeferredHandler.PRIORITY_CURRENT_PAGE;
+            } else if (Math.abs(item.screen - currentScreen) <= 1) {
+                return DeferredHandler.PRIORITY_NEIGHBOR_PAGES;
+            }
+            return DeferredHandler.PRIORITY_OTHER_PAGES;
+        }
+
         /**
          * Binds all loaded data to actual views on the main thread.
          */
@@ -1725,17 +1972,12 @@ public class LauncherModel extends BroadcastReceiver {
             // Load all the items that are on the current page first (and in the process, unbind
             // all the existing workspace items before we call startBinding() below.
             unbindWorkspaceItemsOnMainThread();
-            ArrayList<ItemInfo> workspaceItems = new ArrayList<ItemInfo>();
-            ArrayList<LauncherAppWidgetInfo> appWidgets =
-                    new ArrayList<LauncherAppWidgetInfo>();
-            HashMap<Long, FolderInfo> folders = new HashMap<Long, FolderInfo>();
-            HashMap<Long, ItemInfo> itemsIdMap = new HashMap<Long, ItemInfo>();
-            synchronized (sBgLock) {
-                workspaceItems.addAll(sBgWorkspaceItems);
-                appWidgets.addAll(sBgAppWidgets);
-                folders.putAll(sBgFolders);
-                itemsIdMap.putAll(sBgItemsIdMap);
-            }
+            final ModelSnapshot model = sBgModel.get();
+            final WorkspaceColumns<ItemInfo> workspaceItems = model.getWorkspaceColumns();
+            final WorkspaceColumns<LauncherAppWidgetInfo> appWidgets =
+                    model.getAppWidgetColumns();
+            LongSparseArray<FolderInfo> folders = model.folders;
+            LongSparseArray<ItemInfo> itemsIdMap = model.itemsIdMap;
 
             ArrayList<ItemInfo> currentWorkspaceItems = new ArrayList<ItemInfo>();
             ArrayList<ItemInfo> otherWorkspaceItems = new ArrayList<ItemInfo>();
@@ -1743,18 +1985,31 @@ public class LauncherModel extends BroadcastReceiver {
                     new ArrayList<LauncherAppWidgetInfo>();
             ArrayList<LauncherAppWidgetInfo> otherAppWidgets =
                     new ArrayList<LauncherAppWidgetInfo>();
-            HashMap<Long, FolderInfo> currentFolders = new HashMap<Long, FolderInfo>();
-            HashMap<Long, FolderInfo> otherFolders = new HashMap<Long, FolderInfo>();
-
-            // Separate the items that are on the current screen, and all the other remaining items
-            filterCurrentWorkspaceItems(currentScreen, workspaceItems, currentWorkspaceItems,
+            LongSparseArray<FolderInfo> currentFolders = new LongSparseArray<FolderInfo>();
+            LongSparseArray<FolderInfo> otherFolders = new LongSparseArray<FolderInfo>();
+
+            // Separate the items that are on the current screen, and all the other remaining
+            // items, and sort them from top to bottom, left to right
+            final long sortStart = StartupTrace.begin();
+            final int[] itemRows = new int[workspaceItems.size];
+            final int currentItemCount = workspaceItems.partitionByScreen(currentScreen, itemRows);
+            workspaceItems.sortSpatially(itemRows, 0, currentItemCount);
+            workspaceItems.sortSpatially(itemRows, currentItemCount, itemRows.length);
+            workspaceItems.addItems(itemRows, 0, currentItemCount, currentWorkspaceItems);
+            workspaceItems.addItems(itemRows, currentItemCount, itemRows.length,
                     otherWorkspaceItems);
-            filterCurrentAppWidgets(currentScreen, appWidgets, currentAppWidgets,
+
+            final int[] widgetRows = new int[appWidgets.size];
+            final int currentWidgetCount = appWidgets.partitionByScreen(currentScreen, widgetRows);
+            appWidgets.addItems(widgetRows, 0, currentWidgetCount, currentAppWidgets);
+            appWidgets.addItems(widgetRows, currentWidgetCount, widgetRows.length,
                     otherAppWidgets);
+            StartupTrace.end(StartupTrace.SPAN_SORT, sortStart, workspaceItems.size);
+
             filterCurrentFolders(currentScreen, itemsIdMap, folders, currentFolders,
                     otherFolders);
-            sortWorkspaceItemsSpatially(currentWorkspaceItems);
-            sortWorkspaceItemsSpatially(otherWorkspaceItems);
+            final long traceStart = StartupTrace.begin();
+            final int itemCount = workspaceItems.size + appWidgets.size;
 
             // Tell the workspace that we're about to start binding items
             r = new Runnable() {
@@ -1769,7 +2024,7 @@ public class LauncherModel extends BroadcastReceiver {
 
             // Load items on the current page
             bindWorkspaceItems(oldCallbacks, currentWorkspaceItems, currentAppWidgets,
-                    currentFolders, null);
+                    currentFolders, currentScreen, null);
             if (isLoadingSynchronously) {
                 r = new Runnable() {
                     public void run() {
@@ -1786,7 +2041,7 @@ public class LauncherModel extends BroadcastReceiver {
             // work until after the first render)
             mDeferredBindRunnables.clear();
             bindWorkspaceItems(oldCallbacks, otherWorkspaceItems, otherAppWidgets, otherFolders,
-                    (isLoadingSynchronously ? mDeferredBindRunnables : null));
+                    currentScreen, (isLoadingSynchronously ? mDeferredBindRunnables : null));
 
             // Tell the workspace that we're done binding items
             r = new Runnable() {
@@ -1795,6 +2050,7 @@ public class LauncherModel extends BroadcastReceiver {
                     if (callbacks != null) {
                         callbacks.finishBindingItems();
                     }
+                    StartupTrace.end(StartupTrace.SPAN_BIND_WORKSPACE, traceStart, itemCount);
 
                     // If we're profiling, ensure this is the last thing in the queue.
                     if (DEBUG_LOADERS) {
@@ -1858,12 +2114,13 @@ public class LauncherModel extends BroadcastReceiver {
             if (oldCallbacks.isAllAppsVisible() && isRunningOnMainThread) {
                 r.run();
             } else {
-                mHandler.post(r);
+                mHandler.post(r, 0, DeferredHandler.PRIORITY_ALL_APPS);
             }
         }
 
         private void loadAllAppsByBatch() {
             final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+            final long traceStart = StartupTrace.begin();
 
             // Don't use these two variables in any of the callback runnables.
             // Otherwise we hold a reference to them.
@@ -1912,8 +2169,10 @@ public class LauncherModel extends BroadcastReceiver {
                     }
 
                     final long sortTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+                    final long sortStart = StartupTrace.begin();
                     Collections.sort(apps,
                             new LauncherModel.ShortcutNameComparator(packageManager, mLabelCache));
+                    StartupTrace.end(StartupTrace.SPAN_SORT, sortStart, N);
                     if (DEBUG_LOADERS) {
                         Log.d(TAG, "sort took "
                                 + (SystemClock.uptimeMillis()-sortTime) + "ms");
@@ -1938,12 +2197,15 @@ public class LauncherModel extends BroadcastReceiver {
                 mHandler.post(new Runnable() {
                     public void run() {
                         final long t = SystemClock.uptimeMillis();
+                        final long traceStart = StartupTrace.begin();
                         if (callbacks != null) {
                             if (first) {
                                 callbacks.bindAllApplications(added);
                             } else {
                                 callbacks.bindAppsAdded(added);
                             }
+                            StartupTrace.end(StartupTrace.SPAN_BIND_ALL_APPS_BATCH, traceStart,
+                                    added.size());
                             if (DEBUG_LOADERS) {
                                 Log.d(TAG, "bound " + added.size() + " apps in "
                                     + (SystemClock.uptimeMillis() - t) + "ms");
@@ -1952,7 +2214,7 @@ public class LauncherModel extends BroadcastReceiver {
                             Log.i(TAG, "not binding apps: no Launcher activity");
                         }
                     }
-                });
+                }, 0, DeferredHandler.PRIORITY_ALL_APPS);
 
                 if (DEBUG_LOADERS) {
                     Log.d(TAG, "batch of " + (i-startIndex) + " icons processed in "
@@ -1969,6 +2231,7 @@ public class LauncherModel extends BroadcastReceiver {
                 }
             }
 
+            StartupTrace.end(StartupTrace.SPAN_LOAD_ALL_APPS, traceStart, i);
             if (DEBUG_LOADERS) {
                 Log.d(TAG, "cached all " + N + " apps in "
                         + (SystemClock.uptimeMillis()-t) + "ms"
@@ -1977,23 +2240,138 @@ public class LauncherModel extends BroadcastReceiver {
         }
 
         public void dumpState() {
-            synchronized (sBgLock) {
-                Log.d(TAG, "mLoaderTask.mContext=" + mContext);
-                Log.d(TAG, "mLoaderTask.mIsLaunching=" + mIsLaunching);
-                Log.d(TAG, "mLoaderTask.mStopped=" + mStopped);
-                Log.d(TAG, "mLoaderTask.mLoadAndBindStepFinished=" + mLoadAndBindStepFinished);
-                Log.d(TAG, "mItems size=" + sBgWorkspaceItems.size());
+            Log.d(TAG, "mLoaderTask.mContext=" + mContext);
+            Log.d(TAG, "mLoaderTask.mIsLaunching=" + mIsLaunching);
+            Log.d(TAG, "mLoaderTask.mStopped=" + mStopped);
+            Log.d(TAG, "mLoaderTask.mLoadAndBindStepFinished=" + mLoadAndBindStepFinished);
+            Log.d(TAG, "mItems size=" + sBgModel.get().workspaceItems.size());
+        }
+    }
+
+    /**
+     * Queues changes to the given packages. Changes that come in close together, as when an app
+     * store updates many apps at once, are merged per package and applied together, see
+     * {@link #mergePackageOps}. When flushNow is set, all of the queued changes are applied as
+     * soon as the worker thread gets to them.
+     */
+    void enqueuePackageChanges(int op, String[] packages, boolean flushNow) {
+        synchronized (mPendingPackageOps) {
+            final long now = SystemClock.uptimeMillis();
+            if (mPendingPackageOps.isEmpty()) {
+                mPendingPackageOpsSince = now;
+            }
+            for (String packageName : packages) {
+                Integer pending = mPendingPackageOps.get(packageName);
+                if (pending != null && pending == PackageUpdatedTask.OP_REMOVE
+                        && op == PackageUpdatedTask.OP_ADD) {
+                    // Uninstalled and installed again. The removal deletes the items of the
+                    // package, which an update would not, so it is applied before the add.
+                    flushPendingPackageOpsLocked();
+                    mPendingPackageOpsSince = now;
+                    pending = null;
+                }
+                final int merged = mergePackageOps(
+                        pending != null ? pending : PackageUpdatedTask.OP_NONE, op);
+                if (pending != null) {
+                    mMergedPackageOpCount++;
+                }
+                if (merged == PackageUpdatedTask.OP_NONE) {
+                    mPendingPackageOps.remove(packageName);
+                } else {
+                    mPendingPackageOps.put(packageName, merged);
+                }
+            }
+
+            sWorker.removeCallbacks(mFlushPackageChanges);
+            if (mPendingPackageOps.isEmpty()) {
+                return;
             }
+            // Wait for the changes to settle, but not for longer than the maximum delay since
+            // the first change that is still waiting
+            final long delay = flushNow ? 0 : Math.min(PACKAGE_CHANGE_COALESCE_MS,
+                    mPendingPackageOpsSince + PACKAGE_CHANGE_MAX_DELAY_MS - now);
+            sWorker.postDelayed(mFlushPackageChanges, Math.max(0, delay));
         }
     }
 
-    void enqueuePackageUpdated(PackageUpdatedTask task) {
-        sWorker.post(task);
+    /**
+     * Posts all of the queued changes to the worker thread to be applied now, ahead of any that
+     * are queued after them. Must be called with mPendingPackageOps locked.
+     */
+    private void flushPendingPackageOpsLocked() {
+        final HashMap<String, Integer> ops = new HashMap<String, Integer>(mPendingPackageOps);
+        mPendingPackageOps.clear();
+        mPackageChangeFlushCount++;
+        sWorker.post(new PackageUpdatedTask(ops));
+    }
+
+    /**
+     * Returns the change to apply to a package that has the pending change and then gets the
+     * next one. The package manager has the final say on what the package contains, so the
+     * adds and updates query it again, and only the adds and removals need to be kept apart.
+     * A pending removal is never merged with an add, see enqueuePackageChanges().
+     */
+    static int mergePackageOps(int pending, int next) {
+        switch (next) {
+            case PackageUpdatedTask.OP_ADD:
+                switch (pending) {
+                    case PackageUpdatedTask.OP_UNAVAILABLE:
+                        // Remounted, the apps may have changed since
+                        return PackageUpdatedTask.OP_UPDATE;
+                    case PackageUpdatedTask.OP_UPDATE:
+                        return PackageUpdatedTask.OP_UPDATE;
+                    default:
+                        return PackageUpdatedTask.OP_ADD;
+                }
+            case PackageUpdatedTask.OP_UPDATE:
+                switch (pending) {
+                    case PackageUpdatedTask.OP_ADD:
+                    case PackageUpdatedTask.OP_REMOVE:
+                    case PackageUpdatedTask.OP_UNAVAILABLE:
+                        return pending;
+                    default:
+                        return PackageUpdatedTask.OP_UPDATE;
+                }
+            case PackageUpdatedTask.OP_REMOVE:
+            case PackageUpdatedTask.OP_UNAVAILABLE:
+                if (pending == PackageUpdatedTask.OP_ADD) {
+                    // Added and gone again before we even looked at it
+                    return PackageUpdatedTask.OP_NONE;
+                }
+                if (pending == PackageUpdatedTask.OP_REMOVE) {
+                    // Unavailable after being removed is still removed, the items must go
+                    return PackageUpdatedTask.OP_REMOVE;
+                }
+                return next;
+            default:
+                return pending;
+        }
     }
 
+    private final Runnable mFlushPackageChanges = new Runnable() {
+        public void run() {
+            final HashMap<String, Integer> ops;
+            synchronized (mPendingPackageOps) {
+                if (mPendingPackageOps.isEmpty()) {
+                    return;
+                }
+                ops = new HashMap<String, Integer>(mPendingPackageOps);
+                mPendingPackageOps.clear();
+                mPackageChangeFlushCount++;
+            }
+            new PackageUpdatedTask(ops).run();
+        }
+    };
+
+    /**
+     * Applies the changes to a set of packages to the list of apps, and tells the launcher about
+     * all of the apps that were added, updated and removed at once.
+     */
     private class PackageUpdatedTask implements Runnable {
-        int mOp;
-        String[] mPackages;
+        final ArrayList<String> mAdded = new ArrayList<String>();
+        final ArrayList<String> mUpdated = new ArrayList<String>();
+        final ArrayList<String> mRemoved = new ArrayList<String>();
+        final ArrayList<String> mUnavailable = new ArrayList<String>();
 
         public static final int OP_NONE = 0;
         public static final int OP_ADD = 1;
@@ -2002,44 +2380,53 @@ public class LauncherModel extends BroadcastReceiver {
         public static final int OP_UNAVAILABLE = 4; // external media unmounted
 
 
-        public PackageUpdatedTask(int op, String[] packages) {
-            mOp = op;
-            mPackages = packages;
+        public PackageUpdatedTask(Map<String, Integer> ops) {
+            for (Map.Entry<String, Integer> entry : ops.entrySet()) {
+                switch (entry.getValue()) {
+                    case OP_ADD:
+                        mAdded.add(entry.getKey());
+                        break;
+                    case OP_UPDATE:
+                        mUpdated.add(entry.getKey());
+                        break;
+                    case OP_REMOVE:
+                        mRemoved.add(entry.getKey());
+                        break;
+                    case OP_UNAVAILABLE:
+                        mUnavailable.add(entry.getKey());
+                        break;
+                }
+            }
         }
 
         public void run() {
             final Context context = mApp;
+            final LauncherApplication app = (LauncherApplication) context.getApplicationContext();
 
-            final String[] packages = mPackages;
-            final int N = packages.length;
-            switch (mOp) {
-                case OP_ADD:
-                    for (int i=0; i<N; i++) {
-                        if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.addPackage " + packages[i]);
-                        mBgAllAppsList.addPackage(context, packages[i]);
-                    }
-                    break;
-                case OP_UPDATE:
-                    for (int i=0; i<N; i++) {
-                        if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.updatePackage " + packages[i]);
-                        mBgAllAppsList.updatePackage(context, packages[i]);
-                        LauncherApplication app =
-                                (LauncherApplication) context.getApplicationContext();
-                        WidgetPreviewLoader.removeFromDb(
-                                app.getWidgetPreviewCacheDb(), packages[i]);
-                    }
-                    break;
-                case OP_REMOVE:
-                case OP_UNAVAILABLE:
-                    for (int i=0; i<N; i++) {
-                        if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.removePackage " + packages[i]);
-                        mBgAllAppsList.removePackage(packages[i]);
-                        LauncherApplication app =
-                                (LauncherApplication) context.getApplicationContext();
-                        WidgetPreviewLoader.removeFromDb(
-                                app.getWidgetPreviewCacheDb(), packages[i]);
-                    }
-                    break;
+            // The uninstalled packages go first, since their shortcuts and widgets are removed
+            // from the workspace by package name and all the others only by component
+            for (String packageName : mRemoved) {
+                if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.removePackage " + packageName);
+                mBgAllAppsList.removePackage(packageName);
+                WidgetPreviewLoader.removeFromDb(app.getWidgetPreviewCacheDb(), packageName);
+            }
+            final ArrayList<ApplicationInfo> uninstalledApps =
+                    new ArrayList<ApplicationInfo>(mBgAllAppsList.removed);
+            mBgAllAppsList.removed.clear();
+
+            for (String packageName : mUnavailable) {
+                if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.removePackage " + packageName);
+                mBgAllAppsList.removePackage(packageName);
+                WidgetPreviewLoader.removeFromDb(app.getWidgetPreviewCacheDb(), packageName);
+            }
+            for (String packageName : mUpdated) {
+                if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.updatePackage " + packageName);
+                mBgAllAppsList.updatePackage(context, packageName);
+                WidgetPreviewLoader.removeFromDb(app.getWidgetPreviewCacheDb(), packageName);
+            }
+            for (String packageName : mAdded) {
+                if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.addPackage " + packageName);
+                mBgAllAppsList.addPackage(context, packageName);
             }
 
             ArrayList<ApplicationInfo> added = null;
@@ -2065,55 +2452,35 @@ public class LauncherModel extends BroadcastReceiver {
                 return;
             }
 
-            if (added != null) {
-                final ArrayList<ApplicationInfo> addedFinal = added;
-                mHandler.post(new Runnable() {
-                    public void run() {
-                        Callbacks cb = mCallbacks != null ? mCallbacks.get() : null;
-                        if (callbacks == cb && cb != null) {
-                            callbacks.bindAppsAdded(addedFinal);
-                        }
-                    }
-                });
-            }
-            if (modified != null) {
-                final ArrayList<ApplicationInfo> modifiedFinal = modified;
-                mHandler.post(new Runnable() {
-                    public void run() {
-                        Callbacks cb = mCallbacks != null ? mCallbacks.get() : null;
-                        if (callbacks == cb && cb != null) {
-                            callbacks.bindAppsUpdated(modifiedFinal);
-                        }
-                    }
-                });
-            }
-            // If a package has been removed, or an app has been removed as a result of
-            // an update (for example), make the removed callback.
-            if (mOp == OP_REMOVE || !removedApps.isEmpty()) {
-                final boolean permanent = (mOp == OP_REMOVE);
-                final ArrayList<String> removedPackageNames =
-                        new ArrayList<String>(Arrays.asList(packages));
-
-                mHandler.post(new Runnable() {
-                    public void run() {
-                        Callbacks cb = mCallbacks != null ? mCallbacks.get() : null;
-                        if (callbacks == cb && cb != null) {
-                            callbacks.bindComponentsRemoved(removedPackageNames,
-                                    removedApps, permanent);
-                        }
-                    }
-                });
-            }
-
+            final ArrayList<ApplicationInfo> addedFinal = added;
+            final ArrayList<ApplicationInfo> modifiedFinal = modified;
+            final ArrayList<String> removedPackageNames = mRemoved;
+            final ArrayList<String> changedPackageNames = new ArrayList<String>(mUnavailable);
+            changedPackageNames.addAll(mUpdated);
             final ArrayList<Object> widgetsAndShortcuts =
                 getSortedWidgetsAndShortcuts(context);
             mHandler.post(new Runnable() {
-                @Override
                 public void run() {
                     Callbacks cb = mCallbacks != null ? mCallbacks.get() : null;
-                    if (callbacks == cb && cb != null) {
-                        callbacks.bindPackagesUpdated(widgetsAndShortcuts);
+                    if (callbacks != cb || cb == null) {
+                        return;
+                    }
+                    if (addedFinal != null) {
+                        callbacks.bindAppsAdded(addedFinal);
+                    }
+                    if (modifiedFinal != null) {
+                        callbacks.bindAppsUpdated(modifiedFinal);
                     }
+                    // If a package has been removed, or an app has been removed as a result of
+                    // an update (for example), make the removed callback.
+                    if (!removedPackageNames.isEmpty()) {
+                        callbacks.bindComponentsRemoved(removedPackageNames, uninstalledApps,
+                                true);
+                    }
+                    if (!removedApps.isEmpty()) {
+                        callbacks.bindComponentsRemoved(changedPackageNames, removedApps, false);
+                    }
+                    callbacks.bindPackagesUpdated(widgetsAndShortcuts);
                 }
             });
         }
@@ -2146,6 +2513,13 @@ public class LauncherModel extends BroadcastReceiver {
      */
     public ShortcutInfo getShortcutInfo(PackageManager manager, Intent intent, Context context,
             Cursor c, int iconIndex, int titleIndex, HashMap<Object, CharSequence> labelCache) {
+        return getShortcutInfo(manager, intent, context, c, iconIndex, titleIndex, labelCache,
+                null);
+    }
+
+    private ShortcutInfo getShortcutInfo(PackageManager manager, Intent intent, Context context,
+            Cursor c, int iconIndex, int titleIndex, HashMap<Object, CharSequence> labelCache,
+            IconDecodeStats decodeStats) {
         Bitmap icon = null;
         final ShortcutInfo info = new ShortcutInfo();
 
@@ -2198,7 +2572,7 @@ public class LauncherModel extends BroadcastReceiver {
         // the db
         if (icon == null) {
             if (c != null) {
-                icon = getIconFromCursor(c, iconIndex, context);
+                icon = getIconFromCursor(c, iconIndex, context, decodeStats);
             }
         }
         // the fallback icon
@@ -2239,14 +2613,10 @@ public class LauncherModel extends BroadcastReceiver {
      */
     static ArrayList<ItemInfo> getWorkspaceShortcutItemInfosWithIntent(Intent intent) {
         ArrayList<ItemInfo> items = new ArrayList<ItemInfo>();
-        synchronized (sBgLock) {
-            for (ItemInfo info : sBgWorkspaceItems) {
-                if (info instanceof ShortcutInfo) {
-                    ShortcutInfo shortcut = (ShortcutInfo) info;
-                    if (shortcut.intent.toUri(0).equals(intent.toUri(0))) {
-                        items.add(shortcut);
-                    }
-                }
+        for (ItemInfo info : sBgModel.get().getItemsWithIntent(intent.toUri(0))) {
+            if (info.container == LauncherSettings.Favorites.CONTAINER_DESKTOP ||
+                    info.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
+                items.add(info);
             }
         }
         return items;
@@ -2260,6 +2630,10 @@ public class LauncherModel extends BroadcastReceiver {
             int titleIndex) {
 
         Bitmap icon = null;
+        // The saved icon is only decoded when the shortcut is about to be bound, which keeps the
+        // decoding off the worker thread's loading loop and off the path to the first page being
+        // drawn
+        byte[] pendingIconData = null;
         final ShortcutInfo info = new ShortcutInfo();
         info.itemType = LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT;
 
@@ -2285,19 +2659,19 @@ public class LauncherModel extends BroadcastReceiver {
             } catch (Exception e) {
                 // drop this.  we have other places to look for icons
             }
-            // the db
+            // the db, decoded later (see decodePendingIcons())
             if (icon == null) {
-                icon = getIconFromCursor(c, iconIndex, context);
+                pendingIconData = c.getBlob(iconIndex);
             }
             // the fallback icon
-            if (icon == null) {
+            if (icon == null && pendingIconData == null) {
                 icon = getFallbackIcon();
                 info.usingFallbackIcon = true;
             }
             break;
         case LauncherSettings.Favorites.ICON_TYPE_BITMAP:
-            icon = getIconFromCursor(c, iconIndex, context);
-            if (icon == null) {
+            pendingIconData = c.getBlob(iconIndex);
+            if (pendingIconData == null) {
                 icon = getFallbackIcon();
                 info.customIcon = false;
                 info.usingFallbackIcon = true;
@@ -2311,11 +2685,20 @@ public class LauncherModel extends BroadcastReceiver {
             info.customIcon = false;
             break;
         }
-        info.setIcon(icon);
+        if (pendingIconData != null) {
+            info.setPendingIcon(pendingIconData);
+        } else {
+            info.setIcon(icon);
+        }
         return info;
     }
 
-    Bitmap getIconFromCursor(Cursor c, int iconIndex, Context context) {
+    /**
+     * Decodes the icon saved in the cursor's row, adding the time it takes to decodeStats if
+     * it is not null.
+     */
+    Bitmap getIconFromCursor(Cursor c, int iconIndex, Context context,
+            IconDecodeStats decodeStats) {
         @SuppressWarnings("all") // suppress dead code warning
         final boolean debug = false;
         if (debug) {
@@ -2323,11 +2706,17 @@ public class LauncherModel extends BroadcastReceiver {
                     + c.getString(c.getColumnIndexOrThrow(LauncherSettings.Favorites.TITLE)));
         }
         byte[] data = c.getBlob(iconIndex);
+        final long t = StartupTrace.begin();
         try {
             return Utilities.createIconBitmap(
                     BitmapFactory.decodeByteArray(data, 0, data.length), context);
         } catch (Exception e) {
             return null;
+        } finally {
+            if (decodeStats != null) {
+                decodeStats.nanos += System.nanoTime() - t;
+                decodeStats.count++;
+            }
         }
     }
 
@@ -2450,8 +2839,7 @@ public class LauncherModel extends BroadcastReceiver {
         return info;
     }
 
-    boolean queueIconToBeChecked(HashMap<Object, byte[]> cache, ShortcutInfo info, Cursor c,
-            int iconIndex) {
+    boolean queueIconToBeChecked(HashSet<Object> cache, ShortcutInfo info) {
         // If apps can't be on SD, don't even bother.
         if (!mAppsCanBeOnExternalStorage) {
             return false;
@@ -2462,23 +2850,120 @@ public class LauncherModel extends BroadcastReceiver {
         // into the DB.  We do this so when we're loading, if the
         // package manager can't find an icon (for example because
         // the app is on SD) then we can use that instead.
-        if (!info.customIcon && !info.usingFallbackIcon) {
-            cache.put(info, c.getBlob(iconIndex));
+        // Icons that were loaded from the db are the saved icons, there is nothing to check.
+        if (!info.customIcon && !info.usingFallbackIcon && !info.hasPendingIcon()
+                && !mSkipSavedIconChecks) {
+            // The saved icon is read back when it is checked, see checkSavedIconsWhenIdle()
+            cache.add(info);
+            if (cache == sBgDbIconCache) {
+                sBgDbIconCacheBytes += DB_ICON_CACHE_ENTRY_BYTES;
+            }
             return true;
         }
         return false;
     }
+
+    /**
+     * Stops the check of an item's saved icon, for items deleted while loading. Must be called
+     * on the worker thread.
+     */
+    private static void removeDbIconCheck(Object item) {
+        if (sBgDbIconCache.remove(item)) {
+            sBgDbIconCacheBytes -= DB_ICON_CACHE_ENTRY_BYTES;
+        }
+    }
+
+    /**
+     * Checks the saved icons of the given items a batch at a time, whenever the worker thread
+     * goes idle, so that the checks never hold up loading or binding.
+     */
+    private void checkSavedIconsWhenIdle(final ShortcutInfo[] items) {
+        runOnWorkerThreadWhenIdle(new MessageQueue.IdleHandler() {
+            private int mNext;
+
+            public boolean queueIdle() {
+                if (mSkipSavedIconChecks) {
+                    mSkipSavedIconChecks = false;
+                    return false;
+                }
+                final int start = mNext;
+                final int end = Math.min(start + SAVED_ICON_CHECK_BATCH_SIZE, items.length);
+                mNext = end;
+                final LongSparseArray<byte[]> savedIcons = getSavedIcons(items, start, end);
+                for (int i = start; i < end; i++) {
+                    final ShortcutInfo info = items[i];
+                    // Skip the items that were removed or reloaded since
+                    if (sBgModel.get().itemsIdMap.get(info.id) != info) continue;
+                    if (savedIcons.indexOfKey(info.id) < 0) continue;
+                    updateSavedIcon(mApp, info, savedIcons.get(info.id));
+                }
+                return mNext < items.length;
+            }
+        });
+    }
+
+    /**
+     * Reads the saved icons of items[start] to items[end - 1] from the database, by id. Items
+     * without a saved icon map to null, and deleted items are left out.
+     */
+    private LongSparseArray<byte[]> getSavedIcons(ShortcutInfo[] items, int start, int end) {
+        final LongSparseArray<byte[]> savedIcons = new LongSparseArray<byte[]>(end - start);
+        final StringBuilder selection = new StringBuilder(LauncherSettings.Favorites._ID)
+                .append(" IN (");
+        for (int i = start; i < end; i++) {
+            if (i > start) selection.append(',');
+            selection.append(items[i].id);
+        }
+        selection.append(')');
+
+        final Cursor c = mApp.getContentResolver().query(LauncherSettings.Favorites.CONTENT_URI,
+                new String[] { LauncherSettings.Favorites._ID, LauncherSettings.Favorites.ICON },
+                selection.toString(), null, null);
+        if (c == null) {
+            return savedIcons;
+        }
+        try {
+            while (c.moveToNext()) {
+                savedIcons.put(c.getLong(0), c.getBlob(1));
+            }
+        } finally {
+            c.close();
+        }
+        return savedIcons;
+    }
+
+    /**
+     * Registers the caches of the model with the given coordinator.
+     */
+    void registerCaches(MemoryPressureCoordinator coordinator) {
+        coordinator.register(mApp, "saved icon checks", new MemoryPressureCoordinator.Cache() {
+            public long getSizeBytes() {
+                return sBgDbIconCacheBytes;
+            }
+
+            public void trimMemory(int level) {
+                // Checking the saved icons is just a safeguard for apps on external storage, so
+                // drop the checks when memory is critical. The checks themselves run on the worker
+                // thread, so just flag them to stop.
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                    mSkipSavedIconChecks = true;
+                }
+            }
+        });
+    }
     void updateSavedIcon(Context context, ShortcutInfo info, byte[] data) {
         boolean needSave = false;
-        try {
-            if (data != null) {
-                Bitmap saved = BitmapFactory.decodeByteArray(data, 0, data.length);
-                Bitmap loaded = info.getIcon(mIconCache);
-                needSave = !saved.sameAs(loaded);
+        if (data != null) {
+            // Compare the pixels, the saved icon decodes to the same ones if it is unchanged.
+            // sameAs() compares them directly, without compressing the loaded icon.
+            final Bitmap saved = BitmapFactory.decodeByteArray(data, 0, data.length);
+            if (saved != null) {
+                needSave = !saved.sameAs(info.getIcon(mIconCache));
+                saved.recycle();
             } else {
                 needSave = true;
             }
-        } catch (Exception e) {
+        } else {
             needSave = true;
         }
         if (needSave) {
@@ -2493,7 +2978,7 @@ public class LauncherModel extends BroadcastReceiver {
      * Return an existing FolderInfo object if we have encountered this ID previously,
      * or make a new one.
      */
-    private static FolderInfo findOrMakeFolder(HashMap<Long, FolderInfo> folders, long id) {
+    private static FolderInfo findOrMakeFolder(LongSparseArray<FolderInfo> folders, long id) {
         // See if a placeholder was created for us already
         FolderInfo folderInfo = folders.get(id);
         if (folderInfo == null) {
@@ -2504,6 +2989,41 @@ public class LauncherModel extends BroadcastReceiver {
         return folderInfo;
     }
 
+    private static class AppSortKey implements Comparable<AppSortKey> {
+        final ApplicationInfo app;
+        final CollationKey key;
+
+        AppSortKey(ApplicationInfo app, Collator collator) {
+            this.app = app;
+            key = collator.getCollationKey(app.title.toString());
+        }
+
+        public int compareTo(AppSortKey other) {
+            int result = key.compareTo(other.key);
+            if (result == 0) {
+                result = app.componentName.compareTo(other.app.componentName);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Sorts the apps in the order of {@link #getAppNameComparator}, with the collation keys of
+     * the current locale. Each title is only collated once, instead of once per comparison.
+     */
+    static void sortAppsByTitle(ArrayList<ApplicationInfo> apps) {
+        final Collator collator = Collator.getInstance();
+        final int count = apps.size();
+        final AppSortKey[] keys = new AppSortKey[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = new AppSortKey(apps.get(i), collator);
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < count; i++) {
+            apps.set(i, keys[i].app);
+        }
+    }
+
     public static final Comparator<ApplicationInfo> getAppNameComparator() {
         final Collator collator = Collator.getInstance();
         return new Comparator<ApplicationInfo>() {
@@ -2607,6 +3127,10 @@ public class LauncherModel extends BroadcastReceiver {
 
     public void dumpState() {
         Log.d(TAG, "mCallbacks=" + mCallbacks);
+        synchronized (mPendingPackageOps) {
+            Log.d(TAG, "mPendingPackageOps=" + mPendingPackageOps
+                    + " merged=" + mMergedPackageOpCount + " flushes=" + mPackageChangeFlushCount);
+        }
         ApplicationInfo.dumpApplicationInfoList(TAG, "mAllAppsList.data", mBgAllAppsList.data);
         ApplicationInfo.dumpApplicationInfoList(TAG, "mAllAppsList.added", mBgAllAppsList.added);
         ApplicationInfo.dumpApplicationInfoList(TAG, "mAllAppsList.removed", mBgAllAppsList.removed);
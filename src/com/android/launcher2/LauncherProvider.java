@@ -30,6 +30,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
@@ -43,6 +44,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.MessageQueue;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.AttributeSet;
@@ -58,7 +60,10 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class LauncherProvider extends ContentProvider {
     private static final String TAG = "Launcher.LauncherProvider";
@@ -88,12 +93,31 @@ public class LauncherProvider extends ContentProvider {
     static final Uri CONTENT_APPWIDGET_RESET_URI =
             Uri.parse("content://" + AUTHORITY + "/appWidgetReset");
 
+    // How many pages the write-ahead log may grow to before SQLite checkpoints it on its own,
+    // in the middle of a write. Normally it is checkpointed well before, when the launcher is idle.
+    static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+
     private DatabaseHelper mOpenHelper;
 
+    // Whether a checkpoint of the write-ahead log is waiting for the worker thread to go idle
+    private final AtomicBoolean mCheckpointPending = new AtomicBoolean();
+
+    private final MessageQueue.IdleHandler mCheckpointWhenIdle = new MessageQueue.IdleHandler() {
+        public boolean queueIdle() {
+            // Writes from here on schedule the next checkpoint
+            mCheckpointPending.set(false);
+            final int pages = checkpoint(mOpenHelper.getWritableDatabase());
+            if (LOGD) Log.d(TAG, "checkpointed " + pages + " pages of the write-ahead log");
+            return false;
+        }
+    };
+
     @Override
     public boolean onCreate() {
+        final long t = StartupTrace.begin();
         mOpenHelper = new DatabaseHelper(getContext());
         ((LauncherApplication) getContext()).setLauncherProvider(this);
+        StartupTrace.end(StartupTrace.SPAN_PROVIDER_OPEN, t, 0);
         return true;
     }
 
@@ -130,12 +154,6 @@ public class LauncherProvider extends ContentProvider {
         return db.insert(table, nullColumnHack, values);
     }
 
-    private static void deleteId(SQLiteDatabase db, long id) {
-        Uri uri = LauncherSettings.Favorites.getContentUri(id, false);
-        SqlArguments args = new SqlArguments(uri, null, null);
-        db.delete(args.table, args.where, args.args);
-    }
-
     @Override
     public Uri insert(Uri uri, ContentValues initialValues) {
         SqlArguments args = new SqlArguments(uri);
@@ -145,6 +163,7 @@ public class LauncherProvider extends ContentProvider {
         if (rowId <= 0) return null;
 
         uri = ContentUris.withAppendedId(uri, rowId);
+        onDatabaseChanged();
         sendNotify(uri);
 
         return uri;
@@ -168,6 +187,7 @@ public class LauncherProvider extends ContentProvider {
             db.endTransaction();
         }
 
+        onDatabaseChanged();
         sendNotify(uri);
         return values.length;
     }
@@ -178,7 +198,10 @@ public class LauncherProvider extends ContentProvider {
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count = db.delete(args.table, args.where, args.args);
-        if (count > 0) sendNotify(uri);
+        if (count > 0) {
+            onDatabaseChanged();
+            sendNotify(uri);
+        }
 
         return count;
     }
@@ -189,7 +212,10 @@ public class LauncherProvider extends ContentProvider {
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count = db.update(args.table, values, args.where, args.args);
-        if (count > 0) sendNotify(uri);
+        if (count > 0) {
+            onDatabaseChanged();
+            sendNotify(uri);
+        }
 
         return count;
     }
@@ -201,10 +227,63 @@ public class LauncherProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Schedules a checkpoint of the write-ahead log, if the database uses one, for the next time
+     * the worker thread is idle. Checkpointing then keeps the log short without slowing down the
+     * writes themselves, and without making the loader read through a long log.
+     */
+    private void onDatabaseChanged() {
+        if (mOpenHelper.mWriteAheadLog && mCheckpointPending.compareAndSet(false, true)) {
+            LauncherModel.runOnWorkerThreadWhenIdle(mCheckpointWhenIdle);
+        }
+    }
+
+    /**
+     * Sets up a connection that uses a write-ahead log. A commit then only has to sync the log
+     * once it is checkpointed, which cannot corrupt the database but may lose the last few
+     * changes if the device loses power.
+     */
+    static void configureWriteAheadLog(SQLiteDatabase db) {
+        executePragma(db, "PRAGMA synchronous=NORMAL");
+        executePragma(db, "PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES);
+    }
+
+    /**
+     * Copies as much of the write-ahead log back into the database as can be done without
+     * waiting for readers, and returns the number of pages that were copied.
+     */
+    static int checkpoint(SQLiteDatabase db) {
+        final Cursor c = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+        try {
+            // The columns are: busy, pages in the log, pages checkpointed
+            return c.moveToFirst() ? c.getInt(2) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void executePragma(SQLiteDatabase db, String sql) {
+        // Some pragmas return the new value, which execSQL does not allow. The statement only
+        // runs once the cursor is moved, not when it is created.
+        final Cursor c = db.rawQuery(sql, null);
+        try {
+            c.moveToFirst();
+        } finally {
+            c.close();
+        }
+    }
+
     public long generateNewId() {
         return mOpenHelper.generateNewId();
     }
 
+    /**
+     * Returns the first of count consecutive new ids, for items that are added together.
+     */
+    public long generateNewIds(int count) {
+        return mOpenHelper.generateNewIds(count);
+    }
+
     /**
      * @param workspaceResId that can be 0 to use default or non-zero for specific resource
      */
@@ -242,17 +321,23 @@ public class LauncherProvider extends ContentProvider {
 
         private final Context mContext;
         private final AppWidgetHost mAppWidgetHost;
-        private long mMaxId = -1;
+        private final boolean mWriteAheadLog;
+        private final ItemIdAllocator mIds;
 
         DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
             mContext = context;
             mAppWidgetHost = new AppWidgetHost(context, Launcher.APPWIDGET_HOST_ID);
+            mWriteAheadLog = context.getResources().getBoolean(
+                    R.bool.config_launcherDbWriteAheadLog);
+            setWriteAheadLoggingEnabled(mWriteAheadLog);
+            mIds = new ItemIdAllocator(context.getSharedPreferences(
+                    LauncherApplication.getSharedPreferencesKey(), Context.MODE_PRIVATE));
 
             // In the case where neither onCreate nor onUpgrade gets called, we read the maxId from
             // the DB here
-            if (mMaxId == -1) {
-                mMaxId = initializeMaxId(getWritableDatabase());
+            if (!mIds.isInitialized()) {
+                mIds.initialize(initializeMaxId(getWritableDatabase()));
             }
         }
 
@@ -267,11 +352,18 @@ public class LauncherProvider extends ContentProvider {
             resolver.notifyChange(CONTENT_APPWIDGET_RESET_URI, null);
         }
 
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            if (mWriteAheadLog) {
+                configureWriteAheadLog(db);
+            }
+        }
+
         @Override
         public void onCreate(SQLiteDatabase db) {
             if (LOGD) Log.d(TAG, "creating new launcher database");
 
-            mMaxId = 1;
+            mIds.initialize(1);
 
             db.execSQL("CREATE TABLE favorites (" +
                     "_id INTEGER PRIMARY KEY," +
@@ -483,8 +575,8 @@ public class LauncherProvider extends ContentProvider {
             if (version < 9) {
                 // The max id is not yet set at this point (onUpgrade is triggered in the ctor
                 // before it gets a change to get set, so we need to read it here when we use it)
-                if (mMaxId == -1) {
-                    mMaxId = initializeMaxId(db);
+                if (!mIds.isInitialized()) {
+                    mIds.initialize(initializeMaxId(db));
                 }
 
                 // Add default hotseat icons
@@ -646,17 +738,16 @@ public class LauncherProvider extends ContentProvider {
             }
         }
 
-        // Generates a new ID to use for an object in your database. This method should be only
-        // called from the main UI thread. As an exception, we do call it when we call the
-        // constructor from the worker thread; however, this doesn't extend until after the
-        // constructor is called, and we only pass a reference to LauncherProvider to LauncherApp
-        // after that point
+        // Generates a new ID to use for an object in your database. This method can be called
+        // from any thread, once the constructor has initialized the ids; we only pass a reference
+        // to LauncherProvider to LauncherApp after that point
         public long generateNewId() {
-            if (mMaxId < 0) {
-                throw new RuntimeException("Error: max id was not initialized");
-            }
-            mMaxId += 1;
-            return mMaxId;
+            return mIds.next();
+        }
+
+        // Generates count consecutive IDs and returns the first one
+        public long generateNewIds(int count) {
+            return mIds.next(count);
         }
 
         private long initializeMaxId(SQLiteDatabase db) {
@@ -782,22 +873,74 @@ public class LauncherProvider extends ContentProvider {
         }
 
         /**
-         * Loads the default set of favorite packages from an xml file.
+         * An element of the default workspace, as parsed from the xml. Apps and widgets only get
+         * their component once all of the components have been resolved together.
+         */
+        private static class DefaultItem {
+            final String tag;
+            long container = Favorites.CONTAINER_DESKTOP;
+            String screen;
+            String x;
+            String y;
+            int spanX = 1;
+            int spanY = 1;
+
+            // Apps and widgets, as written in the xml, and as resolved
+            String packageName;
+            String className;
+            ComponentName component;
+
+            // Apps get their title when they are resolved, folders and shortcuts from the xml
+            String title;
+
+            // Shortcuts
+            Intent intent;
+            int iconResId;
+
+            // Widgets, and the id of their row once it is inserted
+            Bundle extras;
+            long id = -1;
+
+            // Folders
+            ArrayList<DefaultItem> children;
+
+            DefaultItem(String tag) {
+                this.tag = tag;
+            }
+        }
+
+        /**
+         * Loads the default set of favorite packages from an xml file. The xml is parsed first,
+         * then the components of all of the items are resolved together, and the items that
+         * resolved are inserted in one transaction.
          *
          * @param db The database to write the values into
-         * @param filterContainerId The specific container id of items to load
+         * @param workspaceResourceId The xml resource to load
          */
         private int loadFavorites(SQLiteDatabase db, int workspaceResourceId) {
-            Intent intent = new Intent(Intent.ACTION_MAIN, null);
-            intent.addCategory(Intent.CATEGORY_LAUNCHER);
-            ContentValues values = new ContentValues();
+            final long t = StartupTrace.begin();
+            final ArrayList<DefaultItem> items = parseFavorites(workspaceResourceId);
+            resolveComponents(items);
+            int count = 0;
+            try {
+                count = insertFavorites(db, items);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Got exception adding favorites.", e);
+            }
+            StartupTrace.end(StartupTrace.SPAN_DEFAULT_FAVORITES_PARSE, t, count);
+            return count;
+        }
 
-            PackageManager packageManager = mContext.getPackageManager();
-            int allAppsButtonRank =
-                    mContext.getResources().getInteger(R.integer.hotseat_all_apps_index);
-            int i = 0;
+        /**
+         * Parses the items of the given workspace, without looking any of them up. If the xml is
+         * malformed, returns the items up to that point.
+         */
+        private ArrayList<DefaultItem> parseFavorites(int workspaceResourceId) {
+            final ArrayList<DefaultItem> items = new ArrayList<DefaultItem>();
+            final Resources r = mContext.getResources();
+            final int allAppsButtonRank = r.getInteger(R.integer.hotseat_all_apps_index);
             try {
-                XmlResourceParser parser = mContext.getResources().getXml(workspaceResourceId);
+                XmlResourceParser parser = r.getXml(workspaceResourceId);
                 AttributeSet attrs = Xml.asAttributeSet(parser);
                 beginDocument(parser, TAG_FAVORITES);
 
@@ -811,59 +954,50 @@ public class LauncherProvider extends ContentProvider {
                         continue;
                     }
 
-                    boolean added = false;
                     final String name = parser.getName();
+                    final DefaultItem item = new DefaultItem(name);
+                    boolean valid = false;
 
                     TypedArray a = mContext.obtainStyledAttributes(attrs, R.styleable.Favorite);
 
-                    long container = LauncherSettings.Favorites.CONTAINER_DESKTOP;
                     if (a.hasValue(R.styleable.Favorite_container)) {
-                        container = Long.valueOf(a.getString(R.styleable.Favorite_container));
+                        item.container = Long.valueOf(a.getString(R.styleable.Favorite_container));
                     }
-
-                    String screen = a.getString(R.styleable.Favorite_screen);
-                    String x = a.getString(R.styleable.Favorite_x);
-                    String y = a.getString(R.styleable.Favorite_y);
+                    item.screen = a.getString(R.styleable.Favorite_screen);
+                    item.x = a.getString(R.styleable.Favorite_x);
+                    item.y = a.getString(R.styleable.Favorite_y);
 
                     // If we are adding to the hotseat, the screen is used as the position in the
                     // hotseat. This screen can't be at position 0 because AllApps is in the
                     // zeroth position.
-                    if (container == LauncherSettings.Favorites.CONTAINER_HOTSEAT
-                            && Integer.valueOf(screen) == allAppsButtonRank) {
+                    if (item.container == Favorites.CONTAINER_HOTSEAT
+                            && Integer.valueOf(item.screen) == allAppsButtonRank) {
                         throw new RuntimeException("Invalid screen position for hotseat item");
                     }
 
-                    values.clear();
-                    values.put(LauncherSettings.Favorites.CONTAINER, container);
-                    values.put(LauncherSettings.Favorites.SCREEN, screen);
-                    values.put(LauncherSettings.Favorites.CELLX, x);
-                    values.put(LauncherSettings.Favorites.CELLY, y);
-
                     if (TAG_FAVORITE.equals(name)) {
-                        long id = addAppShortcut(db, values, a, packageManager, intent);
-                        added = id >= 0;
+                        valid = parseAppShortcut(item, a);
                     } else if (TAG_SEARCH.equals(name)) {
-                        added = addSearchWidget(db, values);
+                        item.spanX = 4;
+                        valid = true;
                     } else if (TAG_CLOCK.equals(name)) {
-                        added = addClockWidget(db, values);
+                        item.component = new ComponentName("com.android.alarmclock",
+                                "com.android.alarmclock.AnalogAppWidgetProvider");
+                        item.spanX = 2;
+                        item.spanY = 2;
+                        valid = true;
                     } else if (TAG_APPWIDGET.equals(name)) {
-                        added = addAppWidget(parser, attrs, type, db, values, a, packageManager);
+                        valid = parseAppWidget(parser, attrs, item, a);
                     } else if (TAG_SHORTCUT.equals(name)) {
-                        long id = addUriShortcut(db, values, a);
-                        added = id >= 0;
+                        valid = parseUriShortcut(item, a);
                     } else if (TAG_FOLDER.equals(name)) {
-                        String title;
                         int titleResId =  a.getResourceId(R.styleable.Favorite_title, -1);
                         if (titleResId != -1) {
-                            title = mContext.getResources().getString(titleResId);
+                            item.title = r.getString(titleResId);
                         } else {
-                            title = mContext.getResources().getString(R.string.folder_name);
+                            item.title = r.getString(R.string.folder_name);
                         }
-                        values.put(LauncherSettings.Favorites.TITLE, title);
-                        long folderId = addFolder(db, values);
-                        added = folderId >= 0;
-
-                        ArrayList<Long> folderItems = new ArrayList<Long>();
+                        item.children = new ArrayList<DefaultItem>();
 
                         int folderDepth = parser.getDepth();
                         while ((type = parser.next()) != XmlPullParser.END_TAG ||
@@ -872,22 +1006,17 @@ public class LauncherProvider extends ContentProvider {
                                 continue;
                             }
                             final String folder_item_name = parser.getName();
+                            final DefaultItem child = new DefaultItem(folder_item_name);
 
                             TypedArray ar = mContext.obtainStyledAttributes(attrs,
                                     R.styleable.Favorite);
-                            values.clear();
-                            values.put(LauncherSettings.Favorites.CONTAINER, folderId);
-
-                            if (TAG_FAVORITE.equals(folder_item_name) && folderId >= 0) {
-                                long id =
-                                    addAppShortcut(db, values, ar, packageManager, intent);
-                                if (id >= 0) {
-                                    folderItems.add(id);
+                            if (TAG_FAVORITE.equals(folder_item_name)) {
+                                if (parseAppShortcut(child, ar)) {
+                                    item.children.add(child);
                                 }
-                            } else if (TAG_SHORTCUT.equals(folder_item_name) && folderId >= 0) {
-                                long id = addUriShortcut(db, values, ar);
-                                if (id >= 0) {
-                                    folderItems.add(id);
+                            } else if (TAG_SHORTCUT.equals(folder_item_name)) {
+                                if (parseUriShortcut(child, ar)) {
+                                    item.children.add(child);
                                 }
                             } else {
                                 throw new RuntimeException("Folders can " +
@@ -895,19 +1024,9 @@ public class LauncherProvider extends ContentProvider {
                             }
                             ar.recycle();
                         }
-                        // We can only have folders with >= 2 items, so we need to remove the
-                        // folder and clean up if less than 2 items were included, or some
-                        // failed to add, and less than 2 were actually added
-                        if (folderItems.size() < 2 && folderId >= 0) {
-                            // We just delete the folder and any items that made it
-                            deleteId(db, folderId);
-                            if (folderItems.size() > 0) {
-                                deleteId(db, folderItems.get(0));
-                            }
-                            added = false;
-                        }
+                        valid = true;
                     }
-                    if (added) i++;
+                    if (valid) items.add(item);
                     a.recycle();
                 }
             } catch (XmlPullParserException e) {
@@ -917,48 +1036,291 @@ public class LauncherProvider extends ContentProvider {
             } catch (RuntimeException e) {
                 Log.w(TAG, "Got exception parsing favorites.", e);
             }
+            return items;
+        }
 
-            return i;
+        private boolean parseAppShortcut(DefaultItem item, TypedArray a) {
+            item.packageName = a.getString(R.styleable.Favorite_packageName);
+            item.className = a.getString(R.styleable.Favorite_className);
+            return item.packageName != null && item.className != null;
         }
 
-        private long addAppShortcut(SQLiteDatabase db, ContentValues values, TypedArray a,
-                PackageManager packageManager, Intent intent) {
-            long id = -1;
-            ActivityInfo info;
-            String packageName = a.getString(R.styleable.Favorite_packageName);
-            String className = a.getString(R.styleable.Favorite_className);
+        private boolean parseAppWidget(XmlResourceParser parser, AttributeSet attrs,
+                DefaultItem item, TypedArray a) throws XmlPullParserException, IOException {
+            item.packageName = a.getString(R.styleable.Favorite_packageName);
+            item.className = a.getString(R.styleable.Favorite_className);
+            item.spanX = a.getInt(R.styleable.Favorite_spanX, 0);
+            item.spanY = a.getInt(R.styleable.Favorite_spanY, 0);
+
+            // Read the extras
+            item.extras = new Bundle();
+            int type;
+            int widgetDepth = parser.getDepth();
+            while ((type = parser.next()) != XmlPullParser.END_TAG ||
+                    parser.getDepth() > widgetDepth) {
+                if (type != XmlPullParser.START_TAG) {
+                    continue;
+                }
+
+                TypedArray ar = mContext.obtainStyledAttributes(attrs, R.styleable.Extra);
+                if (TAG_EXTRA.equals(parser.getName())) {
+                    String key = ar.getString(R.styleable.Extra_key);
+                    String value = ar.getString(R.styleable.Extra_value);
+                    if (key != null && value != null) {
+                        item.extras.putString(key, value);
+                    } else {
+                        throw new RuntimeException("Widget extras must have a key and value");
+                    }
+                } else {
+                    throw new RuntimeException("Widgets can contain only extras");
+                }
+                ar.recycle();
+            }
+
+            return item.packageName != null && item.className != null;
+        }
+
+        private boolean parseUriShortcut(DefaultItem item, TypedArray a) {
+            item.iconResId = a.getResourceId(R.styleable.Favorite_icon, 0);
+            final int titleResId = a.getResourceId(R.styleable.Favorite_title, 0);
+
+            String uri = null;
             try {
-                ComponentName cn;
-                try {
-                    cn = new ComponentName(packageName, className);
-                    info = packageManager.getActivityInfo(cn, 0);
-                } catch (PackageManager.NameNotFoundException nnfe) {
-                    String[] packages = packageManager.currentToCanonicalPackageNames(
-                        new String[] { packageName });
-                    cn = new ComponentName(packages[0], className);
-                    info = packageManager.getActivityInfo(cn, 0);
+                uri = a.getString(R.styleable.Favorite_uri);
+                item.intent = Intent.parseUri(uri, 0);
+            } catch (URISyntaxException e) {
+                Log.w(TAG, "Shortcut has malformed uri: " + uri);
+                return false; // Oh well
+            }
+
+            if (item.iconResId == 0 || titleResId == 0) {
+                Log.w(TAG, "Shortcut is missing title or icon resource ID");
+                return false;
+            }
+            item.title = mContext.getResources().getString(titleResId);
+            return true;
+        }
+
+        /**
+         * Looks up the components of all of the apps and widgets of the default workspace. The
+         * launcher activities and the widget providers are each listed once, rather than looking
+         * up every item on its own, and the packages that have been renamed are all translated
+         * in one call. Items that do not resolve are left without a component.
+         */
+        private void resolveComponents(ArrayList<DefaultItem> items) {
+            final PackageManager packageManager = mContext.getPackageManager();
+
+            final ArrayList<DefaultItem> apps = new ArrayList<DefaultItem>();
+            final ArrayList<DefaultItem> widgets = new ArrayList<DefaultItem>();
+            DefaultItem search = null;
+            for (DefaultItem item : items) {
+                if (TAG_FAVORITE.equals(item.tag)) {
+                    apps.add(item);
+                } else if (TAG_APPWIDGET.equals(item.tag)) {
+                    widgets.add(item);
+                } else if (TAG_SEARCH.equals(item.tag)) {
+                    search = item;
+                } else if (item.children != null) {
+                    for (DefaultItem child : item.children) {
+                        if (TAG_FAVORITE.equals(child.tag)) {
+                            apps.add(child);
+                        }
+                    }
+                }
+            }
+
+            final HashMap<ComponentName, ActivityInfo> activities =
+                    new HashMap<ComponentName, ActivityInfo>();
+            if (!apps.isEmpty()) {
+                final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
+                mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+                for (ResolveInfo ri : packageManager.queryIntentActivities(mainIntent, 0)) {
+                    final ActivityInfo info = ri.activityInfo;
+                    activities.put(new ComponentName(info.packageName, info.name), info);
+                }
+            }
+
+            List<AppWidgetProviderInfo> providerInfos = null;
+            final HashSet<ComponentName> providers = new HashSet<ComponentName>();
+            if (!widgets.isEmpty() || search != null) {
+                providerInfos = AppWidgetManager.getInstance(mContext).getInstalledProviders();
+                if (providerInfos != null) {
+                    for (AppWidgetProviderInfo info : providerInfos) {
+                        providers.add(info.provider);
+                    }
+                }
+            }
+
+            // The packages that may have been renamed since the default workspace was written
+            final HashSet<String> missing = new HashSet<String>();
+            for (DefaultItem app : apps) {
+                if (!activities.containsKey(new ComponentName(app.packageName, app.className))) {
+                    missing.add(app.packageName);
+                }
+            }
+            for (DefaultItem widget : widgets) {
+                if (!providers.contains(new ComponentName(widget.packageName, widget.className))) {
+                    missing.add(widget.packageName);
+                }
+            }
+            final HashMap<String, String> canonical = new HashMap<String, String>();
+            if (!missing.isEmpty()) {
+                final String[] names = missing.toArray(new String[missing.size()]);
+                final String[] canonicalNames =
+                        packageManager.currentToCanonicalPackageNames(names);
+                for (int i = 0; i < names.length; i++) {
+                    canonical.put(names[i], canonicalNames[i]);
+                }
+            }
+
+            for (DefaultItem app : apps) {
+                ComponentName cn = new ComponentName(app.packageName, app.className);
+                ActivityInfo info = activities.get(cn);
+                if (info == null && canonical.containsKey(app.packageName)) {
+                    cn = new ComponentName(canonical.get(app.packageName), app.className);
+                    info = activities.get(cn);
+                }
+                if (info == null) {
+                    // Not a launcher activity, which is rare but allowed
+                    try {
+                        info = packageManager.getActivityInfo(cn, 0);
+                    } catch (PackageManager.NameNotFoundException e) {
+                        Log.w(TAG, "Unable to add favorite: " + app.packageName +
+                                "/" + app.className, e);
+                        continue;
+                    }
                 }
-                id = generateNewId();
-                intent.setComponent(cn);
-                intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK |
-                        Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED);
-                values.put(Favorites.INTENT, intent.toUri(0));
-                values.put(Favorites.TITLE, info.loadLabel(packageManager).toString());
-                values.put(Favorites.ITEM_TYPE, Favorites.ITEM_TYPE_APPLICATION);
-                values.put(Favorites.SPANX, 1);
-                values.put(Favorites.SPANY, 1);
-                values.put(Favorites._ID, generateNewId());
-                if (dbInsertAndCheck(this, db, TABLE_FAVORITES, null, values) < 0) {
+                app.component = cn;
+                app.title = info.loadLabel(packageManager).toString();
+            }
+
+            for (DefaultItem widget : widgets) {
+                ComponentName cn = new ComponentName(widget.packageName, widget.className);
+                if (!providers.contains(cn) && canonical.containsKey(widget.packageName)) {
+                    cn = new ComponentName(canonical.get(widget.packageName), widget.className);
+                }
+                if (!providers.contains(cn)) {
+                    try {
+                        packageManager.getReceiverInfo(cn, 0);
+                    } catch (PackageManager.NameNotFoundException e) {
+                        continue;
+                    }
+                }
+                widget.component = cn;
+            }
+
+            if (search != null && providerInfos != null) {
+                search.component = getSearchWidgetProvider(providerInfos);
+            }
+        }
+
+        /**
+         * Adds the items that resolved to the database, all in one transaction. Folders that end
+         * up with less than two items are left out, along with their items.
+         */
+        private int insertFavorites(SQLiteDatabase db, ArrayList<DefaultItem> items) {
+            final ContentValues values = new ContentValues();
+            final ArrayList<DefaultItem> folderItems = new ArrayList<DefaultItem>();
+            final ArrayList<DefaultItem> widgets = new ArrayList<DefaultItem>();
+            int count = 0;
+            db.beginTransaction();
+            try {
+                for (DefaultItem item : items) {
+                    if (item.children == null) {
+                        if (addItem(db, values, item, item.container, widgets) >= 0) {
+                            count++;
+                        }
+                        continue;
+                    }
+
+                    folderItems.clear();
+                    for (DefaultItem child : item.children) {
+                        if (child.intent != null || child.component != null) {
+                            folderItems.add(child);
+                        }
+                    }
+                    // We can only have folders with >= 2 items
+                    if (folderItems.size() < 2) {
+                        continue;
+                    }
+                    final long folderId = addFolder(db, values, item);
+                    if (folderId < 0) {
+                        continue;
+                    }
+                    for (DefaultItem child : folderItems) {
+                        addItem(db, values, child, folderId, widgets);
+                    }
+                    count++;
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            // The widget ids are only allocated and bound once the rows are committed, so that
+            // none are left allocated, or configured, for rows that were rolled back
+            for (DefaultItem widget : widgets) {
+                if (!bindAppWidget(db, values, widget)) {
+                    count--;
+                }
+            }
+            return count;
+        }
+
+        private void putPosition(ContentValues values, DefaultItem item, long container) {
+            values.clear();
+            values.put(Favorites.CONTAINER, container);
+            values.put(Favorites.SCREEN, item.screen);
+            values.put(Favorites.CELLX, item.x);
+            values.put(Favorites.CELLY, item.y);
+        }
+
+        /**
+         * Inserts the row of an item. The widgets are added to widgets, to be bound by
+         * bindAppWidget() once the rows are committed.
+         */
+        private long addItem(SQLiteDatabase db, ContentValues values, DefaultItem item,
+                long container, ArrayList<DefaultItem> widgets) {
+            putPosition(values, item, container);
+            if (TAG_FAVORITE.equals(item.tag)) {
+                return item.component != null ? addAppShortcut(db, values, item) : -1;
+            } else if (TAG_SHORTCUT.equals(item.tag)) {
+                return addUriShortcut(db, values, item);
+            } else {
+                // The search, clock and other widgets
+                if (item.component == null) {
                     return -1;
                 }
-            } catch (PackageManager.NameNotFoundException e) {
-                Log.w(TAG, "Unable to add favorite: " + packageName +
-                        "/" + className, e);
+                final long id = addAppWidget(db, values, item);
+                if (id >= 0) {
+                    widgets.add(item);
+                }
+                return id;
+            }
+        }
+
+        private long addAppShortcut(SQLiteDatabase db, ContentValues values, DefaultItem item) {
+            final Intent intent = new Intent(Intent.ACTION_MAIN, null);
+            intent.addCategory(Intent.CATEGORY_LAUNCHER);
+            intent.setComponent(item.component);
+            intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK |
+                    Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED);
+            long id = generateNewId();
+            values.put(Favorites.INTENT, intent.toUri(0));
+            values.put(Favorites.TITLE, item.title);
+            values.put(Favorites.ITEM_TYPE, Favorites.ITEM_TYPE_APPLICATION);
+            values.put(Favorites.SPANX, 1);
+            values.put(Favorites.SPANY, 1);
+            values.put(Favorites._ID, id);
+            if (dbInsertAndCheck(this, db, TABLE_FAVORITES, null, values) < 0) {
+                return -1;
             }
             return id;
         }
 
-        private long addFolder(SQLiteDatabase db, ContentValues values) {
+        private long addFolder(SQLiteDatabase db, ContentValues values, DefaultItem item) {
+            putPosition(values, item, item.container);
+            values.put(Favorites.TITLE, item.title);
             values.put(Favorites.ITEM_TYPE, Favorites.ITEM_TYPE_FOLDER);
             values.put(Favorites.SPANX, 1);
             values.put(Favorites.SPANY, 1);
@@ -972,21 +1334,26 @@ public class LauncherProvider extends ContentProvider {
         }
 
         private ComponentName getSearchWidgetProvider() {
+            AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(mContext);
+            List<AppWidgetProviderInfo> providers = appWidgetManager.getInstalledProviders();
+            if (providers == null) return null;
+            return getSearchWidgetProvider(providers);
+        }
+
+        private ComponentName getSearchWidgetProvider(List<AppWidgetProviderInfo> providers) {
             SearchManager searchManager =
                     (SearchManager) mContext.getSystemService(Context.SEARCH_SERVICE);
             ComponentName searchComponent = searchManager.getGlobalSearchActivity();
             if (searchComponent == null) return null;
-            return getProviderInPackage(searchComponent.getPackageName());
+            return getProviderInPackage(searchComponent.getPackageName(), providers);
         }
 
         /**
          * Gets an appwidget provider from the given package. If the package contains more than
          * one appwidget provider, an arbitrary one is returned.
          */
-        private ComponentName getProviderInPackage(String packageName) {
-            AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(mContext);
-            List<AppWidgetProviderInfo> providers = appWidgetManager.getInstalledProviders();
-            if (providers == null) return null;
+        private static ComponentName getProviderInPackage(String packageName,
+                List<AppWidgetProviderInfo> providers) {
             final int providerCount = providers.size();
             for (int i = 0; i < providerCount; i++) {
                 ComponentName provider = providers.get(i).provider;
@@ -997,144 +1364,76 @@ public class LauncherProvider extends ContentProvider {
             return null;
         }
 
-        private boolean addSearchWidget(SQLiteDatabase db, ContentValues values) {
-            ComponentName cn = getSearchWidgetProvider();
-            return addAppWidget(db, values, cn, 4, 1, null);
-        }
-
-        private boolean addClockWidget(SQLiteDatabase db, ContentValues values) {
-            ComponentName cn = new ComponentName("com.android.alarmclock",
-                    "com.android.alarmclock.AnalogAppWidgetProvider");
-            return addAppWidget(db, values, cn, 2, 2, null);
-        }
-
-        private boolean addAppWidget(XmlResourceParser parser, AttributeSet attrs, int type,
-                SQLiteDatabase db, ContentValues values, TypedArray a,
-                PackageManager packageManager) throws XmlPullParserException, IOException {
-
-            String packageName = a.getString(R.styleable.Favorite_packageName);
-            String className = a.getString(R.styleable.Favorite_className);
-
-            if (packageName == null || className == null) {
-                return false;
-            }
-
-            boolean hasPackage = true;
-            ComponentName cn = new ComponentName(packageName, className);
-            try {
-                packageManager.getReceiverInfo(cn, 0);
-            } catch (Exception e) {
-                String[] packages = packageManager.currentToCanonicalPackageNames(
-                        new String[] { packageName });
-                cn = new ComponentName(packages[0], className);
-                try {
-                    packageManager.getReceiverInfo(cn, 0);
-                } catch (Exception e1) {
-                    hasPackage = false;
-                }
-            }
-
-            if (hasPackage) {
-                int spanX = a.getInt(R.styleable.Favorite_spanX, 0);
-                int spanY = a.getInt(R.styleable.Favorite_spanY, 0);
-
-                // Read the extras
-                Bundle extras = new Bundle();
-                int widgetDepth = parser.getDepth();
-                while ((type = parser.next()) != XmlPullParser.END_TAG ||
-                        parser.getDepth() > widgetDepth) {
-                    if (type != XmlPullParser.START_TAG) {
-                        continue;
-                    }
-
-                    TypedArray ar = mContext.obtainStyledAttributes(attrs, R.styleable.Extra);
-                    if (TAG_EXTRA.equals(parser.getName())) {
-                        String key = ar.getString(R.styleable.Extra_key);
-                        String value = ar.getString(R.styleable.Extra_value);
-                        if (key != null && value != null) {
-                            extras.putString(key, value);
-                        } else {
-                            throw new RuntimeException("Widget extras must have a key and value");
-                        }
-                    } else {
-                        throw new RuntimeException("Widgets can contain only extras");
-                    }
-                    ar.recycle();
-                }
-
-                return addAppWidget(db, values, cn, spanX, spanY, extras);
+        /**
+         * Inserts the row of a widget, without a widget id, see bindAppWidget().
+         */
+        private long addAppWidget(SQLiteDatabase db, ContentValues values, DefaultItem item) {
+            long id = generateNewId();
+            values.put(Favorites.ITEM_TYPE, Favorites.ITEM_TYPE_APPWIDGET);
+            values.put(Favorites.SPANX, item.spanX);
+            values.put(Favorites.SPANY, item.spanY);
+            values.put(Favorites.APPWIDGET_ID, -1);
+            values.put(Favorites._ID, id);
+            if (dbInsertAndCheck(this, db, TABLE_FAVORITES, null, values) < 0) {
+                return -1;
             }
-
-            return false;
+            item.id = id;
+            return id;
         }
 
-        private boolean addAppWidget(SQLiteDatabase db, ContentValues values, ComponentName cn,
-                int spanX, int spanY, Bundle extras) {
-            boolean allocatedAppWidgets = false;
+        /**
+         * Allocates and binds the widget id of a widget whose row was committed, and sends the
+         * broadcast to configure it. The row is deleted if that fails.
+         */
+        private boolean bindAppWidget(SQLiteDatabase db, ContentValues values, DefaultItem item) {
+            final ComponentName cn = item.component;
             final AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(mContext);
+            final String[] selectionArgs = { Long.toString(item.id) };
 
+            int appWidgetId = -1;
             try {
-                int appWidgetId = mAppWidgetHost.allocateAppWidgetId();
-
-                values.put(Favorites.ITEM_TYPE, Favorites.ITEM_TYPE_APPWIDGET);
-                values.put(Favorites.SPANX, spanX);
-                values.put(Favorites.SPANY, spanY);
+                appWidgetId = mAppWidgetHost.allocateAppWidgetId();
+                values.clear();
                 values.put(Favorites.APPWIDGET_ID, appWidgetId);
-                values.put(Favorites._ID, generateNewId());
-                dbInsertAndCheck(this, db, TABLE_FAVORITES, null, values);
-
-                allocatedAppWidgets = true;
+                db.update(TABLE_FAVORITES, values, Favorites._ID + "=?", selectionArgs);
 
                 // TODO: need to check return value
                 appWidgetManager.bindAppWidgetIdIfAllowed(appWidgetId, cn);
 
                 // Send a broadcast to configure the widget
-                if (extras != null && !extras.isEmpty()) {
+                if (item.extras != null && !item.extras.isEmpty()) {
                     Intent intent = new Intent(ACTION_APPWIDGET_DEFAULT_WORKSPACE_CONFIGURE);
                     intent.setComponent(cn);
-                    intent.putExtras(extras);
+                    intent.putExtras(item.extras);
                     intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
                     mContext.sendBroadcast(intent);
                 }
+                return true;
             } catch (RuntimeException ex) {
                 Log.e(TAG, "Problem allocating appWidgetId", ex);
             }
 
-            return allocatedAppWidgets;
+            if (appWidgetId != -1) {
+                mAppWidgetHost.deleteAppWidgetId(appWidgetId);
+            }
+            db.delete(TABLE_FAVORITES, Favorites._ID + "=?", selectionArgs);
+            return false;
         }
 
-        private long addUriShortcut(SQLiteDatabase db, ContentValues values,
-                TypedArray a) {
+        private long addUriShortcut(SQLiteDatabase db, ContentValues values, DefaultItem item) {
             Resources r = mContext.getResources();
 
-            final int iconResId = a.getResourceId(R.styleable.Favorite_icon, 0);
-            final int titleResId = a.getResourceId(R.styleable.Favorite_title, 0);
-
-            Intent intent;
-            String uri = null;
-            try {
-                uri = a.getString(R.styleable.Favorite_uri);
-                intent = Intent.parseUri(uri, 0);
-            } catch (URISyntaxException e) {
-                Log.w(TAG, "Shortcut has malformed uri: " + uri);
-                return -1; // Oh well
-            }
-
-            if (iconResId == 0 || titleResId == 0) {
-                Log.w(TAG, "Shortcut is missing title or icon resource ID");
-                return -1;
-            }
-
             long id = generateNewId();
+            final Intent intent = item.intent;
             intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
             values.put(Favorites.INTENT, intent.toUri(0));
-            values.put(Favorites.TITLE, r.getString(titleResId));
+            values.put(Favorites.TITLE, item.title);
             values.put(Favorites.ITEM_TYPE, Favorites.ITEM_TYPE_SHORTCUT);
             values.put(Favorites.SPANX, 1);
             values.put(Favorites.SPANY, 1);
             values.put(Favorites.ICON_TYPE, Favorites.ICON_TYPE_RESOURCE);
             values.put(Favorites.ICON_PACKAGE, mContext.getPackageName());
-            values.put(Favorites.ICON_RESOURCE, r.getResourceName(iconResId));
+            values.put(Favorites.ICON_RESOURCE, r.getResourceName(item.iconResId));
             values.put(Favorites._ID, id);
 
             if (dbInsertAndCheck(this, db, TABLE_FAVORITES, null, values) < 0) {
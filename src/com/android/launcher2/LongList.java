@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of longs, for lists of item ids that would otherwise box every id.
+ */
+final class LongList {
+    private long[] mValues;
+    private int mSize;
+
+    LongList() {
+        this(10);
+    }
+
+    LongList(int capacity) {
+        mValues = new long[capacity];
+    }
+
+    void add(long value) {
+        if (mSize == mValues.length) {
+            mValues = Arrays.copyOf(mValues, Math.max(4, mSize * 2));
+        }
+        mValues[mSize++] = value;
+    }
+
+    long get(int index) {
+        if (index >= mSize) {
+            throw new IndexOutOfBoundsException("index=" + index + " size=" + mSize);
+        }
+        return mValues[index];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    void clear() {
+        mSize = 0;
+    }
+}
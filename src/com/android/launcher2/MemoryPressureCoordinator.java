@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Passes the memory trim levels and low memory signals that the launcher gets on to all of the
+ * caches that hold on to memory, so that each one can give back as much as makes sense for the
+ * level. Each cache also reports how many bytes it holds, which is printed when dumping state.
+ *
+ * Only used on the UI thread.
+ */
+class MemoryPressureCoordinator {
+    private static final String TAG = "Launcher.MemoryPressure";
+
+    interface Cache {
+        /**
+         * Returns the number of bytes currently held by the cache.
+         */
+        long getSizeBytes();
+
+        /**
+         * Releases memory as appropriate for the given level, one of the TRIM_MEMORY_ levels in
+         * {@link ComponentCallbacks2}. Higher levels should release more.
+         */
+        void trimMemory(int level);
+    }
+
+    private static class Entry {
+        final Object owner;
+        final String name;
+        final Cache cache;
+        int trimCount;
+        int lastTrimLevel;
+
+        Entry(Object owner, String name, Cache cache) {
+            this.owner = owner;
+            this.name = name;
+            this.cache = cache;
+        }
+    }
+
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+    private int mLowMemoryCount;
+
+    /**
+     * Adds a cache to be trimmed. The owner is used to remove all of the caches of an object
+     * that goes away, see {@link #unregisterAll}.
+     */
+    void register(Object owner, String name, Cache cache) {
+        mEntries.add(new Entry(owner, name, cache));
+    }
+
+    void unregisterAll(Object owner) {
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            if (mEntries.get(i).owner == owner) {
+                mEntries.remove(i);
+            }
+        }
+    }
+
+    void onTrimMemory(int level) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            final Entry entry = mEntries.get(i);
+            entry.cache.trimMemory(level);
+            entry.trimCount++;
+            entry.lastTrimLevel = level;
+        }
+    }
+
+    void onLowMemory() {
+        mLowMemoryCount++;
+        onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    long getTotalSizeBytes() {
+        long total = 0;
+        for (int i = 0; i < mEntries.size(); i++) {
+            total += mEntries.get(i).cache.getSizeBytes();
+        }
+        return total;
+    }
+
+    public void dumpState() {
+        Log.d(TAG, "caches=" + mEntries.size() + " total=" + (getTotalSizeBytes() / 1024)
+                + "KB lowMemory=" + mLowMemoryCount);
+        for (int i = 0; i < mEntries.size(); i++) {
+            Log.d(TAG, "  " + describe(mEntries.get(i)));
+        }
+    }
+
+    void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "Memory caches: total=" + (getTotalSizeBytes() / 1024)
+                + "KB lowMemory=" + mLowMemoryCount);
+        for (int i = 0; i < mEntries.size(); i++) {
+            writer.println(prefix + "  " + describe(mEntries.get(i)));
+        }
+    }
+
+    private static String describe(Entry entry) {
+        return entry.name + ": " + (entry.cache.getSizeBytes() / 1024) + "KB trims="
+                + entry.trimCount + " lastLevel=" + entry.lastTrimLevel;
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * An immutable set of the workspace items loaded by LauncherModel. The current snapshot is
+ * published through LauncherModel.sBgModel, so any thread can read a consistent set of items
+ * without locking. Changes are only made on the worker thread, by building the next snapshot
+ * from a copy of the current one.
+ *
+ * Only the collections are immutable, the ItemInfos are shared between snapshots. The maps by id
+ * cannot be wrapped to enforce that, so they must never be changed once the snapshot is built.
+ */
+final class ModelSnapshot {
+    static final ModelSnapshot EMPTY = new Builder().build();
+
+    // Maps *all* the ItemInfos (shortcuts, folders, and widgets) to their ids
+    final LongSparseArray<ItemInfo> itemsIdMap;
+
+    // The folders and shortcuts that are directly on the home screen or in the hotseat (no
+    // widgets, and no shortcuts within folders). Passed to bindItems().
+    final List<ItemInfo> workspaceItems;
+
+    // All of the widgets. Passed to bindAppWidget().
+    final List<LauncherAppWidgetInfo> appWidgets;
+
+    // All of the folders. Passed to bindFolders().
+    final LongSparseArray<FolderInfo> folders;
+
+    // Built with the snapshot, on the worker thread, so that lookups never have to build it
+    private final Index mIndex;
+
+    // Built with the snapshot, and replaced by a copy whenever an item moves without changing
+    // the snapshot, see updateColumns(). Only the worker thread replaces them.
+    private volatile WorkspaceColumns<ItemInfo> mWorkspaceColumns;
+    private volatile WorkspaceColumns<LauncherAppWidgetInfo> mAppWidgetColumns;
+
+    /**
+     * The items of a snapshot by package, by component and by intent, so that the items that a
+     * package change affects can be found without looking at all of them.
+     *
+     * Each snapshot has its own index, which is built from the index of the snapshot it was
+     * edited from by only updating the keys of the items that were added or removed. The lists
+     * are shared between the two, and copied before they are changed.
+     */
+    private static class Index {
+        final HashMap<String, ArrayList<ItemInfo>> byPackage;
+        final HashMap<ComponentName, ArrayList<ItemInfo>> byComponent;
+        final HashMap<String, ArrayList<ItemInfo>> byIntentUri;
+
+        // The keys that each item was indexed under, since the intent of a shortcut may be
+        // changed in place before it is removed
+        final LongSparseArray<ComponentName> componentsById;
+        final LongSparseArray<String> intentUrisById;
+
+        Index(LongSparseArray<ItemInfo> itemsIdMap) {
+            byPackage = new HashMap<String, ArrayList<ItemInfo>>();
+            byComponent = new HashMap<ComponentName, ArrayList<ItemInfo>>();
+            byIntentUri = new HashMap<String, ArrayList<ItemInfo>>();
+            componentsById = new LongSparseArray<ComponentName>();
+            intentUrisById = new LongSparseArray<String>();
+            final int count = itemsIdMap.size();
+            for (int i = 0; i < count; i++) {
+                add(itemsIdMap.valueAt(i));
+            }
+            compact();
+        }
+
+        private Index(Index base) {
+            byPackage = new HashMap<String, ArrayList<ItemInfo>>(base.byPackage);
+            byComponent = new HashMap<ComponentName, ArrayList<ItemInfo>>(base.byComponent);
+            byIntentUri = new HashMap<String, ArrayList<ItemInfo>>(base.byIntentUri);
+            componentsById = base.componentsById.clone();
+            intentUrisById = base.intentUrisById.clone();
+        }
+
+        /**
+         * Returns the index of newItems, given the index of oldItems. Only the items whose ids
+         * were added, removed or given another ItemInfo are looked at.
+         */
+        static Index update(Index base, LongSparseArray<ItemInfo> oldItems,
+                LongSparseArray<ItemInfo> newItems) {
+            Index index = null;
+            final int oldCount = oldItems.size();
+            final int newCount = newItems.size();
+            int i = 0;
+            int j = 0;
+            // Both are sorted by id, so walk them together
+            while (i < oldCount || j < newCount) {
+                final long oldId = i < oldCount ? oldItems.keyAt(i) : Long.MAX_VALUE;
+                final long newId = j < newCount ? newItems.keyAt(j) : Long.MAX_VALUE;
+                final ItemInfo removed = oldId <= newId ? oldItems.valueAt(i) : null;
+                final ItemInfo added = newId <= oldId ? newItems.valueAt(j) : null;
+                if (oldId <= newId) i++;
+                if (newId <= oldId) j++;
+                if (removed == added) continue;
+
+                if (index == null) {
+                    index = new Index(base);
+                }
+                if (removed != null) {
+                    index.remove(removed);
+                }
+                if (added != null) {
+                    index.add(added);
+                }
+            }
+            if (index == null) {
+                return base;
+            }
+            index.compact();
+            return index;
+        }
+
+        private void add(ItemInfo item) {
+            final ComponentName component = getComponent(item);
+            if (component != null) {
+                addTo(byPackage, component.getPackageName(), item);
+                addTo(byComponent, component, item);
+                componentsById.put(item.id, component);
+            }
+            if (item instanceof ShortcutInfo) {
+                final Intent intent = ((ShortcutInfo) item).intent;
+                if (intent != null) {
+                    final String uri = intent.toUri(0);
+                    addTo(byIntentUri, uri, item);
+                    intentUrisById.put(item.id, uri);
+                }
+            }
+        }
+
+        private void remove(ItemInfo item) {
+            final ComponentName component = componentsById.get(item.id);
+            if (component != null) {
+                removeFrom(byPackage, component.getPackageName(), item);
+                removeFrom(byComponent, component, item);
+                componentsById.remove(item.id);
+            }
+            final String uri = intentUrisById.get(item.id);
+            if (uri != null) {
+                removeFrom(byIntentUri, uri, item);
+                intentUrisById.remove(item.id);
+            }
+        }
+
+        private void compact() {
+            // See the ModelSnapshot constructor
+            componentsById.size();
+            intentUrisById.size();
+        }
+
+        private static <K> void addTo(HashMap<K, ArrayList<ItemInfo>> map, K key,
+                ItemInfo item) {
+            final ArrayList<ItemInfo> items = map.get(key);
+            final ArrayList<ItemInfo> copy;
+            if (items == null) {
+                copy = new ArrayList<ItemInfo>(1);
+            } else {
+                copy = new ArrayList<ItemInfo>(items.size() + 1);
+                copy.addAll(items);
+            }
+            copy.add(item);
+            map.put(key, copy);
+        }
+
+        private static <K> void removeFrom(HashMap<K, ArrayList<ItemInfo>> map, K key,
+                ItemInfo item) {
+            final ArrayList<ItemInfo> items = map.get(key);
+            if (items == null || !items.contains(item)) return;
+            if (items.size() == 1) {
+                map.remove(key);
+            } else {
+                final ArrayList<ItemInfo> copy = new ArrayList<ItemInfo>(items);
+                copy.remove(item);
+                map.put(key, copy);
+            }
+        }
+    }
+
+    private ModelSnapshot(Builder builder) {
+        // LongSparseArray compacts itself lazily, on the first read after a removal. Do it here,
+        // so that reading the snapshot from several threads never changes it.
+        builder.itemsIdMap.size();
+        builder.folders.size();
+        itemsIdMap = builder.itemsIdMap;
+        workspaceItems = Collections.unmodifiableList(builder.workspaceItems);
+        appWidgets = Collections.unmodifiableList(builder.appWidgets);
+        folders = builder.folders;
+        mWorkspaceColumns = new WorkspaceColumns<ItemInfo>(workspaceItems);
+        mAppWidgetColumns = new WorkspaceColumns<LauncherAppWidgetInfo>(appWidgets);
+        mIndex = builder.base != null
+                ? Index.update(builder.base.mIndex, builder.base.itemsIdMap, itemsIdMap)
+                : new Index(itemsIdMap);
+    }
+
+    /**
+     * Returns the component that an item launches or shows: the activity of a shortcut, or the
+     * provider of a widget. Returns null for folders, and shortcuts without a component.
+     */
+    static ComponentName getComponent(ItemInfo item) {
+        if (item instanceof ShortcutInfo) {
+            final Intent intent = ((ShortcutInfo) item).intent;
+            return intent != null ? intent.getComponent() : null;
+        } else if (item instanceof LauncherAppWidgetInfo) {
+            return ((LauncherAppWidgetInfo) item).providerName;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the shortcuts and widgets of the given package, wherever they are.
+     */
+    List<ItemInfo> getItemsForPackage(String packageName) {
+        return unmodifiable(mIndex.byPackage.get(packageName));
+    }
+
+    /**
+     * Returns the shortcuts and widgets of the given component, wherever they are.
+     */
+    List<ItemInfo> getItemsForComponent(ComponentName component) {
+        return unmodifiable(mIndex.byComponent.get(component));
+    }
+
+    /**
+     * Returns the shortcuts with the given intent, as returned by Intent.toUri(0), wherever
+     * they are.
+     */
+    List<ItemInfo> getItemsWithIntent(String intentUri) {
+        return unmodifiable(mIndex.byIntentUri.get(intentUri));
+    }
+
+    /**
+     * Returns the positions of the workspace items, as columns.
+     */
+    WorkspaceColumns<ItemInfo> getWorkspaceColumns() {
+        return mWorkspaceColumns;
+    }
+
+    /**
+     * Returns the positions of the widgets, as columns.
+     */
+    WorkspaceColumns<LauncherAppWidgetInfo> getAppWidgetColumns() {
+        return mAppWidgetColumns;
+    }
+
+    /**
+     * Replaces the columns with copies that have the position of an item that moved without
+     * changing the snapshot. Threads that already got the columns keep the old ones. Must be
+     * called on the worker thread.
+     */
+    void updateColumns(ItemInfo item) {
+        mWorkspaceColumns = mWorkspaceColumns.update(item);
+        mAppWidgetColumns = mAppWidgetColumns.update(item);
+    }
+
+    private static List<ItemInfo> unmodifiable(ArrayList<ItemInfo> items) {
+        if (items == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(items);
+    }
+
+    /**
+     * Returns a builder for the next snapshot, starting from a copy of this one.
+     */
+    Builder edit() {
+        return new Builder(this);
+    }
+
+    static class Builder {
+        final ModelSnapshot base;
+        final LongSparseArray<ItemInfo> itemsIdMap;
+        final ArrayList<ItemInfo> workspaceItems;
+        final ArrayList<LauncherAppWidgetInfo> appWidgets;
+        final LongSparseArray<FolderInfo> folders;
+
+        /**
+         * Creates a builder for a snapshot that replaces whatever is current, as when loading.
+         */
+        Builder() {
+            base = null;
+            itemsIdMap = new LongSparseArray<ItemInfo>();
+            workspaceItems = new ArrayList<ItemInfo>();
+            appWidgets = new ArrayList<LauncherAppWidgetInfo>();
+            folders = new LongSparseArray<FolderInfo>();
+        }
+
+        private Builder(ModelSnapshot snapshot) {
+            base = snapshot;
+            itemsIdMap = snapshot.itemsIdMap.clone();
+            workspaceItems = new ArrayList<ItemInfo>(snapshot.workspaceItems);
+            appWidgets = new ArrayList<LauncherAppWidgetInfo>(snapshot.appWidgets);
+            folders = snapshot.folders.clone();
+        }
+
+        /**
+         * Builds the snapshot. The builder must not be used afterwards.
+         */
+        ModelSnapshot build() {
+            return new ModelSnapshot(this);
+        }
+    }
+}
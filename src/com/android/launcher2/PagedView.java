@@ -44,6 +44,7 @@ import android.widget.Scroller;
 
 import com.android.launcher.R;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 
 /**
@@ -90,6 +91,12 @@ public abstract class PagedView extends ViewGroup implements ViewGroup.OnHierarc
 
     protected int mCurrentPage;
     protected int mNextPage = INVALID_PAGE;
+    // The page a fling is heading to, until the pages stop moving
+    protected int mFlingTargetPage = INVALID_PAGE;
+    // The pages that subclasses ask the HardwareLayerManager for layers on, most important first
+    protected View[] mLayerPages = new View[0];
+    private int mLastLayerScrollX;
+    private int mLayerScrollDirection;
     protected int mMaxScrollX;
     protected Scroller mScroller;
     private VelocityTracker mVelocityTracker;
@@ -187,6 +194,10 @@ public abstract class PagedView extends ViewGroup implements ViewGroup.OnHierarc
     // If set, will defer loading associated pages until the scrolling settles
     private boolean mDeferLoadAssociatedPagesUntilScrollCompletes;
 
+    // Only set when the scroll frame stats are turned on
+    protected ScrollFrameStats mFrameStats;
+    private boolean mShowFrameStatsOverlay;
+
     public interface PageSwitchListener {
         void onPageSwitch(View newPage, int newPageIndex);
     }
@@ -369,6 +380,7 @@ public abstract class PagedView extends ViewGroup implements ViewGroup.OnHierarc
     }
 
     protected void pageEndMoving() {
+        mFlingTargetPage = INVALID_PAGE;
         if (mIsPageMoving) {
             mIsPageMoving = false;
             onPageEndMoving();
@@ -818,6 +830,16 @@ public abstract class PagedView extends ViewGroup implements ViewGroup.OnHierarc
 
     @Override
     protected void dispatchDraw(Canvas canvas) {
+        final ScrollFrameStats stats = mFrameStats;
+        final boolean trackFrame = stats != null && isTrackingFrameStats();
+        final long frameStart = trackFrame ? System.nanoTime() : 0;
+        if (trackFrame) {
+            stats.onFrameStart(frameStart);
+        } else if (stats != null) {
+            stats.onIdleFrame();
+        }
+        int pagesDrawn = 0;
+
         int halfScreenSize = getMeasuredWidth() / 2;
         // mOverScrollX is equal to getScrollX() when we're within the normal scroll range.
         // Otherwise it is equal to the scaled overscroll position.
@@ -829,6 +851,10 @@ public abstract class PagedView extends ViewGroup implements ViewGroup.OnHierarc
             mForceScreenScrolled = false;
             screenScrolled(screenCenter);
             mLastScreenCenter = screenCenter;
+            if (trackFrame) {
+                stats.addSectionTime(ScrollFrameStats.SECTION_SCREEN_SCROLLED,
+                        System.nanoTime() - frameStart);
+            }
         }
 
         // Find out which screens are visible; as an optimization we only call draw on them
@@ -849,12 +875,50 @@ public abstract class PagedView extends ViewGroup implements ViewGroup.OnHierarc
                     if (mForceDrawAllChildrenNextFrame ||
                                (leftScreen <= i && i <= rightScreen && shouldDrawChild(v))) {
                         drawChild(canvas, v, drawingTime);
+                        pagesDrawn++;
                     }
                 }
                 mForceDrawAllChildrenNextFrame = false;
                 canvas.restore();
             }
         }
+
+        if (trackFrame) {
+            stats.addSectionTime(ScrollFrameStats.SECTION_DISPATCH_DRAW,
+                    System.nanoTime() - frameStart);
+            stats.addPagesDrawn(pagesDrawn);
+        }
+        if (mShowFrameStatsOverlay && stats != null) {
+            stats.drawOverlay(canvas, getScrollX() + getPaddingLeft(),
+                    getScrollY() + getPaddingTop());
+        }
+    }
+
+    /**
+     * Returns whether the frames being drawn should be counted in the scroll frame stats.
+     */
+    protected boolean isTrackingFrameStats() {
+        return isPageMoving();
+    }
+
+    void dumpFrameStats(String prefix, PrintWriter writer) {
+        if (mFrameStats != null) {
+            mFrameStats.dump(prefix, writer);
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (ScrollFrameStats.isEnabled()) {
+            if (mFrameStats == null) {
+                mFrameStats = new ScrollFrameStats(getClass().getSimpleName());
+            }
+            mShowFrameStatsOverlay = ScrollFrameStats.isOverlayEnabled();
+        } else {
+            mFrameStats = null;
+            mShowFrameStatsOverlay = false;
+        }
     }
 
     @Override
@@ -1550,6 +1614,65 @@ public abstract class PagedView extends ViewGroup implements ViewGroup.OnHierarc
         duration = Math.min(duration, MAX_PAGE_SNAP_DURATION);
 
         snapToPage(whichPage, delta, duration);
+
+        // mCurrentPage only changes once the scroll has settled
+        if (whichPage != mCurrentPage) {
+            mFlingTargetPage = whichPage;
+            if (whichPage > mCurrentPage) {
+                onFlingPrefetch(whichPage, mCurrentPage + 1, whichPage);
+            } else {
+                onFlingPrefetch(whichPage, whichPage, mCurrentPage - 1);
+            }
+        }
+    }
+
+    /**
+     * Called when a fling starts, before the first frame of the scroll is drawn. firstPage and
+     * lastPage bound the pages that will come into view on the way to targetPage, which is one
+     * of them.
+     * Subclasses can override this to get the content of the destination ready before it is
+     * visible, instead of once the scroll has settled.
+     */
+    protected void onFlingPrefetch(int targetPage, int firstPage, int lastPage) {
+    }
+
+    /**
+     * Fills mLayerPages with the pages that should have hardware layers, most important first:
+     * the pages between leftScreen and rightScreen that are drawn, the page a fling is heading
+     * to and the page that will come into view next in the direction of the scroll. Returns the
+     * number of pages filled in.
+     */
+    protected int collectLayerPages(int leftScreen, int rightScreen, int forceDrawScreen) {
+        final int screenCount = getChildCount();
+        if (mLayerPages.length < screenCount) {
+            mLayerPages = new View[screenCount];
+        }
+
+        final int scrollX = getScrollX();
+        if (scrollX != mLastLayerScrollX) {
+            final boolean forward = scrollX > mLastLayerScrollX;
+            mLayerScrollDirection = forward != isLayoutRtl() ? 1 : -1;
+            mLastLayerScrollX = scrollX;
+        }
+
+        int count = 0;
+        for (int i = Math.max(0, leftScreen); i <= rightScreen && i < screenCount; i++) {
+            final View page = getPageAt(i);
+            if (i == forceDrawScreen || shouldDrawChild(page)) {
+                mLayerPages[count++] = page;
+            }
+        }
+        if (mFlingTargetPage >= 0 && mFlingTargetPage < screenCount &&
+                (mFlingTargetPage < leftScreen || mFlingTargetPage > rightScreen)) {
+            mLayerPages[count++] = getPageAt(mFlingTargetPage);
+        }
+        if (count > 0 && isPageMoving()) {
+            final int nextScreen = mLayerScrollDirection > 0 ? rightScreen + 1 : leftScreen - 1;
+            if (nextScreen >= 0 && nextScreen < screenCount && nextScreen != mFlingTargetPage) {
+                mLayerPages[count++] = getPageAt(nextScreen);
+            }
+        }
+        return count;
     }
 
     protected void snapToPage(int whichPage) {
@@ -1675,6 +1798,15 @@ public abstract class PagedView extends ViewGroup implements ViewGroup.OnHierarc
     protected void loadAssociatedPages(int page) {
         loadAssociatedPages(page, false);
     }
+
+    /**
+     * Removes the item views of a page that is no longer among the associated pages of the
+     * current page. Subclasses can override this to keep the views for reuse.
+     */
+    protected void unloadPage(Page layout) {
+        layout.removeAllViewsOnPage();
+    }
+
     protected void loadAssociatedPages(int page, boolean immediateAndOnly) {
         if (mContentIsRefreshable) {
             final int count = getChildCount();
@@ -1688,7 +1820,7 @@ public abstract class PagedView extends ViewGroup implements ViewGroup.OnHierarc
                     Page layout = (Page) getPageAt(i);
                     if ((i < lowerPageBound) || (i > upperPageBound)) {
                         if (layout.getPageChildCount() > 0) {
-                            layout.removeAllViewsOnPage();
+                            unloadPage(layout);
                         }
                         mDirtyPageContent.set(i, true);
                     }
@@ -61,6 +61,20 @@ public class PagedViewIcon extends TextView {
         setTag(info);
     }
 
+    /**
+     * Resets the state left over from the previous item, so that the icon can be rebound with
+     * applyFromApplicationInfo.
+     */
+    void prepareForReuse() {
+        mIcon = null;
+        mPressedCallback = null;
+        mLockDrawableState = false;
+        setCompoundDrawables(null, null, null, null);
+        setTag(null);
+        setPressed(false);
+        setAlpha(1f);
+    }
+
     public void lockDrawableState() {
         mLockDrawableState = true;
     }
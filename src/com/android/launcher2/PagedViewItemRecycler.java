@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.android.launcher.R;
+
+import java.util.ArrayList;
+
+/**
+ * Keeps the PagedViewIcons and PagedViewWidgets removed from the pages of the
+ * AppsCustomizePagedView, so that they can be rebound to other items instead of being inflated
+ * again every time a page is synced.
+ */
+class PagedViewItemRecycler {
+    private static final String TAG = "PagedViewItemRecycler";
+
+    // Enough for the three pages that are kept loaded around the current page
+    private static final int MAX_SCRAP_ICONS = 96;
+    private static final int MAX_SCRAP_WIDGETS = 24;
+
+    private final LayoutInflater mInflater;
+    private final ArrayList<PagedViewIcon> mScrapIcons = new ArrayList<PagedViewIcon>();
+    private final ArrayList<PagedViewWidget> mScrapWidgets = new ArrayList<PagedViewWidget>();
+    private final ArrayList<View> mTmpChildren = new ArrayList<View>();
+
+    private int mInflatedCount;
+    private int mReusedCount;
+
+    PagedViewItemRecycler(LayoutInflater inflater) {
+        mInflater = inflater;
+    }
+
+    /**
+     * Returns a recycled icon, or a newly inflated one if there is none.
+     */
+    PagedViewIcon obtainIcon(ViewGroup parent) {
+        final int count = mScrapIcons.size();
+        if (count > 0) {
+            mReusedCount++;
+            return mScrapIcons.remove(count - 1);
+        }
+        mInflatedCount++;
+        return (PagedViewIcon) mInflater.inflate(R.layout.apps_customize_application, parent,
+                false);
+    }
+
+    /**
+     * Returns a recycled widget, or a newly inflated one if there is none.
+     */
+    PagedViewWidget obtainWidget(ViewGroup parent) {
+        final int count = mScrapWidgets.size();
+        if (count > 0) {
+            mReusedCount++;
+            return mScrapWidgets.remove(count - 1);
+        }
+        mInflatedCount++;
+        return (PagedViewWidget) mInflater.inflate(R.layout.apps_customize_widget, parent,
+                false);
+    }
+
+    /**
+     * Removes all the views on the given page, keeping the icons and widgets for reuse.
+     */
+    void recycleAllViewsOnPage(Page page) {
+        final ArrayList<View> children = mTmpChildren;
+        final int count = page.getPageChildCount();
+        for (int i = 0; i < count; i++) {
+            children.add(page.getChildOnPageAt(i));
+        }
+
+        // The views are only reset once they are detached, since PagedViewWidget hands its
+        // preview back to the WidgetPreviewLoader when it is detached from the window
+        page.removeAllViewsOnPage();
+
+        for (int i = 0; i < count; i++) {
+            final View v = children.get(i);
+            if (v instanceof PagedViewIcon) {
+                if (mScrapIcons.size() < MAX_SCRAP_ICONS) {
+                    ((PagedViewIcon) v).prepareForReuse();
+                    mScrapIcons.add((PagedViewIcon) v);
+                }
+            } else if (v instanceof PagedViewWidget) {
+                if (mScrapWidgets.size() < MAX_SCRAP_WIDGETS) {
+                    ((PagedViewWidget) v).prepareForReuse();
+                    mScrapWidgets.add((PagedViewWidget) v);
+                }
+            }
+        }
+        children.clear();
+    }
+
+    /**
+     * Drops all the views kept for reuse.
+     */
+    void clear() {
+        mScrapIcons.clear();
+        mScrapWidgets.clear();
+    }
+
+    void dumpState() {
+        Log.d(TAG, "scrap icons=" + mScrapIcons.size() + " scrap widgets="
+                + mScrapWidgets.size() + " inflated=" + mInflatedCount
+                + " reused=" + mReusedCount);
+    }
+}
@@ -104,6 +104,27 @@ public class PagedViewWidget extends LinearLayout {
         }
     }
 
+    /**
+     * Resets the state left over from the previous item, so that the widget can be rebound with
+     * applyFromAppWidgetProviderInfo or applyFromResolveInfo.
+     */
+    void prepareForReuse() {
+        removeShortPressCallback();
+        mShortPressTriggered = false;
+        if (sShortpressTarget == this) {
+            sShortpressTarget = null;
+        }
+        final ImageView image = (ImageView) findViewById(R.id.widget_preview);
+        image.setImageDrawable(null);
+        image.setPadding(mOriginalImagePadding.left, mOriginalImagePadding.top,
+                mOriginalImagePadding.right, mOriginalImagePadding.bottom);
+        mInfo = null;
+        mWidgetPreviewLoader = null;
+        setTag(null);
+        setPressed(false);
+        setAlpha(1f);
+    }
+
     public void applyFromAppWidgetProviderInfo(AppWidgetProviderInfo info,
             int maxWidth, int[] cellSpan, WidgetPreviewLoader loader) {
         mIsAppWidget = true;
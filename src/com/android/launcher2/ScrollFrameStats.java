@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/**
+ * Collects the frame times of a PagedView while its pages are moving or it is changing state,
+ * along with the time spent in the work done for each of those frames.
+ *
+ * This is off by default. "setprop log.tag.LauncherScrollStats DEBUG" turns on the collection,
+ * and VERBOSE also draws the numbers over the pages. Both take effect the next time the view is
+ * attached to its window.
+ */
+final class ScrollFrameStats {
+    static final String TAG = "LauncherScrollStats";
+
+    static final int SECTION_SCREEN_SCROLLED = 0;
+    static final int SECTION_DISPATCH_DRAW = 1;
+    static final int SECTION_WALLPAPER_OFFSETS = 2;
+    static final int SECTION_HW_LAYERS = 3;
+    private static final int SECTION_COUNT = 4;
+    private static final String[] SECTION_NAMES = {
+        "screenScrolled", "dispatchDraw", "wallpaperOffsets", "hwLayers"
+    };
+
+    // Upper bounds of the histogram buckets in ms, the last bucket holds everything longer
+    private static final int[] BUCKET_LIMITS_MS = { 8, 16, 20, 33, 50, 100 };
+    // Frames longer than this count as janky
+    private static final int JANK_THRESHOLD_MS = 20;
+
+    // A gap longer than this between two frames means that the movement had stopped
+    private static final long MAX_FRAME_GAP_NANOS = 500 * 1000000L;
+
+    private final String mName;
+    private final int[] mBuckets = new int[BUCKET_LIMITS_MS.length + 1];
+    private final long[] mSectionNanos = new long[SECTION_COUNT];
+    private final long[] mMaxSectionNanos = new long[SECTION_COUNT];
+    private long mFrameCount;
+    private long mJankyFrameCount;
+    private long mMaxFrameNanos;
+    private long mLastFrameStartNanos;
+    private long mPagesDrawn;
+    private int mMaxPagesDrawn;
+    private int mLastPagesDrawn;
+
+    private Paint mOverlayPaint;
+    private final StringBuilder mOverlayText = new StringBuilder();
+
+    ScrollFrameStats(String name) {
+        mName = name;
+    }
+
+    static boolean isEnabled() {
+        return Log.isLoggable(TAG, Log.DEBUG);
+    }
+
+    static boolean isOverlayEnabled() {
+        return Log.isLoggable(TAG, Log.VERBOSE);
+    }
+
+    /**
+     * Called at the start of each frame drawn while the view is being tracked.
+     */
+    void onFrameStart(long nowNanos) {
+        final long frameNanos = nowNanos - mLastFrameStartNanos;
+        if (mLastFrameStartNanos != 0 && frameNanos < MAX_FRAME_GAP_NANOS) {
+            final int frameMs = (int) (frameNanos / 1000000);
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS_MS.length && frameMs > BUCKET_LIMITS_MS[bucket]) {
+                bucket++;
+            }
+            mBuckets[bucket]++;
+            mFrameCount++;
+            if (frameMs > JANK_THRESHOLD_MS) {
+                mJankyFrameCount++;
+            }
+            mMaxFrameNanos = Math.max(mMaxFrameNanos, frameNanos);
+        }
+        mLastFrameStartNanos = nowNanos;
+    }
+
+    /**
+     * Called for the frames drawn while the view is not being tracked, so that the time since
+     * the last tracked frame is not counted as a frame.
+     */
+    void onIdleFrame() {
+        mLastFrameStartNanos = 0;
+    }
+
+    void addSectionTime(int section, long nanos) {
+        mSectionNanos[section] += nanos;
+        mMaxSectionNanos[section] = Math.max(mMaxSectionNanos[section], nanos);
+    }
+
+    void addPagesDrawn(int pages) {
+        mPagesDrawn += pages;
+        mMaxPagesDrawn = Math.max(mMaxPagesDrawn, pages);
+        mLastPagesDrawn = pages;
+    }
+
+    void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + mName + " scroll frame stats: frames=" + mFrameCount
+                + " janky=" + mJankyFrameCount + " max=" + (mMaxFrameNanos / 1000) + "us");
+        final StringBuilder sb = new StringBuilder(prefix + "  histogram:");
+        for (int i = 0; i < mBuckets.length; i++) {
+            sb.append(i < BUCKET_LIMITS_MS.length ? " <=" + BUCKET_LIMITS_MS[i]
+                    : " >" + BUCKET_LIMITS_MS[i - 1]);
+            sb.append("ms=").append(mBuckets[i]);
+        }
+        writer.println(sb.toString());
+        final long frames = Math.max(1, mFrameCount);
+        for (int i = 0; i < SECTION_COUNT; i++) {
+            writer.println(prefix + "  " + SECTION_NAMES[i] + ": avg="
+                    + (mSectionNanos[i] / frames / 1000) + "us max="
+                    + (mMaxSectionNanos[i] / 1000) + "us");
+        }
+        writer.println(prefix + "  pages drawn: avg=" + (mPagesDrawn / frames)
+                + " max=" + mMaxPagesDrawn);
+    }
+
+    /**
+     * Draws a summary of the stats at the given position.
+     */
+    void drawOverlay(Canvas canvas, float x, float y) {
+        if (mOverlayPaint == null) {
+            mOverlayPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            mOverlayPaint.setTextSize(24);
+            mOverlayPaint.setColor(0xffffff00);
+            mOverlayPaint.setShadowLayer(2, 1, 1, 0xff000000);
+        }
+        final StringBuilder sb = mOverlayText;
+        sb.setLength(0);
+        sb.append("frames ").append(mFrameCount).append(" janky ").append(mJankyFrameCount)
+                .append(" max ").append(mMaxFrameNanos / 1000000).append("ms pages ")
+                .append(mLastPagesDrawn);
+        final float lineHeight = mOverlayPaint.getFontSpacing();
+        canvas.drawText(sb, 0, sb.length(), x, y + lineHeight, mOverlayPaint);
+
+        sb.setLength(0);
+        final long frames = Math.max(1, mFrameCount);
+        for (int i = 0; i < SECTION_COUNT; i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(SECTION_NAMES[i]).append(' ').append(mSectionNanos[i] / frames / 1000)
+                    .append("us");
+        }
+        canvas.drawText(sb, 0, sb.length(), x, y + 2 * lineHeight, mOverlayPaint);
+    }
+}
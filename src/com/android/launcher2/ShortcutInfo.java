@@ -57,6 +57,13 @@ class ShortcutInfo extends ItemInfo {
      */
     private Bitmap mIcon;
 
+    /**
+     * The icon saved in the database, until it is decoded into mIcon. Loading the workspace
+     * leaves the saved icons of shortcuts undecoded, they are decoded right before the
+     * shortcuts are bound, or by getIcon() if they are needed sooner.
+     */
+    private byte[] mPendingIconData;
+
     ShortcutInfo() {
         itemType = LauncherSettings.BaseLauncherColumns.ITEM_TYPE_SHORTCUT;
     }
@@ -71,6 +78,7 @@ class ShortcutInfo extends ItemInfo {
             iconResource.resourceName = info.iconResource.resourceName;
         }
         mIcon = info.mIcon; // TODO: should make a copy here.  maybe we don't need this ctor at all
+        mPendingIconData = info.mPendingIconData;
         customIcon = info.customIcon;
     }
 
@@ -84,9 +92,43 @@ class ShortcutInfo extends ItemInfo {
 
     public void setIcon(Bitmap b) {
         mIcon = b;
+        mPendingIconData = null;
+    }
+
+    /**
+     * Sets the icon saved in the database as the icon of this shortcut, to be decoded when it is
+     * first needed.
+     */
+    void setPendingIcon(byte[] data) {
+        mIcon = null;
+        mPendingIconData = data;
+    }
+
+    boolean hasPendingIcon() {
+        return mPendingIconData != null;
+    }
+
+    /**
+     * Decodes the icon set with setPendingIcon(), if it was not decoded yet. If it can't be
+     * decoded the shortcut gets the fallback icon instead.
+     */
+    synchronized void decodePendingIcon(IconCache iconCache) {
+        if (mPendingIconData == null) {
+            return;
+        }
+        mIcon = iconCache.decodeSavedIcon(mPendingIconData);
+        mPendingIconData = null;
+        if (mIcon == null) {
+            mIcon = iconCache.createFallbackIcon();
+            customIcon = false;
+            usingFallbackIcon = true;
+        }
     }
 
     public Bitmap getIcon(IconCache iconCache) {
+        if (mPendingIconData != null) {
+            decodePendingIcon(iconCache);
+        }
         if (mIcon == null) {
             updateIcon(iconCache);
         }
@@ -95,6 +137,7 @@ class ShortcutInfo extends ItemInfo {
 
     public void updateIcon(IconCache iconCache) {
         mIcon = iconCache.getIcon(intent);
+        mPendingIconData = null;
         usingFallbackIcon = iconCache.isDefaultIcon(mIcon);
     }
 
@@ -126,10 +169,10 @@ class ShortcutInfo extends ItemInfo {
         if (customIcon) {
             values.put(LauncherSettings.BaseLauncherColumns.ICON_TYPE,
                     LauncherSettings.BaseLauncherColumns.ICON_TYPE_BITMAP);
-            writeBitmap(values, mIcon);
+            writeIcon(values);
         } else {
             if (!usingFallbackIcon) {
-                writeBitmap(values, mIcon);
+                writeIcon(values);
             }
             values.put(LauncherSettings.BaseLauncherColumns.ICON_TYPE,
                     LauncherSettings.BaseLauncherColumns.ICON_TYPE_RESOURCE);
@@ -142,6 +185,16 @@ class ShortcutInfo extends ItemInfo {
         }
     }
 
+    private void writeIcon(ContentValues values) {
+        final byte[] data = mPendingIconData;
+        if (data != null) {
+            // Still the same as the saved icon, no need to decode it just to encode it again
+            values.put(LauncherSettings.BaseLauncherColumns.ICON, data);
+        } else {
+            writeBitmap(values, mIcon);
+        }
+    }
+
     @Override
     public String toString() {
         return "ShortcutInfo(title=" + title.toString() + "intent=" + intent + "id=" + this.id
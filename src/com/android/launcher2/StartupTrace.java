@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Records named, timed spans of the loading and binding work done while the launcher starts,
+ * in a fixed size ring so that only the most recent ones are kept. The spans can be printed in
+ * Launcher.dump, or written out in the Chrome trace event format so that they can be compared
+ * across builds.
+ *
+ * Spans that are repeated for every item, like icon decoding, are recorded once with the total
+ * time spent and the number of items as their argument.
+ */
+final class StartupTrace {
+    private static final String TAG = "Launcher.StartupTrace";
+
+    static final int SPAN_PROVIDER_OPEN = 0;
+    static final int SPAN_DEFAULT_FAVORITES_PARSE = 1;
+    static final int SPAN_LOAD_WORKSPACE = 2;
+    static final int SPAN_CURSOR_ITERATION = 3;
+    static final int SPAN_ICON_DECODE = 4;
+    static final int SPAN_SORT = 5;
+    static final int SPAN_BIND_WORKSPACE = 6;
+    static final int SPAN_BIND_CHUNK = 7;
+    static final int SPAN_LOAD_ALL_APPS = 8;
+    static final int SPAN_BIND_ALL_APPS_BATCH = 9;
+    static final int SPAN_FIRST_FRAME = 10;
+    static final int SPAN_PENDING_ICON_DECODE = 11;
+
+    private static final String[] SPAN_NAMES = {
+        "provider_open",
+        "default_favorites_parse",
+        "load_workspace",
+        "cursor_iteration",
+        "icon_decode",
+        "sort",
+        "bind_workspace",
+        "bind_chunk",
+        "load_all_apps",
+        "bind_all_apps_batch",
+        "first_frame",
+        "pending_icon_decode",
+    };
+
+    private static final int CAPACITY = 512;
+
+    // All guarded by the class
+    private static final int[] sSpans = new int[CAPACITY];
+    private static final int[] sThreads = new int[CAPACITY];
+    private static final int[] sArgs = new int[CAPACITY];
+    private static final long[] sStarts = new long[CAPACITY];
+    private static final long[] sDurations = new long[CAPACITY];
+    private static int sNext;
+    private static int sCount;
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Returns the start time to pass to {@link #end}.
+     */
+    static long begin() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a span that started at the given time, as returned by {@link #begin}, and ends
+     * now. arg is a span specific count, such as the number of items bound.
+     */
+    static void end(int span, long startNanos, int arg) {
+        record(span, startNanos, System.nanoTime() - startNanos, arg);
+    }
+
+    static synchronized void record(int span, long startNanos, long durationNanos, int arg) {
+        final int i = sNext;
+        sSpans[i] = span;
+        sThreads[i] = Process.myTid();
+        sArgs[i] = arg;
+        sStarts[i] = startNanos;
+        sDurations[i] = durationNanos;
+        sNext = (i + 1) % CAPACITY;
+        if (sCount < CAPACITY) {
+            sCount++;
+        }
+    }
+
+    /**
+     * Prints the recorded spans, oldest first, with their start relative to the oldest one.
+     */
+    static synchronized void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "Startup trace (" + sCount + " spans):");
+        final int first = (sNext - sCount + CAPACITY) % CAPACITY;
+        final long origin = sStarts[first];
+        for (int n = 0; n < sCount; n++) {
+            final int i = (first + n) % CAPACITY;
+            writer.println(prefix + "  " + SPAN_NAMES[sSpans[i]]
+                    + " start=" + formatMillis(sStarts[i] - origin)
+                    + "ms dur=" + formatMillis(sDurations[i])
+                    + "ms arg=" + sArgs[i] + " tid=" + sThreads[i]);
+        }
+    }
+
+    /**
+     * Writes the recorded spans to the given file as a Chrome trace event file. Returns whether
+     * the file could be written.
+     */
+    static boolean writeTraceFile(File file) {
+        final StringBuilder sb = new StringBuilder();
+        synchronized (StartupTrace.class) {
+            final int pid = Process.myPid();
+            final int first = (sNext - sCount + CAPACITY) % CAPACITY;
+            sb.append("{\"traceEvents\":[");
+            for (int n = 0; n < sCount; n++) {
+                final int i = (first + n) % CAPACITY;
+                if (n > 0) {
+                    sb.append(',');
+                }
+                sb.append("\n{\"name\":\"").append(SPAN_NAMES[sSpans[i]])
+                        .append("\",\"ph\":\"X\",\"pid\":").append(pid)
+                        .append(",\"tid\":").append(sThreads[i])
+                        .append(",\"ts\":").append(sStarts[i] / 1000)
+                        .append(",\"dur\":").append(sDurations[i] / 1000)
+                        .append(",\"args\":{\"count\":").append(sArgs[i]).append("}}");
+            }
+            sb.append("\n]}\n");
+        }
+
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(file);
+            writer.write(sb.toString());
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write startup trace to " + file, e);
+            return false;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private static String formatMillis(long nanos) {
+        final long micros = nanos / 1000;
+        final long fraction = micros % 1000;
+        return (micros / 1000) + "." + (fraction < 10 ? "00" : fraction < 100 ? "0" : "")
+                + fraction;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.app.WallpaperManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.view.Choreographer;
+
+import java.io.PrintWriter;
+
+/**
+ * Sends the wallpaper offsets computed by the workspace to the window manager. Offsets set on
+ * the UI thread are coalesced into at most one update per frame, updates that would move the
+ * wallpaper by less than a pixel are held back until flush(), and the binder call itself is made
+ * from a background thread so that it never holds up drawing.
+ */
+class WallpaperOffsetPublisher implements Choreographer.FrameCallback {
+    private static HandlerThread sThread;
+    private static Handler sHandler;
+
+    private final WallpaperManager mWallpaperManager;
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+
+    // UI thread state
+    private IBinder mPendingToken;
+    private float mPendingX;
+    private float mPendingY;
+    private boolean mFramePending;
+    private boolean mFlushPending;
+    // The last offsets that were held back for moving the wallpaper by less than a pixel
+    private IBinder mHeldToken;
+    private float mHeldX;
+    private float mHeldY;
+    private IBinder mLastToken;
+    private float mLastX = Float.NaN;
+    private float mLastY = Float.NaN;
+    private int mRangeX = 1;
+    private int mRangeY = 1;
+
+    // Handed to the background thread, guarded by mLock
+    private final Object mLock = new Object();
+    private IBinder mSendToken;
+    private float mSendX;
+    private float mSendY;
+    private boolean mSendPending;
+
+    // mIssuedCount is guarded by mLock, the others are only used on the UI thread
+    private int mIssuedCount;
+    private int mCoalescedCount;
+    private int mSuppressedCount;
+
+    private final Runnable mSendRunnable = new Runnable() {
+        public void run() {
+            final IBinder token;
+            final float x;
+            final float y;
+            synchronized (mLock) {
+                token = mSendToken;
+                x = mSendX;
+                y = mSendY;
+                mSendPending = false;
+                mIssuedCount++;
+            }
+            mWallpaperManager.setWallpaperOffsets(token, x, y);
+        }
+    };
+
+    WallpaperOffsetPublisher(WallpaperManager wallpaperManager) {
+        mWallpaperManager = wallpaperManager;
+        synchronized (WallpaperOffsetPublisher.class) {
+            if (sThread == null) {
+                sThread = new HandlerThread("launcher-wallpaper");
+                sThread.start();
+                sHandler = new Handler(sThread.getLooper());
+            }
+        }
+    }
+
+    /**
+     * Sets how many pixels the wallpaper moves when its offsets go from 0 to 1, which is used to
+     * tell whether a change is large enough to be sent.
+     */
+    void setPixelRange(int rangeX, int rangeY) {
+        mRangeX = Math.max(1, rangeX);
+        mRangeY = Math.max(1, rangeY);
+    }
+
+    /**
+     * Queues the offsets to be sent at the next frame, replacing any that were not sent yet.
+     */
+    void setOffsets(IBinder windowToken, float x, float y) {
+        mPendingToken = windowToken;
+        mPendingX = x;
+        mPendingY = y;
+        if (mFramePending) {
+            mCoalescedCount++;
+        } else {
+            mFramePending = true;
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Sends the last offsets that were set, even if they move the wallpaper by less than a pixel
+     * from the last ones sent. Called once scrolling settles, so that the wallpaper ends up
+     * exactly where it should be.
+     */
+    void flush() {
+        if (mFramePending) {
+            // Let the next frame send what is pending, whatever its distance
+            mFlushPending = true;
+        } else if (mHeldToken != null) {
+            send(mHeldToken, mHeldX, mHeldY);
+        }
+    }
+
+    public void doFrame(long frameTimeNanos) {
+        mFramePending = false;
+        final boolean flush = mFlushPending;
+        mFlushPending = false;
+        final IBinder token = mPendingToken;
+        mPendingToken = null;
+        if (token == null) {
+            if (flush && mHeldToken != null) {
+                send(mHeldToken, mHeldX, mHeldY);
+            }
+            return;
+        }
+        if (!flush && token == mLastToken && Math.abs(mPendingX - mLastX) * mRangeX < 1f
+                && Math.abs(mPendingY - mLastY) * mRangeY < 1f) {
+            mSuppressedCount++;
+            mHeldToken = token;
+            mHeldX = mPendingX;
+            mHeldY = mPendingY;
+            return;
+        }
+        send(token, mPendingX, mPendingY);
+    }
+
+    private void send(IBinder token, float x, float y) {
+        mHeldToken = null;
+        mLastToken = token;
+        mLastX = x;
+        mLastY = y;
+
+        synchronized (mLock) {
+            mSendToken = token;
+            mSendX = x;
+            mSendY = y;
+            if (mSendPending) {
+                // The last update has not been sent yet, it will pick up these values instead
+                mCoalescedCount++;
+                return;
+            }
+            mSendPending = true;
+        }
+        sHandler.post(mSendRunnable);
+    }
+
+    /**
+     * Drops the offsets that were not sent yet and forgets the last ones sent, so that the next
+     * ones are sent even if they are the same.
+     */
+    void reset() {
+        mPendingToken = null;
+        mHeldToken = null;
+        mFlushPending = false;
+        mLastToken = null;
+        mLastX = Float.NaN;
+        mLastY = Float.NaN;
+    }
+
+    void dump(String prefix, PrintWriter writer) {
+        final int issued;
+        synchronized (mLock) {
+            issued = mIssuedCount;
+        }
+        writer.println(prefix + "Wallpaper offsets: issued=" + issued
+                + " coalesced=" + mCoalescedCount + " suppressed=" + mSuppressedCount);
+    }
+}
@@ -1,6 +1,7 @@
 package com.android.launcher2;
 
 import android.appwidget.AppWidgetProviderInfo;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
@@ -34,6 +35,7 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 
 abstract class SoftReferenceThreadLocal<T> {
     private ThreadLocal<SoftReference<T>> mThreadLocal;
@@ -100,7 +102,7 @@ class BitmapFactoryOptionsCache extends SoftReferenceThreadLocal<BitmapFactory.O
     }
 }
 
-public class WidgetPreviewLoader {
+public class WidgetPreviewLoader implements MemoryPressureCoordinator.Cache {
     static final String TAG = "WidgetPreviewLoader";
 
     private int mPreviewBitmapWidth;
@@ -254,6 +256,47 @@ public class WidgetPreviewLoader {
         }
     }
 
+    public long getSizeBytes() {
+        long bytes = 0;
+        synchronized (mLoadedPreviews) {
+            for (WeakReference<Bitmap> ref : mLoadedPreviews.values()) {
+                final Bitmap b = ref.get();
+                if (b != null) {
+                    bytes += b.getByteCount();
+                }
+            }
+        }
+        synchronized (mUnusedBitmaps) {
+            for (SoftReference<Bitmap> ref : mUnusedBitmaps) {
+                final Bitmap b = ref.get();
+                if (b != null) {
+                    bytes += b.getByteCount();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Drops the bitmaps kept for reuse, and the entries of previews that are gone. The loaded
+     * previews themselves are held by the widget pages, see AppsCustomizeTabHost.onTrimMemory().
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            synchronized (mUnusedBitmaps) {
+                mUnusedBitmaps.clear();
+            }
+            synchronized (mLoadedPreviews) {
+                final Iterator<WeakReference<Bitmap>> iter = mLoadedPreviews.values().iterator();
+                while (iter.hasNext()) {
+                    if (iter.next().get() == null) {
+                        iter.remove();
+                    }
+                }
+            }
+        }
+    }
+
     static class CacheDb extends SQLiteOpenHelper {
         final static int DB_VERSION = 2;
         final static String DB_NAME = "widgetpreviews.db";
@@ -56,10 +56,13 @@ import com.android.launcher.R;
 import com.android.launcher2.FolderIcon.FolderRingAnimator;
 import com.android.launcher2.LauncherSettings.Favorites;
 
+import java.io.PrintWriter;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -69,7 +72,8 @@ import java.util.Set;
  */
 public class Workspace extends SmoothPagedView
         implements DropTarget, DragSource, DragScroller, View.OnTouchListener,
-        DragController.DragListener, LauncherTransitionable, ViewGroup.OnHierarchyChangeListener {
+        DragController.DragListener, LauncherTransitionable, ViewGroup.OnHierarchyChangeListener,
+        HardwareLayerManager.Client {
     private static final String TAG = "Launcher.Workspace";
 
     // Y rotation to apply to the workspace screens
@@ -181,6 +185,8 @@ public class Workspace extends SmoothPagedView
     int mWallpaperWidth;
     int mWallpaperHeight;
     WallpaperOffsetInterpolator mWallpaperOffset;
+    private final WallpaperOffsetPublisher mWallpaperOffsetPublisher;
+    private boolean mWallpaperOffsetMoving;
     boolean mUpdateWallpaperOffsetImmediately = false;
     private Runnable mDelayedResizeRunnable;
     private Runnable mDelayedSnapToPageRunnable;
@@ -290,6 +296,7 @@ public class Workspace extends SmoothPagedView
         mWorkspaceFadeInAdjacentScreens = res.getBoolean(R.bool.config_workspaceFadeAdjacentScreens);
         mFadeInAdjacentScreens = false;
         mWallpaperManager = WallpaperManager.getInstance(context);
+        mWallpaperOffsetPublisher = new WallpaperOffsetPublisher(mWallpaperManager);
 
         int cellCountX = DEFAULT_CELL_COUNT_X;
         int cellCountY = DEFAULT_CELL_COUNT_Y;
@@ -760,6 +767,7 @@ public class Workspace extends SmoothPagedView
 
     protected void onPageEndMoving() {
         super.onPageEndMoving();
+        mWallpaperOffsetPublisher.flush();
 
         if (isHardwareAccelerated()) {
             updateChildrenLayersEnabled(false);
@@ -838,7 +846,10 @@ public class Workspace extends SmoothPagedView
     protected void setWallpaperDimension() {
         Point minDims = new Point();
         Point maxDims = new Point();
-        mLauncher.getWindowManager().getDefaultDisplay().getCurrentSizeRange(minDims, maxDims);
+        Point displaySize = new Point();
+        final Display display = mLauncher.getWindowManager().getDefaultDisplay();
+        display.getCurrentSizeRange(minDims, maxDims);
+        display.getSize(displaySize);
 
         final int maxDim = Math.max(maxDims.x, maxDims.y);
         final int minDim = Math.min(minDims.x, minDims.y);
@@ -852,6 +863,9 @@ public class Workspace extends SmoothPagedView
             mWallpaperWidth = Math.max((int) (minDim * WALLPAPER_SCREENS_SPAN), maxDim);
             mWallpaperHeight = maxDim;
         }
+        // The offsets only move the part of the wallpaper that does not fit on the display
+        mWallpaperOffsetPublisher.setPixelRange(mWallpaperWidth - displaySize.x,
+                mWallpaperHeight - displaySize.y);
         new Thread("setWallpaperDimension") {
             public void run() {
                 mWallpaperManager.suggestDesiredDimensions(mWallpaperWidth, mWallpaperHeight);
@@ -917,10 +931,16 @@ public class Workspace extends SmoothPagedView
         }
         if (updateNow) {
             if (mWindowToken != null) {
-                mWallpaperManager.setWallpaperOffsets(mWindowToken,
+                mWallpaperOffsetPublisher.setOffsets(mWindowToken,
                         mWallpaperOffset.getCurrX(), mWallpaperOffset.getCurrY());
             }
         }
+        if (!keepUpdating && (updateNow || mWallpaperOffsetMoving)) {
+            // The wallpaper jumped to or caught up with the workspace, send its final offsets
+            // even if they are within a pixel of the last ones sent
+            mWallpaperOffsetPublisher.flush();
+        }
+        mWallpaperOffsetMoving = keepUpdating;
         if (keepUpdating) {
             invalidate();
         }
@@ -1219,7 +1239,14 @@ public class Workspace extends SmoothPagedView
         super.screenScrolled(screenCenter);
 
         updatePageAlphaValues(screenCenter);
-        enableHwLayersOnVisiblePages();
+        if (mFrameStats != null && isTrackingFrameStats()) {
+            final long start = System.nanoTime();
+            enableHwLayersOnVisiblePages();
+            mFrameStats.addSectionTime(ScrollFrameStats.SECTION_HW_LAYERS,
+                    System.nanoTime() - start);
+        } else {
+            enableHwLayersOnVisiblePages();
+        }
 
         if (mOverScrollX < 0 || mOverScrollX > mMaxScrollX) {
             int index = 0;
@@ -1267,6 +1294,11 @@ public class Workspace extends SmoothPagedView
         acceleratedOverScroll(amount);
     }
 
+    @Override
+    protected boolean isTrackingFrameStats() {
+        return super.isTrackingFrameStats() || mIsSwitchingState;
+    }
+
     protected void onAttachedToWindow() {
         super.onAttachedToWindow();
         mWindowToken = getWindowToken();
@@ -1277,6 +1309,11 @@ public class Workspace extends SmoothPagedView
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
         mWindowToken = null;
+        mWallpaperOffsetPublisher.reset();
+    }
+
+    void dumpWallpaperOffsetStats(String prefix, PrintWriter writer) {
+        mWallpaperOffsetPublisher.dump(prefix, writer);
     }
 
     @Override
@@ -1289,7 +1326,14 @@ public class Workspace extends SmoothPagedView
 
     @Override
     protected void onDraw(Canvas canvas) {
-        updateWallpaperOffsets();
+        if (mFrameStats != null && isTrackingFrameStats()) {
+            final long start = System.nanoTime();
+            updateWallpaperOffsets();
+            mFrameStats.addSectionTime(ScrollFrameStats.SECTION_WALLPAPER_OFFSETS,
+                    System.nanoTime() - start);
+        } else {
+            updateWallpaperOffsets();
+        }
 
         // Draw the background gradient if necessary
         if (mBackground != null && mBackgroundAlpha > 0.0f && mDrawBackground) {
@@ -1388,10 +1432,7 @@ public class Workspace extends SmoothPagedView
             if (mChildrenLayersEnabled) {
                 enableHwLayersOnVisiblePages();
             } else {
-                for (int i = 0; i < getPageCount(); i++) {
-                    final CellLayout cl = (CellLayout) getChildAt(i);
-                    cl.disableHardwareLayers();
-                }
+                mLauncher.getHardwareLayerManager().releaseLayers(this);
             }
         }
     }
@@ -1410,16 +1451,33 @@ public class Workspace extends SmoothPagedView
                     leftScreen--;
                 }
             }
-            for (int i = 0; i < screenCount; i++) {
-                final CellLayout layout = (CellLayout) getPageAt(i);
-                if (!(leftScreen <= i && i <= rightScreen && shouldDrawChild(layout))) {
-                    layout.disableHardwareLayers();
-                }
-            }
-            for (int i = 0; i < screenCount; i++) {
+            final int count = collectLayerPages(leftScreen, rightScreen, -1);
+            mLauncher.getHardwareLayerManager().updateLayers(this, mLayerPages, count);
+        }
+    }
+
+    @Override
+    public void setPageLayerEnabled(View page, boolean enabled) {
+        if (enabled) {
+            ((CellLayout) page).enableHardwareLayers();
+        } else {
+            ((CellLayout) page).disableHardwareLayers();
+        }
+    }
+
+    @Override
+    protected void onFlingPrefetch(int targetPage, int firstPage, int lastPage) {
+        // Have the layers of the pages that the fling passes built before they scroll into view,
+        // they are kept by enableHwLayersOnVisiblePages() until the pages stop moving. Only the
+        // pages that the layer manager gave a layer to are built, so this is bounded by its
+        // budget however far the fling goes.
+        if (mChildrenLayersEnabled && getWindowToken() != null) {
+            enableHwLayersOnVisiblePages();
+            final HardwareLayerManager layers = mLauncher.getHardwareLayerManager();
+            for (int i = firstPage; i <= lastPage; i++) {
                 final CellLayout layout = (CellLayout) getPageAt(i);
-                if (leftScreen <= i && i <= rightScreen && shouldDrawChild(layout)) {
-                    layout.enableHardwareLayers();
+                if (layout != null && layers.hasLayer(this, layout)) {
+                    layout.buildHardwareLayer();
                 }
             }
         }
@@ -1536,6 +1594,20 @@ public class Workspace extends SmoothPagedView
                 size[1], clipAlpha);
     }
 
+    /**
+     * Returns the number of bytes held by the drag outline. It outlives drags that were started
+     * from outside of the workspace, since those are not completed here.
+     */
+    long getDragOutlineBytes() {
+        return mDragOutline != null ? mDragOutline.getByteCount() : 0;
+    }
+
+    void releaseDragOutline() {
+        if (!mDragController.isDragging()) {
+            mDragOutline = null;
+        }
+    }
+
     public void exitWidgetResizeMode() {
         DragLayer dragLayer = mLauncher.getDragLayer();
         dragLayer.clearAllResizeFrames();
@@ -3591,6 +3663,24 @@ public class Workspace extends SmoothPagedView
         return childrenLayouts;
     }
 
+    /**
+     * Drops the content views of every closed folder; they are recreated when a folder is
+     * next opened.
+     */
+    void unbindClosedFolderViews() {
+        ArrayList<ShortcutAndWidgetContainer> childrenLayouts =
+                getAllShortcutAndWidgetContainers();
+        for (ShortcutAndWidgetContainer layout: childrenLayouts) {
+            int count = layout.getChildCount();
+            for (int i = 0; i < count; i++) {
+                View child = layout.getChildAt(i);
+                if (child instanceof FolderIcon) {
+                    ((FolderIcon) child).getFolder().unbindViewsIfClosed();
+                }
+            }
+        }
+    }
+
     public Folder getFolderForTag(Object tag) {
         ArrayList<ShortcutAndWidgetContainer> childrenLayouts =
                 getAllShortcutAndWidgetContainers();
@@ -3642,40 +3732,12 @@ public class Workspace extends SmoothPagedView
     // has been removed and we want to remove all components (widgets, shortcuts, apps) that
     // belong to that package.
     void removeItemsByPackageName(final ArrayList<String> packages) {
-        HashSet<String> packageNames = new HashSet<String>();
-        packageNames.addAll(packages);
-
         // Just create a hash table of all the specific components that this will affect
+        final ModelSnapshot model = LauncherModel.getModelSnapshot();
         HashSet<ComponentName> cns = new HashSet<ComponentName>();
-        ArrayList<CellLayout> cellLayouts = getWorkspaceAndHotseatCellLayouts();
-        for (CellLayout layoutParent : cellLayouts) {
-            ViewGroup layout = layoutParent.getShortcutsAndWidgets();
-            int childCount = layout.getChildCount();
-            for (int i = 0; i < childCount; ++i) {
-                View view = layout.getChildAt(i);
-                Object tag = view.getTag();
-
-                if (tag instanceof ShortcutInfo) {
-                    ShortcutInfo info = (ShortcutInfo) tag;
-                    ComponentName cn = info.intent.getComponent();
-                    if ((cn != null) && packageNames.contains(cn.getPackageName())) {
-                        cns.add(cn);
-                    }
-                } else if (tag instanceof FolderInfo) {
-                    FolderInfo info = (FolderInfo) tag;
-                    for (ShortcutInfo s : info.contents) {
-                        ComponentName cn = s.intent.getComponent();
-                        if ((cn != null) && packageNames.contains(cn.getPackageName())) {
-                            cns.add(cn);
-                        }
-                    }
-                } else if (tag instanceof LauncherAppWidgetInfo) {
-                    LauncherAppWidgetInfo info = (LauncherAppWidgetInfo) tag;
-                    ComponentName cn = info.providerName;
-                    if ((cn != null) && packageNames.contains(cn.getPackageName())) {
-                        cns.add(cn);
-                    }
-                }
+        for (String packageName : packages) {
+            for (ItemInfo info : model.getItemsForPackage(packageName)) {
+                cns.add(ModelSnapshot.getComponent(info));
             }
         }
 
@@ -3698,78 +3760,51 @@ public class Workspace extends SmoothPagedView
     }
 
     void removeItemsByComponentName(final HashSet<ComponentName> componentNames) {
-        ArrayList<CellLayout> cellLayouts = getWorkspaceAndHotseatCellLayouts();
-        for (final CellLayout layoutParent: cellLayouts) {
-            final ViewGroup layout = layoutParent.getShortcutsAndWidgets();
+        // Only the items of the components are looked at, however many items there are
+        final ModelSnapshot model = LauncherModel.getModelSnapshot();
+        final ArrayList<ItemInfo> items = new ArrayList<ItemInfo>();
+        for (ComponentName cn : componentNames) {
+            items.addAll(model.getItemsForComponent(cn));
+        }
 
-            // Avoid ANRs by treating each screen separately
+        if (!items.isEmpty()) {
             post(new Runnable() {
                 public void run() {
-                    final ArrayList<View> childrenToRemove = new ArrayList<View>();
-                    childrenToRemove.clear();
-
-                    int childCount = layout.getChildCount();
-                    for (int j = 0; j < childCount; j++) {
-                        final View view = layout.getChildAt(j);
-                        Object tag = view.getTag();
-
-                        if (tag instanceof ShortcutInfo) {
-                            final ShortcutInfo info = (ShortcutInfo) tag;
-                            final Intent intent = info.intent;
-                            final ComponentName name = intent.getComponent();
-
-                            if (name != null) {
-                                if (componentNames.contains(name)) {
-                                    LauncherModel.deleteItemFromDatabase(mLauncher, info);
-                                    childrenToRemove.add(view);
+                    final HashSet<CellLayout> changedLayouts = new HashSet<CellLayout>();
+                    for (ItemInfo item : items) {
+                        if (item.container == LauncherSettings.Favorites.CONTAINER_DESKTOP ||
+                                item.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
+                            final View child = findViewForItem(item);
+                            if (child == null) {
+                                // Either already removed, or not bound yet after a reload, in
+                                // which case only the model has it
+                                if (LauncherModel.getModelSnapshot().itemsIdMap.get(item.id)
+                                        == item) {
+                                    LauncherModel.deleteItemFromDatabase(mLauncher, item);
                                 }
+                                continue;
                             }
-                        } else if (tag instanceof FolderInfo) {
-                            final FolderInfo info = (FolderInfo) tag;
-                            final ArrayList<ShortcutInfo> contents = info.contents;
-                            final int contentsCount = contents.size();
-                            final ArrayList<ShortcutInfo> appsToRemoveFromFolder =
-                                    new ArrayList<ShortcutInfo>();
-
-                            for (int k = 0; k < contentsCount; k++) {
-                                final ShortcutInfo appInfo = contents.get(k);
-                                final Intent intent = appInfo.intent;
-                                final ComponentName name = intent.getComponent();
-
-                                if (name != null) {
-                                    if (componentNames.contains(name)) {
-                                        appsToRemoveFromFolder.add(appInfo);
-                                    }
-                                }
+                            final CellLayout layoutParent =
+                                    (CellLayout) child.getParent().getParent();
+                            LauncherModel.deleteItemFromDatabase(mLauncher, item);
+                            // Note: We can not remove the view directly from CellLayoutChildren
+                            // as this does not re-mark the spaces as unoccupied.
+                            layoutParent.removeViewInLayout(child);
+                            if (child instanceof DropTarget) {
+                                mDragController.removeDropTarget((DropTarget) child);
                             }
-                            for (ShortcutInfo item: appsToRemoveFromFolder) {
-                                info.remove(item);
+                            changedLayouts.add(layoutParent);
+                        } else {
+                            final FolderInfo folder = model.folders.get(item.container);
+                            if (folder != null && folder.contents.contains(item)) {
+                                folder.remove((ShortcutInfo) item);
                                 LauncherModel.deleteItemFromDatabase(mLauncher, item);
                             }
-                        } else if (tag instanceof LauncherAppWidgetInfo) {
-                            final LauncherAppWidgetInfo info = (LauncherAppWidgetInfo) tag;
-                            final ComponentName provider = info.providerName;
-                            if (provider != null) {
-                                if (componentNames.contains(provider)) {
-                                    LauncherModel.deleteItemFromDatabase(mLauncher, info);
-                                    childrenToRemove.add(view);
-                                }
-                            }
                         }
                     }
 
-                    childCount = childrenToRemove.size();
-                    for (int j = 0; j < childCount; j++) {
-                        View child = childrenToRemove.get(j);
-                        // Note: We can not remove the view directly from CellLayoutChildren as this
-                        // does not re-mark the spaces as unoccupied.
-                        layoutParent.removeViewInLayout(child);
-                        if (child instanceof DropTarget) {
-                            mDragController.removeDropTarget((DropTarget)child);
-                        }
-                    }
-
-                    if (childCount > 0) {
+                    for (CellLayout layoutParent : changedLayouts) {
+                        final ViewGroup layout = layoutParent.getShortcutsAndWidgets();
                         layout.requestLayout();
                         layout.invalidate();
                     }
@@ -3815,36 +3850,134 @@ public class Workspace extends SmoothPagedView
         });
     }
 
+    /**
+     * Returns the view of an item that is on the workspace or in the hotseat, or null if it is
+     * not there.
+     */
+    private View findViewForItem(ItemInfo item) {
+        final CellLayout layout;
+        if (item.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
+            if (mLauncher.getHotseat() == null) {
+                return null;
+            }
+            layout = mLauncher.getHotseat().getLayout();
+        } else if (item.container == LauncherSettings.Favorites.CONTAINER_DESKTOP &&
+                item.screen >= 0 && item.screen < getChildCount()) {
+            layout = (CellLayout) getChildAt(item.screen);
+        } else {
+            return null;
+        }
+
+        final View view = layout.getChildAt(item.cellX, item.cellY);
+        if (view != null && isViewForItem(view, item)) {
+            return view;
+        }
+        // The cell of a hotseat item is not kept in the item, so look through the layout
+        final ShortcutAndWidgetContainer children = layout.getShortcutsAndWidgets();
+        final int childCount = children.getChildCount();
+        for (int i = 0; i < childCount; i++) {
+            final View child = children.getChildAt(i);
+            if (isViewForItem(child, item)) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether the view shows the given item. After the model is reloaded, and until the
+     * workspace is bound again, the views still hold the ItemInfos of the previous load, so those
+     * are matched by id.
+     */
+    private static boolean isViewForItem(View view, ItemInfo item) {
+        final Object tag = view.getTag();
+        return tag == item || (tag instanceof ItemInfo && ((ItemInfo) tag).id == item.id);
+    }
+
     void updateShortcuts(ArrayList<ApplicationInfo> apps) {
-        ArrayList<ShortcutAndWidgetContainer> childrenLayouts = getAllShortcutAndWidgetContainers();
-        for (ShortcutAndWidgetContainer layout: childrenLayouts) {
-            int childCount = layout.getChildCount();
-            for (int j = 0; j < childCount; j++) {
-                final View view = layout.getChildAt(j);
-                Object tag = view.getTag();
-                if (tag instanceof ShortcutInfo) {
-                    ShortcutInfo info = (ShortcutInfo) tag;
-                    // We need to check for ACTION_MAIN otherwise getComponent() might
-                    // return null for some shortcuts (for instance, for shortcuts to
-                    // web pages.)
-                    final Intent intent = info.intent;
-                    final ComponentName name = intent.getComponent();
-                    if (info.itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION &&
-                            Intent.ACTION_MAIN.equals(intent.getAction()) && name != null) {
-                        final int appCount = apps.size();
-                        for (int k = 0; k < appCount; k++) {
-                            ApplicationInfo app = apps.get(k);
-                            if (app.componentName.equals(name)) {
-                                BubbleTextView shortcut = (BubbleTextView) view;
-                                info.updateIcon(mIconCache);
-                                info.title = app.title.toString();
-                                shortcut.applyFromShortcutInfo(info, mIconCache);
-                            }
+        final ModelSnapshot model = LauncherModel.getModelSnapshot();
+        final HashMap<FolderInfo, HashSet<ShortcutInfo>> folderItems =
+                new HashMap<FolderInfo, HashSet<ShortcutInfo>>();
+        final int appCount = apps.size();
+        for (int k = 0; k < appCount; k++) {
+            final ApplicationInfo app = apps.get(k);
+            for (ItemInfo item : model.getItemsForComponent(app.componentName)) {
+                // We need to check for ACTION_MAIN, since shortcuts to other activities of
+                // the app are not updated
+                if (!(item instanceof ShortcutInfo) ||
+                        item.itemType != LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
+                    continue;
+                }
+                final ShortcutInfo info = (ShortcutInfo) item;
+                if (!Intent.ACTION_MAIN.equals(info.intent.getAction())) {
+                    continue;
+                }
+                final View view = findViewForItem(info);
+                if (view instanceof BubbleTextView) {
+                    BubbleTextView shortcut = (BubbleTextView) view;
+                    info.updateIcon(mIconCache);
+                    info.title = app.title.toString();
+                    shortcut.applyFromShortcutInfo(info, mIconCache);
+                } else if (view == null) {
+                    final FolderInfo folder = model.folders.get(info.container);
+                    if (folder != null && folder.contents.contains(info)) {
+                        info.updateIcon(mIconCache);
+                        info.title = app.title.toString();
+                        HashSet<ShortcutInfo> items = folderItems.get(folder);
+                        if (items == null) {
+                            items = new HashSet<ShortcutInfo>();
+                            folderItems.put(folder, items);
                         }
+                        items.add(info);
                     }
                 }
             }
         }
+
+        // The previews of the folders draw the icons of their items, so they are redrawn too
+        for (Map.Entry<FolderInfo, HashSet<ShortcutInfo>> entry : folderItems.entrySet()) {
+            final View view = findViewForItem(entry.getKey());
+            if (view instanceof FolderIcon) {
+                final FolderIcon folderIcon = (FolderIcon) view;
+                final Folder folder = folderIcon.getFolder();
+                if (folder != null) {
+                    folder.updateItemIcons(entry.getValue());
+                }
+                folderIcon.invalidatePreview();
+            }
+        }
+    }
+
+    /**
+     * Updates the text of the views of the given shortcuts, including those in folders, whose
+     * titles have changed.
+     */
+    void updateShortcutTitles(HashSet<ShortcutInfo> shortcuts) {
+        final ModelSnapshot model = LauncherModel.getModelSnapshot();
+        final HashSet<FolderInfo> folders = new HashSet<FolderInfo>();
+        for (ShortcutInfo info : shortcuts) {
+            if (info.container == LauncherSettings.Favorites.CONTAINER_DESKTOP ||
+                    info.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
+                final View view = findViewForItem(info);
+                if (view instanceof BubbleTextView) {
+                    ((BubbleTextView) view).setText(info.title);
+                }
+            } else {
+                final FolderInfo folder = model.folders.get(info.container);
+                if (folder != null) {
+                    folders.add(folder);
+                }
+            }
+        }
+        for (FolderInfo folderInfo : folders) {
+            final View view = findViewForItem(folderInfo);
+            if (view instanceof FolderIcon) {
+                final Folder folder = ((FolderIcon) view).getFolder();
+                if (folder != null) {
+                    folder.updateItemTitles(shortcuts);
+                }
+            }
+        }
     }
 
     void moveToDefaultScreen(boolean animate) {
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The positions of a list of items, with one array per field and one row per item, so that the
+ * items on a screen can be picked out and sorted by scanning arrays rather than the ItemInfos.
+ *
+ * The rows are in the order of the list that they were built from, and rows are passed around as
+ * int arrays of row numbers. The columns are never changed once built, so they can be read from
+ * any thread. When an item moves, a copy with its new position is made, see {@link #update}.
+ */
+final class WorkspaceColumns<T extends ItemInfo> {
+    // The row number is kept in the low bits of the sort keys, see sortSpatially()
+    private static final int ROW_BITS = 20;
+    private static final long ROW_MASK = (1L << ROW_BITS) - 1;
+
+    private final Object[] mItems;
+    final int size;
+    final long[] ids;
+    final long[] containers;
+    final int[] screens;
+    final int[] cellX;
+    final int[] cellY;
+    final int[] spanX;
+    final int[] spanY;
+
+    // The ids in ascending order, and the row of each, so that indexOf() is a binary search.
+    // Shared with the copies made by update(), since the rows never change.
+    private final long[] mSortedIds;
+    private final int[] mSortedRows;
+
+    /**
+     * Builds the columns of the given items, leaving out any nulls.
+     */
+    WorkspaceColumns(List<? extends T> items) {
+        int count = 0;
+        mItems = new Object[items.size()];
+        for (T item : items) {
+            if (item != null) {
+                mItems[count++] = item;
+            }
+        }
+        if (count > ROW_MASK) {
+            throw new IllegalArgumentException("Too many items: " + count);
+        }
+        size = count;
+        ids = new long[count];
+        containers = new long[count];
+        screens = new int[count];
+        cellX = new int[count];
+        cellY = new int[count];
+        spanX = new int[count];
+        spanY = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = ((ItemInfo) mItems[i]).id;
+            copyPosition(i);
+        }
+        mSortedIds = ids.clone();
+        Arrays.sort(mSortedIds);
+        mSortedRows = new int[count];
+        Arrays.fill(mSortedRows, -1);
+        for (int i = 0; i < count; i++) {
+            int j = Arrays.binarySearch(mSortedIds, ids[i]);
+            // Ids should be unique, but an item added twice must not leave a place without a row
+            while (j > 0 && mSortedIds[j - 1] == ids[i]) j--;
+            while (mSortedRows[j] >= 0) j++;
+            mSortedRows[j] = i;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    T getItem(int row) {
+        return (T) mItems[row];
+    }
+
+    /**
+     * Returns the row of the item with the given id, or -1 if it does not have one.
+     */
+    int indexOf(long id) {
+        final int i = Arrays.binarySearch(mSortedIds, id);
+        return i >= 0 ? mSortedRows[i] : -1;
+    }
+
+    private WorkspaceColumns(WorkspaceColumns<T> columns) {
+        mItems = columns.mItems;
+        size = columns.size;
+        ids = columns.ids;
+        mSortedIds = columns.mSortedIds;
+        mSortedRows = columns.mSortedRows;
+        containers = columns.containers.clone();
+        screens = columns.screens.clone();
+        cellX = columns.cellX.clone();
+        cellY = columns.cellY.clone();
+        spanX = columns.spanX.clone();
+        spanY = columns.spanY.clone();
+    }
+
+    /**
+     * Returns a copy of these columns with the current position of the given item in its row,
+     * or these columns if the item does not have a row.
+     */
+    WorkspaceColumns<T> update(ItemInfo item) {
+        final int row = indexOf(item.id);
+        if (row < 0 || mItems[row] != item) {
+            return this;
+        }
+        final WorkspaceColumns<T> columns = new WorkspaceColumns<T>(this);
+        columns.copyPosition(row);
+        return columns;
+    }
+
+    private void copyPosition(int row) {
+        final ItemInfo item = (ItemInfo) mItems[row];
+        containers[row] = item.container;
+        screens[row] = item.screen;
+        cellX[row] = item.cellX;
+        cellY[row] = item.cellY;
+        spanX[row] = item.spanX;
+        spanY[row] = item.spanY;
+    }
+
+    /**
+     * Fills rows with the rows of the items that are on the given screen first, followed by the
+     * rows of all of the other items, and returns how many are on the screen. Items in the
+     * hotseat count as on every screen, and items in a container count as on the screen of the
+     * container. If the screen is negative, all of the items count as on it.
+     */
+    int partitionByScreen(int screen, int[] rows) {
+        final boolean[] onScreen = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            final long container = containers[i];
+            onScreen[i] = screen < 0
+                    || container == LauncherSettings.Favorites.CONTAINER_HOTSEAT
+                    || (container == LauncherSettings.Favorites.CONTAINER_DESKTOP
+                            && screens[i] == screen);
+        }
+        if (screen >= 0) {
+            for (int i = 0; i < size; i++) {
+                final long container = containers[i];
+                if (container != LauncherSettings.Favorites.CONTAINER_HOTSEAT
+                        && container != LauncherSettings.Favorites.CONTAINER_DESKTOP) {
+                    final int containerRow = indexOf(container);
+                    onScreen[i] = containerRow >= 0 && onScreen[containerRow];
+                }
+            }
+        }
+
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (onScreen[i]) rows[count++] = i;
+        }
+        int other = count;
+        for (int i = 0; i < size; i++) {
+            if (!onScreen[i]) rows[other++] = i;
+        }
+        return count;
+    }
+
+    /**
+     * Sorts rows[start] to rows[end - 1] by container, then screen, then from top to bottom and
+     * left to right. Rows in the same place keep their order.
+     */
+    void sortSpatially(int[] rows, int start, int end) {
+        final int cellCountX = LauncherModel.getCellCountX();
+        final int cellCountY = LauncherModel.getCellCountY();
+        final long screenOffset = cellCountX * cellCountY;
+        final long containerOffset = screenOffset * (Launcher.SCREEN_COUNT + 1); // +1 hotseat
+
+        final long[] keys = new long[end - start];
+        for (int i = start; i < end; i++) {
+            final int row = rows[i];
+            final long position = containers[row] * containerOffset + screens[row] * screenOffset
+                    + cellY[row] * cellCountX + cellX[row];
+            keys[i - start] = (position << ROW_BITS) | row;
+        }
+        Arrays.sort(keys);
+        for (int i = start; i < end; i++) {
+            rows[i] = (int) (keys[i - start] & ROW_MASK);
+        }
+    }
+
+    /**
+     * Adds the items of rows[start] to rows[end - 1] to out, in that order.
+     */
+    void addItems(int[] rows, int start, int end, ArrayList<? super T> out) {
+        out.ensureCapacity(out.size() + end - start);
+        for (int i = start; i < end; i++) {
+            out.add(getItem(rows[i]));
+        }
+    }
+}
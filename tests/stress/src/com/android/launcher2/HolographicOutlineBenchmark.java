@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.RectF;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+/**
+ * Compares the BlurMaskFilter and software blur backends of HolographicOutlineHelper, both for
+ * speed and for how closely the software output matches, at each outline thickness.
+ */
+public class HolographicOutlineBenchmark extends InstrumentationTestCase {
+
+    private static final String LOG_TAG = "HolographicOutlineBenchmark";
+    private static final int NUM_ITERATIONS = 20;
+    private static final int OUTLINE_COLOR = 0xff33b5e5;
+    private static final int GLOW_COLOR = 0x6633b5e5;
+
+    // Mean per-channel difference allowed between the two backends
+    private static final float MAX_MEAN_ERROR = 4.0f;
+
+    private static final int EXTRA_THICK = 0;
+    private static final int THICK = 1;
+    private static final int MEDIUM = 2;
+    private static final String[] THICKNESS_NAMES = { "extra thick", "thick", "medium" };
+
+    private final Canvas mCanvas = new Canvas();
+    private final Paint mShapePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    public void testExtraThickOutline() {
+        runBenchmark(EXTRA_THICK, 96, 96);
+        runBenchmark(EXTRA_THICK, 400, 300);
+    }
+
+    public void testThickOutline() {
+        runBenchmark(THICK, 96, 96);
+        runBenchmark(THICK, 400, 300);
+    }
+
+    public void testMediumOutline() {
+        runBenchmark(MEDIUM, 96, 96);
+        runBenchmark(MEDIUM, 400, 300);
+    }
+
+    private void runBenchmark(int thickness, int width, int height) {
+        final HolographicOutlineHelper helper = new HolographicOutlineHelper();
+
+        helper.setBlurBackend(HolographicOutlineHelper.BLUR_BACKEND_MASK_FILTER);
+        final Bitmap expected = createShape(width, height);
+        applyOutline(helper, expected, thickness);
+        final long maskFilterTime = timeOutline(helper, thickness, width, height);
+
+        helper.setBlurBackend(HolographicOutlineHelper.BLUR_BACKEND_SOFTWARE);
+        final Bitmap actual = createShape(width, height);
+        applyOutline(helper, actual, thickness);
+        final long softwareTime = timeOutline(helper, thickness, width, height);
+
+        final float error = meanError(expected, actual);
+        Log.i(LOG_TAG, THICKNESS_NAMES[thickness] + " " + width + "x" + height
+                + ": mask filter " + maskFilterTime + "us, software " + softwareTime
+                + "us, mean error " + error);
+        expected.recycle();
+        actual.recycle();
+
+        assertTrue("software outline differs too much: " + error, error <= MAX_MEAN_ERROR);
+    }
+
+    /**
+     * Returns the average time in microseconds to outline a fresh shape.
+     */
+    private long timeOutline(HolographicOutlineHelper helper, int thickness, int width,
+            int height) {
+        long total = 0;
+        for (int i = 0; i < NUM_ITERATIONS; i++) {
+            final Bitmap b = createShape(width, height);
+            final long start = System.nanoTime();
+            applyOutline(helper, b, thickness);
+            total += System.nanoTime() - start;
+            b.recycle();
+        }
+        return total / NUM_ITERATIONS / 1000;
+    }
+
+    private void applyOutline(HolographicOutlineHelper helper, Bitmap b, int thickness) {
+        mCanvas.setBitmap(b);
+        switch (thickness) {
+            case EXTRA_THICK:
+                helper.applyExtraThickExpensiveOutlineWithBlur(b, mCanvas, GLOW_COLOR,
+                        OUTLINE_COLOR);
+                break;
+            case THICK:
+                helper.applyThickExpensiveOutlineWithBlur(b, mCanvas, GLOW_COLOR,
+                        OUTLINE_COLOR);
+                break;
+            case MEDIUM:
+                helper.applyMediumExpensiveOutlineWithBlur(b, mCanvas, GLOW_COLOR,
+                        OUTLINE_COLOR);
+                break;
+        }
+        mCanvas.setBitmap(null);
+    }
+
+    /**
+     * Draws a rounded rectangle with a circle cut-out, padded like the launcher's drag outlines.
+     */
+    private Bitmap createShape(int width, int height) {
+        final Bitmap b = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final int padding = HolographicOutlineHelper.MAX_OUTER_BLUR_RADIUS;
+        mCanvas.setBitmap(b);
+        mShapePaint.setColor(0xffffffff);
+        mCanvas.drawRoundRect(new RectF(padding, padding, width - padding, height - padding),
+                padding, padding, mShapePaint);
+        mShapePaint.setColor(0x00000000);
+        mShapePaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+        mCanvas.drawCircle(width / 2, height / 2, Math.min(width, height) / 6, mShapePaint);
+        mShapePaint.setXfermode(null);
+        mCanvas.setBitmap(null);
+        return b;
+    }
+
+    private static float meanError(Bitmap expected, Bitmap actual) {
+        final int width = expected.getWidth();
+        final int height = expected.getHeight();
+        final int[] e = new int[width * height];
+        final int[] a = new int[width * height];
+        expected.getPixels(e, 0, width, 0, 0, width, height);
+        actual.getPixels(a, 0, width, 0, 0, width, height);
+        long total = 0;
+        for (int i = 0; i < e.length; i++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                total += Math.abs(((e[i] >>> shift) & 0xff) - ((a[i] >>> shift) & 0xff));
+            }
+        }
+        return total / (float) (e.length * 4);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.test.InstrumentationTestCase;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Checks that the install queue file of InstallShortcutReceiver keeps the records that are
+ * appended after one that a crash cut short. Uses a file of its own, never the launcher's.
+ */
+public class InstallQueueTest extends InstrumentationTestCase {
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getInstrumentation().getTargetContext().getCacheDir(),
+                "install_queue_test");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testAppendAfterTornRecord() throws Exception {
+        final byte[] first = { 1, 2, 3, 4, 5 };
+        final byte[] last = { 6, 7, 8 };
+        InstallShortcutReceiver.appendInstallQueueRecord(mFile, first);
+        writeTornRecord(100, 10);
+        InstallShortcutReceiver.appendInstallQueueRecord(mFile, last);
+
+        final ArrayList<byte[]> records = new ArrayList<byte[]>();
+        assertTrue(InstallShortcutReceiver.readInstallQueueRecords(mFile, records));
+        assertEquals(2, records.size());
+        assertTrue(Arrays.equals(first, records.get(0)));
+        assertTrue(Arrays.equals(last, records.get(1)));
+    }
+
+    public void testAppendAfterBadLength() throws Exception {
+        final byte[] last = { 9 };
+        writeTornRecord(-1, 0);
+        InstallShortcutReceiver.appendInstallQueueRecord(mFile, last);
+
+        final ArrayList<byte[]> records = new ArrayList<byte[]>();
+        assertTrue(InstallShortcutReceiver.readInstallQueueRecords(mFile, records));
+        assertEquals(1, records.size());
+        assertTrue(Arrays.equals(last, records.get(0)));
+    }
+
+    public void testReadTornRecord() throws Exception {
+        final byte[] first = { 1, 2, 3 };
+        InstallShortcutReceiver.appendInstallQueueRecord(mFile, first);
+        writeTornRecord(Integer.MAX_VALUE, 2);
+
+        final ArrayList<byte[]> records = new ArrayList<byte[]>();
+        assertTrue(InstallShortcutReceiver.readInstallQueueRecords(mFile, records));
+        assertEquals(1, records.size());
+        assertTrue(Arrays.equals(first, records.get(0)));
+    }
+
+    /**
+     * Appends the given length followed by fewer bytes than it says, like a write that was
+     * interrupted.
+     */
+    private void writeTornRecord(int length, int written) throws Exception {
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile, true));
+        try {
+            out.writeInt(length);
+            out.write(new byte[written]);
+        } finally {
+            out.close();
+        }
+    }
+}
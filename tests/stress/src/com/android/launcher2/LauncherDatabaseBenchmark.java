@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the rollback journal with the write-ahead log that LauncherProvider can be configured
+ * to use, with loader-like reads of the whole favorites table running at the same time as items
+ * are moved and updated. Uses a database of its own, never the launcher's.
+ */
+public class LauncherDatabaseBenchmark extends InstrumentationTestCase {
+
+    private static final String LOG_TAG = "LauncherDatabaseBenchmark";
+    private static final String DATABASE_NAME = "launcher_benchmark.db";
+
+    private static final int NUM_ITEMS = 150;
+    private static final int NUM_READERS = 2;
+    private static final int NUM_READS = 40;
+    private static final int NUM_WRITES = 200;
+    private static final int ICON_BYTES = 4096;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = getInstrumentation().getTargetContext().getDatabasePath(DATABASE_NAME);
+        mFile.getParentFile().mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SQLiteDatabase.deleteDatabase(mFile);
+        super.tearDown();
+    }
+
+    public void testRollbackJournal() throws Exception {
+        runBenchmark(false);
+    }
+
+    public void testWriteAheadLog() throws Exception {
+        runBenchmark(true);
+    }
+
+    private void runBenchmark(boolean writeAheadLog) throws Exception {
+        SQLiteDatabase.deleteDatabase(mFile);
+        final SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(mFile, null);
+        try {
+            if (writeAheadLog) {
+                db.enableWriteAheadLogging();
+                LauncherProvider.configureWriteAheadLog(db);
+            }
+            createItems(db);
+
+            final long[][] reads = new long[NUM_READERS][NUM_READS];
+            final long[] writes = new long[NUM_WRITES];
+            final Throwable[] error = new Throwable[1];
+
+            final Thread[] threads = new Thread[NUM_READERS + 1];
+            for (int i = 0; i < NUM_READERS; i++) {
+                final long[] times = reads[i];
+                threads[i] = new Thread("benchmark-reader-" + i) {
+                    public void run() {
+                        try {
+                            for (int j = 0; j < times.length; j++) {
+                                final long start = System.nanoTime();
+                                readItems(db);
+                                times[j] = System.nanoTime() - start;
+                            }
+                        } catch (Throwable t) {
+                            error[0] = t;
+                        }
+                    }
+                };
+            }
+            threads[NUM_READERS] = new Thread("benchmark-writer") {
+                public void run() {
+                    try {
+                        writeItems(db, writes);
+                    } catch (Throwable t) {
+                        error[0] = t;
+                    }
+                }
+            };
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            if (error[0] != null) {
+                throw new RuntimeException("benchmark thread failed", error[0]);
+            }
+
+            String checkpoint = "";
+            if (writeAheadLog) {
+                final long start = System.nanoTime();
+                final int pages = LauncherProvider.checkpoint(db);
+                checkpoint = ", checkpoint of " + pages + " pages "
+                        + (System.nanoTime() - start) / 1000 + "us";
+            }
+
+            final long[] allReads = new long[NUM_READERS * NUM_READS];
+            for (int i = 0; i < NUM_READERS; i++) {
+                System.arraycopy(reads[i], 0, allReads, i * NUM_READS, NUM_READS);
+            }
+            Log.i(LOG_TAG, (writeAheadLog ? "write-ahead log" : "rollback journal")
+                    + ": reads " + describe(allReads) + ", writes " + describe(writes)
+                    + checkpoint);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void createItems(SQLiteDatabase db) {
+        // The columns of LauncherProvider's favorites table
+        db.execSQL("CREATE TABLE favorites (" +
+                "_id INTEGER PRIMARY KEY," +
+                "title TEXT," +
+                "intent TEXT," +
+                "container INTEGER," +
+                "screen INTEGER," +
+                "cellX INTEGER," +
+                "cellY INTEGER," +
+                "spanX INTEGER," +
+                "spanY INTEGER," +
+                "itemType INTEGER," +
+                "appWidgetId INTEGER NOT NULL DEFAULT -1," +
+                "isShortcut INTEGER," +
+                "iconType INTEGER," +
+                "iconPackage TEXT," +
+                "iconResource TEXT," +
+                "icon BLOB," +
+                "uri TEXT," +
+                "displayMode INTEGER" +
+                ");");
+
+        final ContentValues values = new ContentValues();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < NUM_ITEMS; i++) {
+                values.clear();
+                values.put(LauncherSettings.Favorites._ID, i + 1);
+                values.put(LauncherSettings.Favorites.TITLE, "Item " + i);
+                values.put(LauncherSettings.Favorites.INTENT, "#Intent;action=android.intent."
+                        + "action.MAIN;component=com.example/.Activity" + i + ";end");
+                values.put(LauncherSettings.Favorites.CONTAINER,
+                        LauncherSettings.Favorites.CONTAINER_DESKTOP);
+                values.put(LauncherSettings.Favorites.SCREEN, i % 5);
+                values.put(LauncherSettings.Favorites.CELLX, i % 4);
+                values.put(LauncherSettings.Favorites.CELLY, (i / 4) % 4);
+                values.put(LauncherSettings.Favorites.SPANX, 1);
+                values.put(LauncherSettings.Favorites.SPANY, 1);
+                values.put(LauncherSettings.Favorites.ITEM_TYPE,
+                        LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT);
+                values.put(LauncherSettings.Favorites.ICON_TYPE,
+                        LauncherSettings.Favorites.ICON_TYPE_BITMAP);
+                values.put(LauncherSettings.Favorites.ICON, new byte[ICON_BYTES]);
+                db.insert("favorites", null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Reads every column of every item, like LauncherModel does when loading the workspace.
+     */
+    private static void readItems(SQLiteDatabase db) {
+        final Cursor c = db.query("favorites", null, null, null, null, null, null);
+        try {
+            final int columns = c.getColumnCount();
+            while (c.moveToNext()) {
+                for (int i = 0; i < columns; i++) {
+                    if (c.getType(i) == Cursor.FIELD_TYPE_BLOB) {
+                        c.getBlob(i);
+                    } else {
+                        c.getString(i);
+                    }
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Alternates between moving an item to another cell, and updating its title and icon, the
+     * two kinds of writes that the launcher makes most.
+     */
+    private static void writeItems(SQLiteDatabase db, long[] times) {
+        final Random random = new Random(0);
+        final ContentValues values = new ContentValues();
+        final byte[] icon = new byte[ICON_BYTES];
+        for (int i = 0; i < times.length; i++) {
+            final String[] id = { String.valueOf(random.nextInt(NUM_ITEMS) + 1) };
+            values.clear();
+            if (i % 2 == 0) {
+                values.put(LauncherSettings.Favorites.SCREEN, random.nextInt(5));
+                values.put(LauncherSettings.Favorites.CELLX, random.nextInt(4));
+                values.put(LauncherSettings.Favorites.CELLY, random.nextInt(4));
+            } else {
+                random.nextBytes(icon);
+                values.put(LauncherSettings.Favorites.TITLE, "Item " + i);
+                values.put(LauncherSettings.Favorites.ICON, icon);
+            }
+            final long start = System.nanoTime();
+            db.update("favorites", values, "_id=?", id);
+            times[i] = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Returns the median and 99th percentile of the given times, in microseconds.
+     */
+    private static String describe(long[] times) {
+        final long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        final long p50 = sorted[(sorted.length - 1) / 2] / 1000;
+        final long p99 = sorted[(int) Math.ceil(sorted.length * 0.99) - 1] / 1000;
+        return "p50 " + p50 + "us p99 " + p99 + "us";
+    }
+}
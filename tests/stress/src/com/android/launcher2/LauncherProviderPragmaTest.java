@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.test.InstrumentationTestCase;
+
+/**
+ * Checks that the pragmas LauncherProvider sets up for the write-ahead log are in effect once
+ * the database is open. Uses a database of its own, never the launcher's.
+ */
+public class LauncherProviderPragmaTest extends InstrumentationTestCase {
+
+    private static final String DATABASE_NAME = "launcher_pragma_test.db";
+
+    // The value of PRAGMA synchronous for NORMAL
+    private static final int SYNCHRONOUS_NORMAL = 1;
+
+    private Context mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testWriteAheadLogPragmas() {
+        final SQLiteOpenHelper helper = new SQLiteOpenHelper(mContext, DATABASE_NAME, null, 1) {
+            @Override
+            public void onConfigure(SQLiteDatabase db) {
+                // Like LauncherProvider.DatabaseHelper with the write-ahead log turned on
+                LauncherProvider.configureWriteAheadLog(db);
+            }
+
+            @Override
+            public void onCreate(SQLiteDatabase db) {
+                db.execSQL("CREATE TABLE favorites (_id INTEGER PRIMARY KEY)");
+            }
+
+            @Override
+            public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            }
+        };
+        helper.setWriteAheadLoggingEnabled(true);
+        try {
+            final SQLiteDatabase db = helper.getWritableDatabase();
+            assertEquals(SYNCHRONOUS_NORMAL, readPragma(db, "synchronous"));
+            assertEquals(LauncherProvider.WAL_AUTOCHECKPOINT_PAGES,
+                    readPragma(db, "wal_autocheckpoint"));
+        } finally {
+            helper.close();
+        }
+    }
+
+    private static int readPragma(SQLiteDatabase db, String name) {
+        final Cursor c = db.rawQuery("PRAGMA " + name, null);
+        try {
+            assertTrue("no value for " + name, c.moveToFirst());
+            return c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
+}
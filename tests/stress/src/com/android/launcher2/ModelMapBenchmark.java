@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher2;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Compares the boxed maps and lists that the model used to keep its items in with the long keyed
+ * ones that it keeps them in now: for the time it takes to fill them the way loadWorkspace()
+ * does, for the time it takes to make the copy-on-write edits that ModelSnapshot.edit() makes
+ * afterwards, and for the heap that they hold on to.
+ */
+public class ModelMapBenchmark extends InstrumentationTestCase {
+
+    private static final String LOG_TAG = "ModelMapBenchmark";
+    private static final int NUM_ITERATIONS = 20;
+
+    // Each of the retained heap measurements keeps this many sets of maps alive at once
+    private static final int NUM_RETAINED = 10;
+
+    // One item in this many is a folder, and one in this many is removed as dead
+    private static final int FOLDER_EVERY = 10;
+    private static final int REMOVED_EVERY = 100;
+
+    // How many edits are made to the loaded maps, each to a copy of the maps before it
+    private static final int NUM_EDITS = 200;
+
+    public void testThousandItems() {
+        runBenchmark(1000);
+    }
+
+    public void testFiveThousandItems() {
+        runBenchmark(5000);
+    }
+
+    private void runBenchmark(int count) {
+        final ItemInfo[] items = createItems(count);
+
+        final long[] boxedTimes = new long[NUM_ITERATIONS];
+        final long[] primitiveTimes = new long[NUM_ITERATIONS];
+        final long[] boxedEditTimes = new long[NUM_ITERATIONS];
+        final long[] primitiveEditTimes = new long[NUM_ITERATIONS];
+        for (int i = 0; i < NUM_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            final Object[] boxed = loadBoxed(items);
+            boxedTimes[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            final Object[] primitive = loadPrimitive(items);
+            primitiveTimes[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            editBoxed(boxed, items);
+            boxedEditTimes[i] = (System.nanoTime() - start) / NUM_EDITS;
+
+            start = System.nanoTime();
+            editPrimitive(primitive, items);
+            primitiveEditTimes[i] = (System.nanoTime() - start) / NUM_EDITS;
+        }
+
+        final Object[] retained = new Object[NUM_RETAINED];
+        long before = usedHeap();
+        for (int i = 0; i < NUM_RETAINED; i++) {
+            retained[i] = loadBoxed(items);
+        }
+        final long boxedBytes = (usedHeap() - before) / NUM_RETAINED;
+        Arrays.fill(retained, null);
+
+        before = usedHeap();
+        for (int i = 0; i < NUM_RETAINED; i++) {
+            retained[i] = loadPrimitive(items);
+        }
+        final long primitiveBytes = (usedHeap() - before) / NUM_RETAINED;
+        Arrays.fill(retained, null);
+
+        Log.i(LOG_TAG, count + " items: boxed load " + median(boxedTimes) + "us edit "
+                + median(boxedEditTimes) + "us " + (boxedBytes / 1024) + "KB, primitive load "
+                + median(primitiveTimes) + "us edit " + median(primitiveEditTimes) + "us "
+                + (primitiveBytes / 1024) + "KB");
+    }
+
+    /**
+     * Creates the items in the order that loadWorkspace() reads them. The ids are shuffled, as
+     * the rows are not read in the order of their ids, and the items in a folder come before
+     * the folder, as folders are created after the items that are dropped into them.
+     */
+    private static ItemInfo[] createItems(int count) {
+        final ArrayList<Long> ids = new ArrayList<Long>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add((long) i + 1);
+        }
+        Collections.shuffle(ids, new Random(0));
+
+        final ItemInfo[] items = new ItemInfo[count];
+        for (int i = 0; i < count; i++) {
+            final ItemInfo item;
+            // The last item of each group of FOLDER_EVERY is the folder of the group
+            final int folderIndex = i - i % FOLDER_EVERY + FOLDER_EVERY - 1;
+            if (i == folderIndex) {
+                item = new FolderInfo();
+                item.itemType = LauncherSettings.Favorites.ITEM_TYPE_FOLDER;
+                item.container = LauncherSettings.Favorites.CONTAINER_DESKTOP;
+            } else {
+                item = new ShortcutInfo();
+                item.itemType = LauncherSettings.Favorites.ITEM_TYPE_APPLICATION;
+                item.container = (i % 2 == 0 && folderIndex < count) ? ids.get(folderIndex)
+                        : LauncherSettings.Favorites.CONTAINER_DESKTOP;
+            }
+            item.id = ids.get(i);
+            items[i] = item;
+        }
+        return items;
+    }
+
+    /**
+     * Fills the maps the way loadWorkspace() did, with a HashMap of every item and of the
+     * folders, and an ArrayList of the ids to remove.
+     */
+    private static Object[] loadBoxed(ItemInfo[] items) {
+        final HashMap<Long, ItemInfo> itemsIdMap = new HashMap<Long, ItemInfo>();
+        final HashMap<Long, FolderInfo> folders = new HashMap<Long, FolderInfo>();
+        final ArrayList<Long> itemsToRemove = new ArrayList<Long>();
+        for (int i = 0; i < items.length; i++) {
+            ItemInfo item = items[i];
+            if (i % REMOVED_EVERY == REMOVED_EVERY - 1) {
+                itemsToRemove.add(item.id);
+                continue;
+            }
+            // Like findOrMakeFolder(), which makes a placeholder for a folder that is not read yet
+            if (item instanceof FolderInfo) {
+                final FolderInfo placeholder = folders.get(item.id);
+                if (placeholder != null) {
+                    item = placeholder;
+                } else {
+                    folders.put(item.id, (FolderInfo) item);
+                }
+            } else if (item.container >= 0 && folders.get(item.container) == null) {
+                folders.put(item.container, new FolderInfo());
+            }
+            itemsIdMap.put(item.id, item);
+        }
+        return new Object[] { itemsIdMap, folders, itemsToRemove };
+    }
+
+    /**
+     * Fills the maps the way loadWorkspace() does now.
+     */
+    private static Object[] loadPrimitive(ItemInfo[] items) {
+        final LongSparseArray<ItemInfo> itemsIdMap = new LongSparseArray<ItemInfo>();
+        final LongSparseArray<FolderInfo> folders = new LongSparseArray<FolderInfo>();
+        final LongList itemsToRemove = new LongList();
+        for (int i = 0; i < items.length; i++) {
+            ItemInfo item = items[i];
+            if (i % REMOVED_EVERY == REMOVED_EVERY - 1) {
+                itemsToRemove.add(item.id);
+                continue;
+            }
+            if (item instanceof FolderInfo) {
+                final FolderInfo placeholder = folders.get(item.id);
+                if (placeholder != null) {
+                    item = placeholder;
+                } else {
+                    folders.put(item.id, (FolderInfo) item);
+                }
+            } else if (item.container >= 0 && folders.get(item.container) == null) {
+                folders.put(item.container, new FolderInfo());
+            }
+            itemsIdMap.put(item.id, item);
+        }
+        return new Object[] { itemsIdMap, folders, itemsToRemove };
+    }
+
+    /**
+     * Makes NUM_EDITS edits to the loaded maps, each to a copy of the maps the edit before it
+     * made, like ModelSnapshot.edit() does for each change to the model. Each edit removes an
+     * item and adds a new one with a higher id than any other.
+     */
+    @SuppressWarnings("unchecked")
+    private static void editBoxed(Object[] loaded, ItemInfo[] items) {
+        HashMap<Long, ItemInfo> itemsIdMap = (HashMap<Long, ItemInfo>) loaded[0];
+        for (int i = 0; i < NUM_EDITS; i++) {
+            itemsIdMap = new HashMap<Long, ItemInfo>(itemsIdMap);
+            final ItemInfo item = items[(i * 7) % items.length];
+            itemsIdMap.remove(item.id);
+            itemsIdMap.put(items.length + 1L + i, item);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void editPrimitive(Object[] loaded, ItemInfo[] items) {
+        LongSparseArray<ItemInfo> itemsIdMap = (LongSparseArray<ItemInfo>) loaded[0];
+        for (int i = 0; i < NUM_EDITS; i++) {
+            itemsIdMap = itemsIdMap.clone();
+            final ItemInfo item = items[(i * 7) % items.length];
+            itemsIdMap.remove(item.id);
+            itemsIdMap.put(items.length + 1L + i, item);
+            // Like the ModelSnapshot constructor, so that the copies never hold garbage
+            itemsIdMap.size();
+        }
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            runtime.gc();
+            runtime.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Returns the median of the given times, in microseconds.
+     */
+    private static long median(long[] times) {
+        final long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2] / 1000;
+    }
+}